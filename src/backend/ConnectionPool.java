@@ -0,0 +1,250 @@
+package backend;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of connections to one SQLite database. Connections are opened
+ * lazily up to the limit and each keeps its own cache of prepared statements,
+ * so a statement is compiled once per connection rather than once per call.
+ * Executions of each statement are timed, under the name it is prepared with.
+ * Requires SQLite-JDBC
+ */
+public class ConnectionPool {
+
+	static {
+		try {
+			Class.forName("org.sqlite.JDBC");
+		} catch (ClassNotFoundException e) {
+			Log.error("SQLite-JDBC is not on the classpath", e);
+		}
+	}
+
+	private static final Metrics.Family<Metrics.Histogram> QUERY_SECONDS = Metrics.timer("twotter_db_query_seconds",
+			"Time to execute a statement, up to its first row, by statement", "statement");
+	private static final Metrics.Family<Metrics.Histogram> ACQUIRE_SECONDS = Metrics.timer("twotter_db_acquire_seconds",
+			"Time waiting for a pooled connection when none was idle");
+
+	private final String url;
+	private final int size;
+	private final long timeoutMillis;
+	private final ArrayBlockingQueue<PooledConnection> idle;
+	private final AtomicInteger opened = new AtomicInteger();
+
+	/**
+	 * @param url JDBC url of the database
+	 * @param size Most connections that will ever be open at once
+	 * @param timeoutMillis How long acquire() waits for a free connection
+	 */
+	public ConnectionPool(String url, int size, long timeoutMillis)
+	{
+		this.url = url;
+		this.size = size;
+		this.timeoutMillis = timeoutMillis;
+		this.idle = new ArrayBlockingQueue<PooledConnection>(size);
+	}
+
+	/**
+	 * Takes a connection from the pool, opening one if the pool is not yet full.
+	 * Every acquire() must be paired with a release() in a finally block
+	 * @return A connection for the caller's exclusive use
+	 * @throws SQLException No connection became free in time, or one could not be opened
+	 */
+	public PooledConnection acquire() throws SQLException
+	{
+		PooledConnection pc = idle.poll();
+		if (pc != null) return pc;
+		if (opened.incrementAndGet() <= size) {
+			try {
+				return new PooledConnection(DriverManager.getConnection(url));
+			} catch (SQLException e) {
+				opened.decrementAndGet();
+				throw e;
+			}
+		}
+		opened.decrementAndGet();
+		Metrics.Histogram waited = ACQUIRE_SECONDS.get();
+		long start = waited.start();
+		try {
+			pc = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		waited.stop(start);
+		if (pc == null) throw new SQLException("Timed out waiting for a connection to " + url);
+		return pc;
+	}
+
+	/**
+	 * @return JDBC url of the database
+	 */
+	public String getURL()
+	{
+		return url;
+	}
+
+	/**
+	 * @return Connections open, idle or in use
+	 */
+	public int opened()
+	{
+		return Math.min(opened.get(), size);
+	}
+
+	/**
+	 * Returns a connection to the pool. Connections that have been closed are discarded
+	 * @param pc Connection obtained from acquire()
+	 */
+	public void release(PooledConnection pc)
+	{
+		if (pc == null) return;
+		boolean usable;
+		try {
+			usable = !pc.conn.isClosed() && pc.conn.getAutoCommit();
+		} catch (SQLException e) {
+			usable = false;
+		}
+		if (usable && idle.offer(pc)) return;
+		pc.close();
+		opened.decrementAndGet();
+	}
+
+	/**
+	 * A pooled connection and its prepared statement cache. Statements returned by
+	 * prepare() belong to the connection and must not be closed by the caller; their
+	 * ResultSets must be
+	 */
+	public static class PooledConnection {
+
+		private final Connection conn;
+		// By name
+		private final HashMap<String, TimedStatement> statements = new HashMap<String, TimedStatement>();
+
+		PooledConnection(Connection conn)
+		{
+			this.conn = conn;
+		}
+
+		/**
+		 * @param name What the statement's executions are timed as, such as get_user_info
+		 * @param sql SQL text, normally one of the statement constants
+		 * @return The cached statement for name, compiling it on first use
+		 * @throws SQLException The statement could not be compiled, or name was
+		 * already used for other SQL
+		 */
+		public TimedStatement prepare(String name, String sql) throws SQLException
+		{
+			TimedStatement prepStmt = statements.get(name);
+			if (prepStmt == null) {
+				prepStmt = new TimedStatement(conn.prepareStatement(sql), sql, QUERY_SECONDS.labels(name));
+				statements.put(name, prepStmt);
+			}
+			else if (!prepStmt.sql.equals(sql)) {
+				throw new SQLException("Statement " + name + " is already prepared with other SQL");
+			}
+			return prepStmt;
+		}
+
+		public Connection getConnection()
+		{
+			return conn;
+		}
+
+		void close()
+		{
+			for (TimedStatement prepStmt : statements.values()) {
+				try {
+					prepStmt.prepStmt.close();
+				} catch (SQLException e) {}
+			}
+			statements.clear();
+			try {
+				conn.close();
+			} catch (SQLException e) {}
+		}
+	}
+
+	/**
+	 * A cached prepared statement whose executions are timed. Only the calls the
+	 * stores make are here; binding a parameter is a direct call
+	 */
+	public static class TimedStatement {
+
+		private final PreparedStatement prepStmt;
+		private final String sql;
+		private final Metrics.Histogram seconds;
+
+		TimedStatement(PreparedStatement prepStmt, String sql, Metrics.Histogram seconds)
+		{
+			this.prepStmt = prepStmt;
+			this.sql = sql;
+			this.seconds = seconds;
+		}
+
+		public void setString(int parameter, String value) throws SQLException
+		{
+			prepStmt.setString(parameter, value);
+		}
+
+		public void setLong(int parameter, long value) throws SQLException
+		{
+			prepStmt.setLong(parameter, value);
+		}
+
+		public void setInt(int parameter, int value) throws SQLException
+		{
+			prepStmt.setInt(parameter, value);
+		}
+
+		public void addBatch() throws SQLException
+		{
+			prepStmt.addBatch();
+		}
+
+		/**
+		 * @return The rows, timed up to the first. The caller must close it
+		 */
+		public ResultSet executeQuery() throws SQLException
+		{
+			long start = seconds.start();
+			try {
+				return prepStmt.executeQuery();
+			} finally {
+				seconds.stop(start);
+			}
+		}
+
+		public boolean execute() throws SQLException
+		{
+			long start = seconds.start();
+			try {
+				return prepStmt.execute();
+			} finally {
+				seconds.stop(start);
+			}
+		}
+
+		public int executeUpdate() throws SQLException
+		{
+			long start = seconds.start();
+			try {
+				return prepStmt.executeUpdate();
+			} finally {
+				seconds.stop(start);
+			}
+		}
+
+		public int[] executeBatch() throws SQLException
+		{
+			long start = seconds.start();
+			try {
+				return prepStmt.executeBatch();
+			} finally {
+				seconds.stop(start);
+			}
+		}
+	}
+}
@@ -1,17 +1,26 @@
 package backend;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.sql.*;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Database Portal that acts as a portal to the program database. Methods are provided for generating HTML documents
@@ -48,59 +57,172 @@ public class DBPortal {
 
 	public static final char SEP = File.separatorChar;
 
-	private Connection conn;
-
-	// SQL statement for retrieving all of the posts that a user has posted, including reposts
-	private static final String GET_USER_POSTS_STATEMENT = 
-			"SELECT DISTINCT(POSTED.postID),POSTED.username,POST.username,POSTED.timestamp,POST.message,USER.picture " + 
-					"FROM USER JOIN POSTED ON USER.username=POST.username JOIN POST ON POST.postid=POSTED.postid WHERE " + 
-					"POSTED.username= ? ORDER BY timestamp DESC";
-
-	// SQL statement for retrieving all of the posts for the users that a given user follows
-	// This statement returns both an original post and each repost. It should only return the oldest post
-	private static final String GET_FEED_STATEMENT = 
-			"SELECT DISTINCT(POSTED.postID),POSTED.username,POST.username,POSTED.timestamp,POST.message,USER.picture " + 
-					"FROM POST JOIN POSTED ON POST.postid=POSTED.postid JOIN FOLLOWING ON FOLLOWING.followee=POSTED.username " + 
-					"JOIN USER ON POST.username=USER.username WHERE FOLLOWING.follower=? ORDER BY timestamp DESC";
-
-	// SQL statement for retrieving getting all of the information for a given user
-	private static final String GET_USER_INFO_STATEMENT = 
-			"SELECT username,email,description,picture,name FROM USER WHERE username=?";
-
-	private static final String CREATE_POST_STATEMENT = 
-			"INSERT INTO POST VALUES(null,?,?)";
-	private static final String CREATE_POSTED_STATEMENT = 
-			"INSERT INTO POSTED VALUES( ?,(select last_insert_rowid()),null,?)";
-	
+	// Directory holding the HTML templates, with a trailing separator
+	public static final String TEMPLATES = "src" + SEP + "backend" + SEP + "HTMLTemplates" + SEP;
+
+	// Placeholders in template.html, in the order writeHTML() passes their values
+	private static final String[] PAGE_SLOTS = {"userInformation", "follow", "posts", "more"};
+	private static final int POSTS_SLOT = 2;
+	// Placeholder in more_posts.html
+	private static final String[] MORE_SLOTS = {"link"};
+	// Placeholders in follow_template.html, follow_button.html and follow_suggestion.html
+	private static final String[] FOLLOW_SLOTS = {"followers", "following", "action", "suggestions"};
+	private static final String[] BUTTON_SLOTS = {"style", "action", "username", "label"};
+	private static final String[] SUGGESTION_SLOTS = {"username"};
+
+	// Users suggested beside a news feed
+	private static final int SUGGESTIONS = Integer.getInteger("twotter.suggestions", 5);
+
+	// Posts shown per page of a feed or profile
+	public static final int PAGE_SIZE = Integer.getInteger("twotter.pageSize", 20);
+
+	// Database file, src/backend/twotter.db unless -Dtwotter.db says otherwise
+	public static final String DATABASE = System.getProperty("twotter.db", "src" + SEP + "backend" + SEP + "twotter.db");
+
+	// Connections shared by every portal in the process
+	private static final ConnectionPool POOL = new ConnectionPool(
+			"jdbc:sqlite:" + DATABASE,
+			Integer.getInteger("twotter.dbConnections", 8), 10000);
+
+	// Where -Dtwotter.storage=postlog keeps posts, beside the database unless -Dtwotter.postLog says otherwise
+	private static final File POST_LOG = new File(System.getProperty("twotter.postLog", DATABASE + ".posts"));
+
+	// Users, sessions, follows, posts, feeds and favorites
+	private static final Storage STORAGE = "postlog".equals(System.getProperty("twotter.storage"))
+			? new PostLogStorage(new SqliteStorage(POOL, null), POST_LOG)
+			: new SqliteStorage(POOL, POST_LOG);
+
+	// Who follows whom, in front of STORAGE
+	private static final FollowGraph FOLLOWS = new FollowGraph();
+
+	// News feeds, materialized when posts are created
+	private static final TimelineStore TIMELINES = new TimelineStore(FOLLOWS, STORAGE);
+
+	// Logged in users by session token, in front of STORAGE
+	private static final SessionStore SESSIONS = new SessionStore(STORAGE);
+
+	// Users by username, in front of STORAGE
+	private static final UserCache USERS = new UserCache();
+
+	// Favorites and reposts of every post
+	private static final PostCounts COUNTS = new PostCounts(STORAGE);
+
+	// Rendered posts, shared by every feed and profile they appear in
+	private static final FragmentCache FRAGMENTS = new FragmentCache(COUNTS);
+
+	// Live streams of new posts, for feeds that are open
+	private static final FeedHub HUB = new FeedHub(FOLLOWS, FRAGMENTS);
 
+	// Versions of every feed and profile, for conditional requests
+	private static final PageVersions VERSIONS = new PageVersions();
+
+	// Words of every post, for search; saved beside the database unless -Dtwotter.searchIndex says otherwise
+	private static final SearchIndex SEARCH = new SearchIndex(new File(System.getProperty("twotter.searchIndex", DATABASE + ".search")));
+
+	// Lookups in USERS, by getUser()
+	private static final StripedCounter USER_HITS = Metrics.CACHE_REQUESTS.labels("users", "hit");
+	private static final StripedCounter USER_MISSES = Metrics.CACHE_REQUESTS.labels("users", "miss");
+
+	static {
+		Metrics.gauge("twotter_db_connections", "Database connections open", new Metrics.Gauge() {
+			public double value() {
+				return POOL.opened();
+			}
+		});
+		try {
+			STORAGE.init();
+		} catch (SQLException e) {
+			// Such as a post log that SqliteStorage would reuse the IDs of; not safe to serve
+			throw new ExceptionInInitializerError(e);
+		}
+		try {
+			FOLLOWS.init(STORAGE);
+			TIMELINES.init();
+			COUNTS.init();
+			SEARCH.init(STORAGE);
+			// Feeds of posts that were stored but not fanned out before the process stopped
+			STORAGE.recover(new Storage.BatchListener() {
+				public void written(Storage.Transaction tx, List<Post> posts) throws SQLException {
+					for (Post p : posts) TIMELINES.fanOut(tx, p);
+				}
+			});
+		} catch (SQLException e) {
+			Log.error("Could not prepare " + DATABASE, e);
+		}
+	}
+
+	// Single writer that creates posts in batched transactions
+	private static final PostWriter WRITER = startWriter();
+
+	private static PostWriter startWriter()
+	{
+		try {
+			return new PostWriter(STORAGE, TIMELINES, SEARCH, COUNTS, HUB, VERSIONS);
+		} catch (SQLException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 
 	/**
-	 * Creates a portal to src/backend/twotter.db
+	 * Creates a portal to src/backend/twotter.db. Portals are cheap; connections
+	 * come from a pool shared by all of them
 	 */
 	public DBPortal()
 	{
-		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:src" + SEP + "backend" + SEP + "twotter.db");
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
-		} catch (SQLException e)	{
-			e.printStackTrace();
-		}
 	}
 	
 	public boolean createUser(String username, String description, String email, String picture, String passHash, String name) throws SQLException
 	{
-		String cmd = "INSERT INTO USER VALUES(?,?,?,?,?,?,?)";
-		PreparedStatement prepStmt = conn.prepareStatement(cmd);
-		prepStmt.setString(1, username);
-		prepStmt.setString(2, randomString(20));
-		prepStmt.setString(3, passHash);
-		prepStmt.setString(4, email);
-		prepStmt.setString(5, description);
-		prepStmt.setString(6, picture);
-		prepStmt.setString(7, name);
-		return prepStmt.execute();
+		try {
+			return STORAGE.createUser(username, description, email, picture, passHash, name);
+		} finally {
+			USERS.invalidate(username);
+		}
+	}
+
+	/**
+	 * Changes the profile of a user
+	 * @param username
+	 * @param name New display name, or null to keep the current one
+	 * @param picture New picture, or null to keep the current one
+	 * @param description New description, or null to keep the current one
+	 * @return Whether the user exists
+	 * @throws SQLException
+	 */
+	public boolean updateProfile(String username, String name, String picture, String description) throws SQLException
+	{
+		try {
+			return STORAGE.updateProfile(username, name, picture, description);
+		} finally {
+			USERS.invalidate(username);
+			VERSIONS.changed(username);
+		}
+	}
+
+	/**
+	 * Checks a username and password
+	 * @param username
+	 * @param password
+	 * @return Whether the user exists and the password matches
+	 * @throws SQLException
+	 */
+	public boolean checkLogin(String username, String password) throws SQLException
+	{
+		return STORAGE.checkPassword(username, password);
+	}
+
+	/**
+	 * Retrieves the session ID of a user, starting one if the user does not have one that is still live
+	 * @param username
+	 * @return The session ID, or null if the user does not exist
+	 * @throws SQLException
+	 */
+	public String retreiveSessionID(String username) throws SQLException
+	{
+		Session session = STORAGE.startSession(username, randomString(20));
+		if (session == null) return null;
+		SESSIONS.put(session);
+		return session.getID();
 	}
 
 	/**
@@ -111,43 +233,91 @@ public class DBPortal {
 	 */
 	public boolean createPost(String message, String sessionID)
 	{
-		String username = "";
+		String username = null;
 		try {
 			username = getUsernameByID(sessionID);
 		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			Log.error("Could not look up session for a post", e);
 		}
-		return createPost(message,username);
+		return username != null && createPostWithUsername(message,username);
 	}
 
 	/**
-	 * 
+	 * Creates a post and pushes it onto the news feeds of the author's followers,
+	 * waiting until the batch it was written in has committed
 	 * @param message
 	 * @param username
-	 * @return
+	 * @return Whether the post was created
 	 */
 	public boolean createPostWithUsername(String message, String username)
 	{
-		PreparedStatement prepStmt;
 		try {
-			prepStmt = conn.prepareStatement(CREATE_POST_STATEMENT);
-			prepStmt.setString(1, message);
-			prepStmt.setString(2, username);
-			prepStmt.execute();
-			prepStmt = conn.prepareStatement(CREATE_POSTED_STATEMENT);
-			prepStmt.setString(1, username);
-			String format = "yyyy-MM-dd hh:mm:ss.SS a";
-			SimpleDateFormat sdf = new SimpleDateFormat(format);
-			Date now = new Date();
-			prepStmt.setString(2, sdf.format(now));
-			return prepStmt.execute();
-		} catch (SQLException e) {
-			e.printStackTrace();
+			submitPost(message, username).get();
+			return true;
+		} catch (SQLException | ExecutionException e) {
+			Log.error("Could not create a post by " + username, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 		return false;
 	}
+
+	/**
+	 * Queues a post to be created without waiting for it
+	 * @param message
+	 * @param username
+	 * @return The ID of the post, once it has been written
+	 * @throws SQLException Too many posts are waiting to be written
+	 */
+	public Future<Long> submitPost(String message, String username) throws SQLException
+	{
+		return WRITER.submit(message, username);
+	}
 	
+	/**
+	 * Reposts a post to the user's followers, waiting for it to be written
+	 * @param postID
+	 * @param username Who reposts it
+	 * @return false if there is no such post, or username posted or already reposted it
+	 */
+	public boolean repost(long postID, String username)
+	{
+		try {
+			return WRITER.submitRepost(postID, username).get() >= 0;
+		} catch (SQLException | ExecutionException e) {
+			Log.error("Could not repost " + postID + " by " + username, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/**
+	 * Favorites or unfavorites a post. Counted at once and written to FAVORITE shortly after
+	 * @param postID
+	 * @param username
+	 * @param favorite true to favorite, false to unfavorite
+	 * @return false if there is no such post, or it already was, or was not, a favorite
+	 * @throws SQLException
+	 */
+	public boolean favorite(long postID, String username, boolean favorite) throws SQLException
+	{
+		if (!COUNTS.favorite(username, postID, favorite)) return false;
+		VERSIONS.changed(username);	// so at least their own pages show it at once
+		return true;
+	}
+
+	/**
+	 * Opens a live stream of the posts arriving in a user's feed
+	 * @param username
+	 * @param connection Closed if the client falls too far behind
+	 * @return The stream, to be closed when it ends, or null if too many are open
+	 */
+	public FeedHub.Subscription subscribe(String username, Closeable connection)
+	{
+		return HUB.subscribe(username, connection);
+	}
+
 	/**
 	 * Checks to see if the given user exists
 	 * @param username User that is being checked for existence
@@ -156,25 +326,137 @@ public class DBPortal {
 	 */
 	public boolean userExists(String username) throws SQLException
 	{
-		String query = "SELECT username FROM USER WHERE USERNAME = ?";
-		PreparedStatement prepStmt = conn.prepareStatement(query);
-		prepStmt.setString(1, username);
-		ResultSet rs = prepStmt.executeQuery();
-		return rs.next();
+		return getUser(username) != null;
 	}
 
 	/**
-	 * 
+	 * Makes follower follow followee. Their recent posts are copied into the
+	 * follower's feed, and later ones are fanned out to it as they are posted
+	 * @param follower
+	 * @param followee
+	 * @return false if followee does not exist, is the follower or is already followed
+	 * @throws SQLException
+	 */
+	public boolean follow(final String follower, final String followee) throws SQLException
+	{
+		if (follower.equals(followee) || getUser(followee) == null) return false;
+		// In the graph before the transaction, so a post committed meanwhile is either fanned out or backfilled
+		if (!FOLLOWS.add(follower, followee)) return false;
+		boolean done = false;
+		try {
+			STORAGE.follow(follower, followee, new Storage.Work() {
+				public void run(Storage.Transaction tx) throws SQLException {
+					TIMELINES.followed(tx, follower, followee);
+				}
+			});
+			done = true;
+		} finally {
+			if (!done) FOLLOWS.remove(follower, followee);
+			TIMELINES.invalidate(follower);
+		}
+		VERSIONS.changed(follower);
+		VERSIONS.changed(followee);
+		return true;
+	}
+
+	/**
+	 * Makes follower stop following followee, removing their posts from the follower's feed
+	 * @param follower
+	 * @param followee
+	 * @return false if follower did not follow followee
+	 * @throws SQLException
+	 */
+	public boolean unfollow(final String follower, final String followee) throws SQLException
+	{
+		if (!FOLLOWS.remove(follower, followee)) return false;
+		boolean done = false;
+		try {
+			STORAGE.unfollow(follower, followee, new Storage.Work() {
+				public void run(Storage.Transaction tx) throws SQLException {
+					TIMELINES.unfollowed(tx, follower, followee);
+				}
+			});
+			done = true;
+		} finally {
+			if (!done) FOLLOWS.add(follower, followee);
+			TIMELINES.invalidate(follower);
+		}
+		VERSIONS.changed(follower);
+		VERSIONS.changed(followee);
+		return true;
+	}
+
+	/**
+	 * The version of a feed or profile page, which changes whenever what the page
+	 * shows may have. Read it before rendering the page. Kept in memory, so checking
+	 * a client's copy of a page does not touch the database
+	 * @param username The user the page is about
+	 * @param newsfeed Whether the page is the user's newsfeed rather than their profile
+	 * @return A time in milliseconds, no earlier than getVersionEpoch()
+	 */
+	public long getPageVersion(String username, boolean newsfeed)
+	{
+		return newsfeed ? VERSIONS.feed(username, TIMELINES.celebritiesFollowedBy(username)) : VERSIONS.profile(username);
+	}
+
+	/**
+	 * @return When page versions started counting, which is when this process started
+	 */
+	public long getVersionEpoch()
+	{
+		return VERSIONS.boot();
+	}
+
+	/**
+	 * @return Whether follower follows followee
+	 */
+	public boolean isFollowing(String follower, String followee)
+	{
+		return FOLLOWS.follows(follower, followee);
+	}
+
+	/**
+	 * @return Users followed by those username follows, most shared first
+	 */
+	public List<String> getSuggestions(String username, int limit)
+	{
+		return FOLLOWS.suggestions(username, limit);
+	}
+
+	/**
+	 * Looks a session up in memory, reading storage only if it is not cached. A session
+	 * found to have expired is ended
 	 * @param sessionID
-	 * @return
-	 * @throws SQLException0
+	 * @return The user that owns the session, or null if there is none
+	 * @throws SQLException
 	 */
 	public String getUsernameByID(String sessionID) throws SQLException
 	{
-		PreparedStatement prepStmt = conn.prepareStatement("SELECT username FROM USER WHERE sessionID = ?");
-		prepStmt.setString(1, sessionID);
-		ResultSet rs = prepStmt.executeQuery();
-		return rs.getString("username");
+		String username = SESSIONS.get(sessionID);
+		if (username == SessionStore.EXPIRED) {
+			endSession(sessionID);
+			return null;
+		}
+		if (username != null) return username;
+		Session session = STORAGE.getSession(sessionID);
+		if (session == null) return null;
+		if (session.isExpired(System.currentTimeMillis())) {
+			STORAGE.endSession(sessionID);
+			return null;
+		}
+		SESSIONS.put(session);
+		return session.getUsername();
+	}
+
+	/**
+	 * Logs a session out; its token is no longer accepted
+	 * @param sessionID
+	 * @throws SQLException
+	 */
+	public void endSession(String sessionID) throws SQLException
+	{
+		SESSIONS.remove(sessionID);
+		STORAGE.endSession(sessionID);
 	}
 
 	/**
@@ -186,7 +468,20 @@ public class DBPortal {
 	 */
 	public String getNewsFeedHTML(String username) throws FileNotFoundException, SQLException
 	{
-		return getHTML(username,true);
+		return getHTML(username,username,true,null);
+	}
+
+	/**
+	 * Dynamically generates an HTML page for one page of username's news feed
+	 * @param username The user requesting a news feed
+	 * @param before Cursor from the previous page's "older" link, or null for the first page
+	 * @return HTML page for the news feed
+	 * @throws FileNotFoundException one of the template HTML files is missing
+	 * @throws SQLException There was an error in twotter.db or with the username
+	 */
+	public String getNewsFeedHTML(String username, String before) throws FileNotFoundException, SQLException
+	{
+		return getHTML(username,username,true,before);
 	}
 
 	/**
@@ -198,7 +493,20 @@ public class DBPortal {
 	 */	
 	public String getProfileHTML(String username) throws FileNotFoundException, SQLException
 	{
-		return getHTML(username,false);
+		return getHTML(null,username,false,null);
+	}
+
+	/**
+	 * Dynamically generates an HTML page for one page of username's profile
+	 * @param username The user who's profile is being requested
+	 * @param before Cursor from the previous page's "older" link, or null for the first page
+	 * @return HTML page for the profile
+	 * @throws FileNotFoundException one of the template HTML files is missing
+	 * @throws SQLException There was an error in twotter.db or with the username
+	 */	
+	public String getProfileHTML(String username, String before) throws FileNotFoundException, SQLException
+	{
+		return getHTML(null,username,false,before);
 	}
 
 	/**
@@ -210,59 +518,258 @@ public class DBPortal {
 	 */
 	public String getProfileHTML_SessionID(String sessionID) throws FileNotFoundException, SQLException
 	{
-		return getHTML(getUsernameByID(sessionID),false);
+		String username = getUsernameByID(sessionID);
+		return getHTML(username,username,false,null);
 	}
 
 	/**
 	 * Dynamically generates an HTML page for either a newsfeed or a profile
+	 * @param viewer The logged in user the page is for, or null to leave out the follow button
 	 * @param username The user who's information is to be retrieved
 	 * @param newsfeed If true - retrieves a newsfeed for username, else - retrieves the profile for username
+	 * @param before Cursor of the page to retrieve, or null for the first page
 	 * @return String of HTML. If the requested user does not exist, returns null
 	 * @throws FileNotFoundException One of the HTML template files is missing
 	 * @throws SQLException twotter.db has an error or an error in SQL inputs
 	 */
-	private String getHTML(String username, boolean newsfeed) throws FileNotFoundException, SQLException
+	public String getHTML(String viewer, String username, boolean newsfeed, String before) throws FileNotFoundException, SQLException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			if (!writeHTML(viewer, username, newsfeed, before, out)) return null;
+		} catch (FileNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);	// ByteArrayOutputStream does not throw
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Streams one page of a newsfeed or a profile as UTF-8. The page header is written
+	 * and flushed first, then each post as it is read, then the footer with a link to
+	 * the next page if there may be one
+	 * @param viewer The logged in user the page is for, or null to leave out the follow button
+	 * @param username The user who's information is to be retrieved
+	 * @param newsfeed If true - writes a newsfeed for username, else - writes the profile for username
+	 * @param before Cursor of the page to write, or null for the first page
+	 * @param out Destination of the page. Nothing is written if the user does not exist
+	 * @return false if the requested user does not exist
+	 * @throws FileNotFoundException One of the HTML template files is missing
+	 * @throws SQLException twotter.db has an error or an error in SQL inputs
+	 * @throws IOException out could not be written
+	 */
+	public boolean writeHTML(String viewer, String username, boolean newsfeed, String before, OutputStream out) throws SQLException, IOException
+	{
+		String userHTML = getUserHTML(username);
+		if (userHTML == null) return false;
+		String followHTML = getFollowHTML(viewer, username, newsfeed);
+		Template page = Template.get(TEMPLATES + "template.html", PAGE_SLOTS);
+		StringBuilder sb = new StringBuilder();
+		page.renderUntil(sb, POSTS_SLOT, userHTML, followHTML, null, null);
+		write(sb, out);
+		out.flush();
+		PageCursor next = writePosts(username, newsfeed, PageCursor.parse(before), out, sb);
+		String more = "";
+		if (next != null) {
+			String link = (newsfeed ? "TwOtter" : URLEncoder.encode(username, "UTF-8")) + "?before=" + next;
+			more = Template.get(TEMPLATES + "more_posts.html", MORE_SLOTS).render(Template.escape(link));
+		}
+		page.renderAfter(sb, POSTS_SLOT, userHTML, followHTML, null, more);
+		write(sb, out);
+		return true;
+	}
+
+	/**
+	 * Streams a page as seen by its own user
+	 * @see #writeHTML(String, String, boolean, String, OutputStream)
+	 */
+	public boolean writeHTML(String username, boolean newsfeed, String before, OutputStream out) throws SQLException, IOException
+	{
+		return writeHTML(newsfeed ? username : null, username, newsfeed, before, out);
+	}
+
+	/**
+	 * Dynamically generates an HTML page of search results
+	 * @see #writeSearchHTML
+	 */
+	public String getSearchHTML(String username, String query, boolean recent, String before) throws FileNotFoundException, SQLException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			if (!writeSearchHTML(username, query, recent, before, out)) return null;
+		} catch (FileNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);	// ByteArrayOutputStream does not throw
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Streams one page of search results as UTF-8, laid out like a news feed
+	 * @param username The user searching, whose information is shown beside the results
+	 * @param query Words to search posts and usernames for
+	 * @param recent If true - posts with every word, newest first, a page at a time,
+	 * else - the posts that best match any of the words
+	 * @param before Post ID from the previous page's "older" link, or null for the first page
+	 * @param out Destination of the page. Nothing is written if the user does not exist
+	 * @return false if the searching user does not exist
+	 * @throws FileNotFoundException One of the HTML template files is missing
+	 * @throws SQLException twotter.db has an error or an error in SQL inputs
+	 * @throws IOException out could not be written
+	 */
+	public boolean writeSearchHTML(String username, String query, boolean recent, String before, OutputStream out) throws SQLException, IOException
+	{
+		String userHTML = getUserHTML(username);
+		if (userHTML == null) return false;
+		Template page = Template.get(TEMPLATES + "template.html", PAGE_SLOTS);
+		StringBuilder sb = new StringBuilder();
+		page.renderUntil(sb, POSTS_SLOT, userHTML, "", null, null);
+		write(sb, out);
+		out.flush();
+		long[] ids;
+		if (recent) {
+			long beforeID = 0;
+			try {
+				if (before != null) beforeID = Long.parseLong(before);
+			} catch (NumberFormatException e) {}	// start from the newest
+			ids = SEARCH.searchRecent(query, beforeID, PAGE_SIZE);
+		}
+		else {
+			ids = SEARCH.searchRanked(query, PAGE_SIZE);
+		}
+		writePostsByID(ids, out, sb);
+		String more = "";
+		if (recent && ids.length == PAGE_SIZE) {
+			String link = "search?q=" + URLEncoder.encode(query, "UTF-8") + "&sort=recent&before=" + ids[ids.length - 1];
+			more = Template.get(TEMPLATES + "more_posts.html", MORE_SLOTS).render(Template.escape(link));
+		}
+		page.renderAfter(sb, POSTS_SLOT, userHTML, "", null, more);
+		write(sb, out);
+		return true;
+	}
+
+	/**
+	 * Renders posts in the order of their IDs, as posted by their authors
+	 * @param ids At most PAGE_SIZE post IDs
+	 */
+	private void writePostsByID(final long[] ids, OutputStream out, StringBuilder sb) throws SQLException, IOException
+	{
+		final List<Post> posts = new ArrayList<Post>();
+		if (ids.length > 0) {
+			STORAGE.read(new Storage.Work() {
+				public void run(Storage.Transaction tx) throws SQLException {
+					posts.addAll(STORAGE.getPosts(tx, ids));
+				}
+			});
+		}
+		Map<Long, byte[]> rendered = new HashMap<Long, byte[]>();
+		ByteArrayOutputStream html = new ByteArrayOutputStream();
+		for (Post p : posts) {
+			FRAGMENTS.write(p, html);
+			rendered.put(p.getPostID(), html.toByteArray());
+			html.reset();
+		}
+		for (long id : ids) {
+			byte[] post = rendered.get(id);
+			if (post != null) out.write(post);
+		}
+		if (rendered.isEmpty()) {
+			Template.get(TEMPLATES + "nothing_here.html").render(sb);
+			write(sb, out);
+		}
+	}
+
+	/**
+	 * @param username
+	 * @return The user rendered through user_template.html, or null if there is no such user
+	 */
+	private String getUserHTML(String username) throws SQLException, FileNotFoundException
 	{
 		User u = getUser(username);
 		if (u == null) return null;
-		String userHTML = getUser(username).toHTML();
-		String postHTML = "";
-		ArrayList<Post> posts = getPosts(username,newsfeed);
-		if (posts.size() == 0) postHTML = readFile("src/backend/HTMLTemplates/nothing_here.html");
-		for (Post p : posts) postHTML += p.toHTML();
-		String tempF = DBPortal.readFile("src" + DBPortal.SEP + "backend" + DBPortal.SEP + "HTMLTemplates" + DBPortal.SEP + "template.html");
-		String page = tempF.replaceFirst("%userInformation%", userHTML);
-		page = page.replaceFirst("%posts%", postHTML);
-		return page;
+		String html = USERS.getHTML(username);
+		return html != null ? html : u.toHTML();	// evicted since getUser()
+	}
+
+	/**
+	 * Renders who a user follows and is followed by. It changes with every follow, so
+	 * unlike the user's own box it is not cached
+	 * @param viewer The logged in user, who gets a follow or unfollow button on
+	 * someone else's profile, or null for none
+	 * @param username The user the page is about
+	 * @param newsfeed Whether to suggest users to follow, on the user's own feed
+	 * @return The box rendered through follow_template.html
+	 */
+	private String getFollowHTML(String viewer, String username, boolean newsfeed) throws FileNotFoundException, UnsupportedEncodingException
+	{
+		String action = "";
+		if (viewer != null && !viewer.equals(username)) {
+			boolean following = FOLLOWS.follows(viewer, username);
+			action = Template.get(TEMPLATES + "follow_button.html", BUTTON_SLOTS).render(
+					following ? "" : " btn-primary",
+					following ? "unfollow" : "follow",
+					URLEncoder.encode(username, "UTF-8"),
+					following ? "Unfollow" : "Follow");
+		}
+		String suggestions = "";
+		if (newsfeed) {
+			StringBuilder sb = new StringBuilder();
+			Template suggestion = Template.get(TEMPLATES + "follow_suggestion.html", SUGGESTION_SLOTS);
+			for (String s : FOLLOWS.suggestions(username, SUGGESTIONS)) suggestion.render(sb, s);
+			if (sb.length() > 0) suggestions = "<h4>Who to follow</h4><ul class=\"unstyled\">" + sb + "</ul>";
+		}
+		return Template.get(TEMPLATES + "follow_template.html", FOLLOW_SLOTS).render(
+				Integer.toString(FOLLOWS.followerCount(username)),
+				Integer.toString(FOLLOWS.followeeCount(username)),
+				action, suggestions);
 	}
 
+	/**
+	 * Renders a page of a user's feed from their timeline, or of their own posts
+	 * @return The cursor of the following page, or null if this page was the last
+	 */
+	private PageCursor writePosts(final String username, final boolean newsfeed, final PageCursor before, OutputStream out, StringBuilder sb) throws SQLException, IOException
+	{
+		final List<Post> posts = new ArrayList<Post>(PAGE_SIZE);
+		STORAGE.read(new Storage.Work() {
+			public void run(Storage.Transaction tx) throws SQLException {
+				posts.addAll(newsfeed ? TIMELINES.read(tx, username, before, PAGE_SIZE) : STORAGE.getUserPosts(tx, username, before, PAGE_SIZE));
+			}
+		});
+		PageCursor last = null;
+		for (Post p : posts) {
+			FRAGMENTS.write(p, out);
+			last = PageCursor.after(p);
+		}
+		if (posts.isEmpty()) {
+			Template.get(TEMPLATES + "nothing_here.html").render(sb);
+			write(sb, out);
+		}
+		return posts.size() == PAGE_SIZE ? last : null;
+	}
 
-	private ArrayList<Post> getPosts(String username, boolean newsfeed) throws SQLException
+	/**
+	 * Writes sb to out as UTF-8 and empties it for reuse
+	 */
+	private static void write(StringBuilder sb, OutputStream out) throws IOException
 	{
-		ArrayList<Post> posts = new ArrayList<Post>();
-		PreparedStatement prepStmt = conn.prepareStatement(newsfeed ? GET_FEED_STATEMENT : GET_USER_POSTS_STATEMENT);
-		prepStmt.setString(1, username);
-		ResultSet rs = prepStmt.executeQuery();
-		while (rs.next()) posts.add(new Post(rs));
-		rs.close();
-		return posts;
+		out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+		sb.setLength(0);
 	}
 
 	private User getUser(String username) throws SQLException
 	{
-		User u = null;
-		PreparedStatement prepStmt = conn.prepareStatement(GET_USER_INFO_STATEMENT);
-		prepStmt.setString(1, username);
-		ResultSet rs = prepStmt.executeQuery();
-		rs.next();
-		try{
-			u = new User(rs.getString(1),rs.getString(2),rs.getString(3),rs.getString(4),rs.getString(5));
-		}catch(Exception e)	{
-			return null;
-		}
-		finally{
-			rs.close();
+		User u = USERS.get(username);
+		if (u != null || USERS.isMissing(username)) {
+			USER_HITS.increment();
+			return u;
 		}
+		USER_MISSES.increment();
+		long stamp = USERS.stamp();
+		u = STORAGE.getUser(username);
+		USERS.put(username, u, stamp);
 		return u;
 	}
 
@@ -282,14 +789,12 @@ public class DBPortal {
 			/* Instead of using default, pass in a decoder. */
 			return Charset.defaultCharset().decode(bb).toString();
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error("Could not read " + pathname, e);
 		}
 		finally {
 			try {
 				stream.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			} catch (IOException e) {}
 		}
 		return null;
 	}
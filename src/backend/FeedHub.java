@@ -0,0 +1,253 @@
+package backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes new posts to the open live streams of their author's followers, as
+ * Server-Sent Events carrying the rendered post, so a feed that is open updates
+ * itself instead of being reloaded. PostWriter publishes each post once it
+ * commits. Every stream has a bounded queue of events; a stream that falls that
+ * far behind is evicted rather than buffered for. Its connection is closed, which
+ * also frees a request blocked writing to a client that stopped reading, and the
+ * page reloads when it reconnects. A server that can write without blocking, as the
+ * nio front end can, hands the stream to a Sink once its head is sent, so an open
+ * stream holds no thread
+ */
+public class FeedHub {
+
+	// Most streams open at once. Each holds a server thread while it is open, except
+	// in nio mode, where the selector writes them
+	private static final int MAX_STREAMS = Integer.getInteger("twotter.maxStreams",
+			"nio".equals(System.getProperty("twotter.mode")) ? 10000 : 16);
+	// Events queued for a stream before it is evicted
+	private static final int QUEUE_SIZE = Integer.getInteger("twotter.streamQueue", 64);
+
+	private static final StripedCounter EVENTS =
+			Metrics.counter("twotter_stream_events_total", "Posts pushed to live streams").get();
+	private static final StripedCounter EVICTIONS =
+			Metrics.counter("twotter_stream_evictions_total", "Live streams closed for falling behind").get();
+
+	/**
+	 * Takes a stream's events as they are published, instead of a thread polling for them
+	 */
+	public interface Sink {
+		/**
+		 * Queues an event to be written. Called on the publishing thread, so must not block
+		 * @return false if the stream has fallen too far behind, and is to be evicted
+		 */
+		boolean offer(byte[] event);
+	}
+
+	/**
+	 * One open stream, read by the request serving it or handed to a Sink
+	 */
+	public class Subscription {
+		final String username;
+		private final Closeable connection;
+		private final ArrayBlockingQueue<byte[]> events = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+		private volatile boolean evicted;
+		private Sink sink;	// guarded by this; null while events are queued for poll()
+
+		Subscription(String username, Closeable connection)
+		{
+			this.username = username;
+			this.connection = connection;
+		}
+
+		/**
+		 * @param timeout Milliseconds to wait for an event
+		 * @return The next event, ready to write, or null if none arrived in time
+		 */
+		public byte[] poll(long timeout) throws InterruptedException
+		{
+			return events.poll(timeout, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * @return The next event if one is waiting, else null
+		 */
+		public byte[] poll()
+		{
+			return events.poll();
+		}
+
+		/**
+		 * @return Whether the stream fell behind and should be ended
+		 */
+		public boolean isEvicted()
+		{
+			return evicted;
+		}
+
+		/**
+		 * Stops events to this stream; call when it ends for any reason
+		 */
+		public void close()
+		{
+			unsubscribe(this);
+		}
+
+		/**
+		 * Sends the events queued so far, and every later one, to sink instead of
+		 * queueing them for poll()
+		 * @return false if the stream was evicted meanwhile
+		 */
+		public synchronized boolean handOff(Sink sink)
+		{
+			byte[] event;
+			while ((event = events.poll()) != null) {
+				if (!sink.offer(event)) {
+					evict();
+					return false;
+				}
+			}
+			this.sink = sink;
+			return !evicted;
+		}
+
+		synchronized void push(byte[] event)
+		{
+			if (evicted) return;
+			if (sink != null ? sink.offer(event) : events.offer(event)) {
+				EVENTS.increment();
+				return;
+			}
+			evict();
+		}
+
+		private void evict()
+		{
+			evicted = true;
+			events.clear();
+			EVICTIONS.increment();
+			unsubscribe(this);
+			try {
+				connection.close();
+			} catch (IOException e) {
+				Log.warn("Could not close an evicted stream of " + username, e);
+			}
+		}
+	}
+
+	private final FollowGraph follows;
+	private final FragmentCache fragments;
+	// Open streams by username; several if the user has several tabs open. Replaced, never changed
+	private final ConcurrentHashMap<String, Subscription[]> streams = new ConcurrentHashMap<String, Subscription[]>();
+	private final AtomicInteger open = new AtomicInteger();
+
+	/**
+	 * @param follows Who gets each post
+	 * @param fragments Where posts are rendered
+	 */
+	public FeedHub(FollowGraph follows, FragmentCache fragments)
+	{
+		this.follows = follows;
+		this.fragments = fragments;
+		Metrics.gauge("twotter_streams", "Live streams open", new Metrics.Gauge() {
+			public double value() {
+				return open.get();
+			}
+		});
+	}
+
+	/**
+	 * Opens a stream of the posts arriving in a user's feed
+	 * @param username
+	 * @param connection Closed if the stream is evicted
+	 * @return The stream, or null if MAX_STREAMS are already open
+	 */
+	public Subscription subscribe(String username, Closeable connection)
+	{
+		if (open.incrementAndGet() > MAX_STREAMS) {
+			open.decrementAndGet();
+			return null;
+		}
+		Subscription s = new Subscription(username, connection);
+		synchronized (streams) {
+			Subscription[] current = streams.get(username);
+			Subscription[] updated = current == null ? new Subscription[1] : Arrays.copyOf(current, current.length + 1);
+			updated[updated.length - 1] = s;
+			streams.put(username, updated);
+		}
+		return s;
+	}
+
+	private void unsubscribe(Subscription s)
+	{
+		synchronized (streams) {
+			Subscription[] current = streams.get(s.username);
+			if (current == null) return;
+			int i = 0;
+			while (i < current.length && current[i] != s) i++;
+			if (i == current.length) return;	// already removed
+			if (current.length == 1) {
+				streams.remove(s.username);
+			}
+			else {
+				Subscription[] updated = new Subscription[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, updated.length - i);
+				streams.put(s.username, updated);
+			}
+		}
+		open.decrementAndGet();
+	}
+
+	/**
+	 * Pushes a committed post to the streams of everyone whose feed it is in. It is
+	 * rendered only if one of them has a stream open
+	 * @param post The new post or repost
+	 * @param followers The followers it was fanned out to, from TimelineStore.fanOut();
+	 * empty for a widely followed author, whose followers are found from the streams
+	 */
+	public void publish(Post post, List<String> followers)
+	{
+		if (streams.isEmpty()) return;
+		byte[] event = null;
+		if (!followers.isEmpty() && followers.size() <= streams.size()) {
+			for (String follower : followers) {
+				Subscription[] subs = streams.get(follower);
+				if (subs == null) continue;
+				if (event == null && (event = event(post)) == null) return;
+				for (Subscription s : subs) s.push(event);
+			}
+		}
+		else {
+			String author = post.getPostedBy();
+			for (Map.Entry<String, Subscription[]> e : streams.entrySet()) {
+				if (!follows.follows(e.getKey(), author)) continue;
+				if (event == null && (event = event(post)) == null) return;
+				for (Subscription s : e.getValue()) s.push(event);
+			}
+		}
+	}
+
+	/*
+	 * The post rendered as an event: its HTML split into data lines. Null if it could not be rendered
+	 */
+	private byte[] event(Post post)
+	{
+		ByteArrayOutputStream html = new ByteArrayOutputStream();
+		try {
+			fragments.write(post, html);
+		} catch (IOException e) {
+			Log.error("Could not render post " + post.getPostID() + " for live streams", e);
+			return null;
+		}
+		StringBuilder sb = new StringBuilder("event: post\nid: ").append(post.getPostID()).append('\n');
+		for (String line : new String(html.toByteArray(), StandardCharsets.UTF_8).split("\r?\n")) {
+			sb.append("data: ").append(line).append('\n');
+		}
+		return sb.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,533 @@
+package backend;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The FOLLOWING table held in memory, in both directions, so follower counts,
+ * "does a follow b" and the followers a post fans out to need no query. Users are
+ * numbered as they are first seen and each direction is a compressed sparse row
+ * array: the followees (or followers) of user i are edges[offsets[i]] up to
+ * edges[offsets[i + 1]], sorted, as plain ints. A follow or unfollow copies the
+ * affected rows out into growable arrays of their own; once many rows have been
+ * copied out the arrays are rebuilt. Storage stays the record; this is loaded
+ * from it at startup and updated alongside it
+ */
+public class FollowGraph {
+
+	// Followees of followees looked at per suggestion, at each of the two hops
+	private static final int SUGGESTION_FANOUT = Integer.getInteger("twotter.suggestionFanout", 200);
+	// Most followed users kept, suggested to users who follow no one yet
+	private static final int POPULAR = 50;
+	// How long suggestions are reused, in milliseconds, unless the user follows or unfollows someone
+	private static final long SUGGESTION_TTL = Long.getLong("twotter.suggestionTtl", 60000);
+	// Most users whose suggestions are kept
+	private static final int CACHED_SUGGESTIONS = Integer.getInteger("twotter.cachedSuggestions", 10000);
+
+	private static final StripedCounter SUGGESTION_HITS = Metrics.CACHE_REQUESTS.labels("suggestions", "hit");
+	private static final StripedCounter SUGGESTION_MISSES = Metrics.CACHE_REQUESTS.labels("suggestions", "miss");
+
+	/**
+	 * Edges in one direction
+	 */
+	private static class Adjacency {
+		int[] offsets = new int[1];
+		int[] edges = new int[0];
+		int baseNodes;				// users with a row in offsets
+		int[][] changed = new int[0][];	// rows copied out of edges since the last rebuild, null if not
+		int[] changedSize = new int[0];
+		int changedRows;
+
+		int degree(int id)
+		{
+			if (id < changed.length && changed[id] != null) return changedSize[id];
+			return id < baseNodes ? offsets[id + 1] - offsets[id] : 0;
+		}
+
+		boolean contains(int id, int target)
+		{
+			if (id < changed.length && changed[id] != null) return Arrays.binarySearch(changed[id], 0, changedSize[id], target) >= 0;
+			return id < baseNodes && Arrays.binarySearch(edges, offsets[id], offsets[id + 1], target) >= 0;
+		}
+
+		/**
+		 * @return The array holding the row, which is from start(id) to end(id)
+		 */
+		int[] array(int id)
+		{
+			if (id < changed.length && changed[id] != null) return changed[id];
+			return edges;
+		}
+
+		int start(int id)
+		{
+			if (id < changed.length && changed[id] != null) return 0;
+			return id < baseNodes ? offsets[id] : 0;
+		}
+
+		int end(int id)
+		{
+			return start(id) + degree(id);
+		}
+
+		/**
+		 * @return A copy of the row, sorted, at most max entries
+		 */
+		int[] row(int id, int max)
+		{
+			if (id < changed.length && changed[id] != null) return Arrays.copyOf(changed[id], Math.min(max, changedSize[id]));
+			if (id >= baseNodes) return new int[0];
+			return Arrays.copyOfRange(edges, offsets[id], offsets[id] + Math.min(max, offsets[id + 1] - offsets[id]));
+		}
+
+		void grow(int nodes)
+		{
+			if (nodes <= changed.length) return;
+			int n = Math.max(nodes, changed.length * 2);
+			changed = Arrays.copyOf(changed, n);
+			changedSize = Arrays.copyOf(changedSize, n);
+		}
+
+		/**
+		 * @return Whether the edge was added, false if it was already there
+		 */
+		boolean add(int id, int target)
+		{
+			int[] row = copyOut(id);
+			int size = changedSize[id];
+			int k = Arrays.binarySearch(row, 0, size, target);
+			if (k >= 0) return false;
+			k = -k - 1;
+			if (size == row.length) row = changed[id] = Arrays.copyOf(row, Math.max(4, size * 2));
+			System.arraycopy(row, k, row, k + 1, size - k);
+			row[k] = target;
+			changedSize[id]++;
+			return true;
+		}
+
+		/**
+		 * @return Whether the edge was removed, false if it was not there
+		 */
+		boolean remove(int id, int target)
+		{
+			int[] row = copyOut(id);
+			int size = changedSize[id];
+			int k = Arrays.binarySearch(row, 0, size, target);
+			if (k < 0) return false;
+			System.arraycopy(row, k + 1, row, k, size - k - 1);
+			changedSize[id]--;
+			return true;
+		}
+
+		private int[] copyOut(int id)
+		{
+			if (changed[id] == null) {
+				int[] row = row(id, Integer.MAX_VALUE);
+				changed[id] = row.length == 0 ? new int[4] : row;
+				changedSize[id] = row.length;
+				changedRows++;
+			}
+			return changed[id];
+		}
+
+		/**
+		 * Rebuilds offsets and edges from scratch, from pairs (from[i], to[i])
+		 */
+		void build(int nodes, int[] from, int[] to, int count)
+		{
+			offsets = new int[nodes + 1];
+			for (int i = 0; i < count; i++) offsets[from[i] + 1]++;
+			for (int i = 0; i < nodes; i++) offsets[i + 1] += offsets[i];
+			edges = new int[count];
+			int[] fill = Arrays.copyOf(offsets, nodes);
+			for (int i = 0; i < count; i++) edges[fill[from[i]]++] = to[i];
+			for (int i = 0; i < nodes; i++) Arrays.sort(edges, offsets[i], offsets[i + 1]);
+			baseNodes = nodes;
+			changed = new int[nodes][];
+			changedSize = new int[nodes];
+			changedRows = 0;
+		}
+
+		/**
+		 * Folds the copied out rows back into offsets and edges
+		 */
+		void compact(int nodes)
+		{
+			int[] newOffsets = new int[nodes + 1];
+			for (int i = 0; i < nodes; i++) newOffsets[i + 1] = newOffsets[i] + degree(i);
+			int[] newEdges = new int[newOffsets[nodes]];
+			for (int i = 0; i < nodes; i++) {
+				if (i < changed.length && changed[i] != null) System.arraycopy(changed[i], 0, newEdges, newOffsets[i], changedSize[i]);
+				else if (i < baseNodes) System.arraycopy(edges, offsets[i], newEdges, newOffsets[i], offsets[i + 1] - offsets[i]);
+			}
+			offsets = newOffsets;
+			edges = newEdges;
+			baseNodes = nodes;
+			changed = new int[nodes][];
+			changedSize = new int[nodes];
+			changedRows = 0;
+		}
+	}
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Adjacency followees = new Adjacency();
+	private final Adjacency followers = new Adjacency();
+
+	// Usernames by ID, and an open addressing table of IDs + 1 by username hash
+	private String[] names = new String[16];
+	private int nodes;
+	private int[] table = new int[32];
+
+	private int[] popular = new int[0];
+
+	/**
+	 * Suggestions computed for a user
+	 */
+	private static class Suggested {
+		final List<String> users;
+		final int limit;
+		final long computed = System.currentTimeMillis();
+
+		Suggested(List<String> users, int limit)
+		{
+			this.users = users;
+			this.limit = limit;
+		}
+	}
+
+	// Access order, so the least recently shown suggestions are evicted first
+	private final Map<String, Suggested> suggested = new LinkedHashMap<String, Suggested>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String, Suggested> eldest) {
+			return size() > CACHED_SUGGESTIONS;
+		}
+	};
+
+	// Counts and the users counted, reused by suggestions() on each thread
+	private static final ThreadLocal<int[][]> SCRATCH = new ThreadLocal<int[][]>() {
+		protected int[][] initialValue() {
+			return new int[][] {new int[0], new int[0]};
+		}
+	};
+
+	/**
+	 * Loads every follow
+	 * @param storage
+	 * @throws SQLException
+	 */
+	public void init(Storage storage) throws SQLException
+	{
+		long start = System.currentTimeMillis();
+		Edges edges = new Edges();
+		lock.writeLock().lock();
+		try {
+			storage.scanFollows(edges);
+			followees.build(nodes, edges.from, edges.to, edges.count);
+			followers.build(nodes, edges.to, edges.from, edges.count);
+			popular = mostFollowed();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		Log.info("Follow graph: " + nodes + " users, " + edges.count + " follows, in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/*
+	 * Follows as pairs of user numbers, as they are loaded. Runs under the write lock
+	 */
+	private class Edges implements Storage.FollowVisitor {
+		int[] from = new int[1024], to = new int[1024];
+		int count;
+
+		public void visit(String follower, String followee) {
+			if (count == from.length) {
+				from = Arrays.copyOf(from, count * 2);
+				to = Arrays.copyOf(to, count * 2);
+			}
+			from[count] = intern(follower);
+			to[count] = intern(followee);
+			count++;
+		}
+	}
+
+	/**
+	 * Records a follow, once it is in FOLLOWING or about to be
+	 * @return Whether it is new
+	 */
+	public boolean add(String follower, String followee)
+	{
+		lock.writeLock().lock();
+		try {
+			int a = intern(follower), b = intern(followee);
+			if (!followees.add(a, b)) return false;
+			followers.add(b, a);
+			maybeCompact();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		forget(follower);
+		return true;
+	}
+
+	/**
+	 * Records an unfollow
+	 * @return Whether follower did follow followee
+	 */
+	public boolean remove(String follower, String followee)
+	{
+		lock.writeLock().lock();
+		try {
+			int a = id(follower), b = id(followee);
+			if (a < 0 || b < 0 || !followees.remove(a, b)) return false;
+			followers.remove(b, a);
+			maybeCompact();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		forget(follower);
+		return true;
+	}
+
+	/*
+	 * Drops a user's suggestions after they follow or unfollow someone
+	 */
+	private void forget(String username)
+	{
+		synchronized (suggested) {
+			suggested.remove(username);
+		}
+	}
+
+	/**
+	 * @return Whether follower follows followee
+	 */
+	public boolean follows(String follower, String followee)
+	{
+		lock.readLock().lock();
+		try {
+			int a = id(follower), b = id(followee);
+			return a >= 0 && b >= 0 && followees.contains(a, b);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int followerCount(String username)
+	{
+		lock.readLock().lock();
+		try {
+			int id = id(username);
+			return id < 0 ? 0 : followers.degree(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int followeeCount(String username)
+	{
+		lock.readLock().lock();
+		try {
+			int id = id(username);
+			return id < 0 ? 0 : followees.degree(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Everyone following username
+	 */
+	public List<String> followers(String username)
+	{
+		lock.readLock().lock();
+		try {
+			int id = id(username);
+			return id < 0 ? new ArrayList<String>() : names(followers.row(id, Integer.MAX_VALUE));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param limit Only users with more followers than this
+	 * @return Users with more than limit followers
+	 */
+	public List<String> followedByMoreThan(int limit)
+	{
+		List<String> found = new ArrayList<String>();
+		lock.readLock().lock();
+		try {
+			for (int i = 0; i < nodes; i++)
+				if (followers.degree(i) > limit) found.add(names[i]);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return found;
+	}
+
+	/**
+	 * Users that the users username follows also follow, most often followed that
+	 * way first. Someone who follows no one is offered the most followed users.
+	 * Reused for SUGGESTION_TTL unless username follows or unfollows someone
+	 * @param username
+	 * @param limit Most users to suggest
+	 * @return Users username does not follow yet, never username
+	 */
+	public List<String> suggestions(String username, int limit)
+	{
+		Suggested s;
+		synchronized (suggested) {
+			s = suggested.get(username);
+		}
+		if (s != null && s.limit >= limit && System.currentTimeMillis() - s.computed < SUGGESTION_TTL) {
+			SUGGESTION_HITS.increment();
+			return s.users.subList(0, Math.min(limit, s.users.size()));
+		}
+		SUGGESTION_MISSES.increment();
+		List<String> users = compute(username, limit);
+		synchronized (suggested) {
+			suggested.put(username, new Suggested(Collections.unmodifiableList(users), limit));
+		}
+		return users;
+	}
+
+	private List<String> compute(String username, int limit)
+	{
+		lock.readLock().lock();
+		try {
+			int me = id(username);
+			int[] mine = me < 0 ? new int[0] : followees.row(me, Integer.MAX_VALUE);
+			int[][] scratch = SCRATCH.get();
+			if (scratch[0].length < nodes) {
+				scratch[0] = new int[Math.max(nodes, scratch[0].length * 2)];
+				scratch[1] = new int[scratch[0].length];
+			}
+			int[] counts = scratch[0], touched = scratch[1];
+			int touchedCount = 0;
+			int hops = Math.min(mine.length, SUGGESTION_FANOUT);
+			for (int i = 0; i < hops; i++) {
+				// Spread over everyone followed rather than the lowest IDs
+				int f = mine[(int) ((long) i * mine.length / hops)];
+				int[] row = followees.array(f);
+				int start = followees.start(f), end = Math.min(followees.end(f), start + SUGGESTION_FANOUT);
+				for (int k = start; k < end; k++) {
+					int g = row[k];
+					if (g == me || Arrays.binarySearch(mine, g) >= 0) continue;
+					if (counts[g]++ == 0) touched[touchedCount++] = g;
+				}
+			}
+			if (touchedCount == 0) {
+				for (int p : popular) {
+					if (p == me || Arrays.binarySearch(mine, p) >= 0) continue;
+					counts[p] = 1;
+					touched[touchedCount++] = p;
+				}
+			}
+			int[] best = top(counts, touched, touchedCount, limit);
+			for (int i = 0; i < touchedCount; i++) counts[touched[i]] = 0;
+			return names(best);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * The limit candidates with the highest counts, ties going to the most followed
+	 */
+	private int[] top(int[] counts, int[] candidates, int n, int limit)
+	{
+		int[] best = new int[Math.min(limit, n)];
+		int size = 0;
+		for (int i = 0; i < n; i++) {
+			int c = candidates[i];
+			int pos = size;
+			while (pos > 0 && better(counts, c, best[pos - 1])) pos--;
+			if (pos >= best.length) continue;
+			int end = Math.min(size, best.length - 1);
+			System.arraycopy(best, pos, best, pos + 1, end - pos);
+			best[pos] = c;
+			if (size < best.length) size++;
+		}
+		return best;
+	}
+
+	private boolean better(int[] counts, int a, int b)
+	{
+		if (counts[a] != counts[b]) return counts[a] > counts[b];
+		return followers.degree(a) > followers.degree(b);
+	}
+
+	private int[] mostFollowed()
+	{
+		int[] all = new int[nodes];
+		int[] degrees = new int[nodes];
+		for (int i = 0; i < nodes; i++) {
+			all[i] = i;
+			degrees[i] = followers.degree(i);
+		}
+		return top(degrees, all, nodes, POPULAR);
+	}
+
+	private void maybeCompact()
+	{
+		if (followees.changedRows + followers.changedRows > Math.max(1024, nodes / 4)) {
+			followees.compact(nodes);
+			followers.compact(nodes);
+			popular = mostFollowed();
+		}
+	}
+
+	private List<String> names(int[] ids)
+	{
+		List<String> list = new ArrayList<String>(ids.length);
+		for (int id : ids) list.add(names[id]);
+		return list;
+	}
+
+	/*
+	 * ID of a known user, or -1
+	 */
+	private int id(String username)
+	{
+		int mask = table.length - 1;
+		for (int i = username.hashCode() & mask; ; i = (i + 1) & mask) {
+			int slot = table[i];
+			if (slot == 0) return -1;
+			if (names[slot - 1].equals(username)) return slot - 1;
+		}
+	}
+
+	/*
+	 * ID of a user, numbering them if new. Caller holds the write lock
+	 */
+	private int intern(String username)
+	{
+		int id = id(username);
+		if (id >= 0) return id;
+		if (nodes == names.length) names = Arrays.copyOf(names, nodes * 2);
+		names[nodes] = username;
+		id = nodes++;
+		followees.grow(nodes);
+		followers.grow(nodes);
+		if (nodes * 2 > table.length) {
+			table = new int[table.length * 2];
+			for (int i = 0; i < nodes; i++) place(i);
+		} else {
+			place(id);
+		}
+		return id;
+	}
+
+	private void place(int id)
+	{
+		int mask = table.length - 1;
+		int i = names[id].hashCode() & mask;
+		while (table[i] != 0) i = (i + 1) & mask;
+		table[i] = id + 1;
+	}
+}
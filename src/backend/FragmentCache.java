@@ -0,0 +1,175 @@
+package backend;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Posts rendered through post_template.html, as UTF-8, keyed by post and by who
+ * posted or reposted it. A post never changes once created, so a fragment is
+ * rendered and escaped once and then written as it is into every feed showing it.
+ * The author's picture can change, so each fragment remembers the picture it was
+ * rendered with and is re-rendered if that no longer matches. Favorite and repost
+ * counts do change, so a fragment is kept as the bytes before and after its counts
+ * and the current counts are rendered between them each time it is written
+ */
+public class FragmentCache {
+
+	// Most bytes of rendered posts held
+	private static final long CAPACITY = Long.getLong("twotter.fragmentCache", 16L << 20);
+
+	private static final String COUNTS_TEMPLATE = DBPortal.TEMPLATES + "post_counts.html";
+	// Placeholders in post_counts.html
+	private static final String[] COUNTS_SLOTS = {"postID", "favorites", "reposts"};
+
+	private static class Key {
+		final long postID;
+		final String postedBy;
+
+		Key(long postID, String postedBy)
+		{
+			this.postID = postID;
+			this.postedBy = postedBy;
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return postID == k.postID && postedBy.equals(k.postedBy);
+		}
+
+		public int hashCode()
+		{
+			return (int) (postID ^ (postID >>> 32)) * 31 + postedBy.hashCode();
+		}
+	}
+
+	private static class Fragment {
+		final long postID;
+		final byte[] head;		// the post up to its counts
+		final byte[] tail;		// and after them
+		final String picture;
+		final Template template;
+
+		Fragment(long postID, byte[] head, byte[] tail, String picture, Template template)
+		{
+			this.postID = postID;
+			this.head = head;
+			this.tail = tail;
+			this.picture = picture;
+			this.template = template;
+		}
+
+		int size()
+		{
+			return head.length + tail.length;
+		}
+	}
+
+	private static final StripedCounter HITS = Metrics.CACHE_REQUESTS.labels("fragments", "hit");
+	private static final StripedCounter MISSES = Metrics.CACHE_REQUESTS.labels("fragments", "miss");
+
+	// Access order, so the least recently shown post is evicted first
+	private final LinkedHashMap<Key, Fragment> fragments = new LinkedHashMap<Key, Fragment>(1024, 0.75f, true);
+	private long bytes;
+	private final PostCounts counts;
+
+	/**
+	 * @param counts Where the favorite and repost counts written with each post come from
+	 */
+	public FragmentCache(PostCounts counts)
+	{
+		this.counts = counts;
+	}
+
+	/**
+	 * Writes a post if it is cached
+	 * @param postID
+	 * @param postedBy Who posted or reposted it
+	 * @param picture The author's current picture
+	 * @param out Where to write the rendered post
+	 * @return false, having written nothing, if it is not cached or is out of date
+	 * @throws FileNotFoundException post_template.html is missing
+	 * @throws IOException out could not be written
+	 */
+	public boolean write(long postID, String postedBy, String picture, OutputStream out) throws IOException
+	{
+		Fragment f = lookup(postID, postedBy, picture);
+		(f == null ? MISSES : HITS).increment();
+		if (f == null) return false;
+		write(f, out);
+		return true;
+	}
+
+	/**
+	 * Writes a post, from the cache if possible
+	 * @param p A post
+	 * @param out Where to write the rendered post
+	 * @throws FileNotFoundException post_template.html is missing
+	 * @throws IOException out could not be written
+	 */
+	public void write(Post p, OutputStream out) throws IOException
+	{
+		Fragment f = lookup(p.getPostID(), p.getPostedBy(), p.getPicture());
+		if (f != null) {
+			HITS.increment();
+		}
+		else {
+			Template t = Post.template();
+			String[] values = p.slotValues(null);
+			StringBuilder sb = new StringBuilder();
+			t.renderUntil(sb, Post.COUNTS_SLOT, values);
+			byte[] head = sb.toString().getBytes(StandardCharsets.UTF_8);
+			sb.setLength(0);
+			t.renderAfter(sb, Post.COUNTS_SLOT, values);
+			f = new Fragment(p.getPostID(), head, sb.toString().getBytes(StandardCharsets.UTF_8), p.getPicture(), t);
+			put(new Key(p.getPostID(), p.getPostedBy()), f);
+		}
+		write(f, out);
+	}
+
+	private void write(Fragment f, OutputStream out) throws IOException
+	{
+		out.write(f.head);
+		String id = Long.toString(f.postID);
+		String html = Template.get(COUNTS_TEMPLATE, COUNTS_SLOTS).render(id,
+				Long.toString(counts.favorites(f.postID)), Long.toString(counts.reposts(f.postID)));
+		out.write(html.getBytes(StandardCharsets.UTF_8));
+		out.write(f.tail);
+	}
+
+	/*
+	 * The cached fragment, without counting the lookup, for write(Post) which a caller of write(long...) may retry with
+	 */
+	private Fragment lookup(long postID, String postedBy, String picture) throws FileNotFoundException
+	{
+		Template t = Post.template();
+		Fragment f;
+		synchronized (this) {
+			f = fragments.get(new Key(postID, postedBy));
+		}
+		if (f == null || f.template != t || !equal(f.picture, picture)) return null;
+		return f;
+	}
+
+	private synchronized void put(Key key, Fragment f)
+	{
+		Fragment old = fragments.put(key, f);
+		if (old != null) bytes -= old.size();
+		bytes += f.size();
+		Iterator<Fragment> it = fragments.values().iterator();
+		while (bytes > CAPACITY && it.hasNext()) {
+			bytes -= it.next().size();
+			it.remove();
+		}
+	}
+
+	private static boolean equal(String a, String b)
+	{
+		return a == null ? b == null : a.equals(b);
+	}
+}
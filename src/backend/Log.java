@@ -0,0 +1,148 @@
+package backend;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Leveled logging to standard error, written by a background thread so a request
+ * never waits on the console. Messages below the level set with -Dtwotter.log
+ * (error, warn, info or debug; info by default) are dropped before anything is
+ * formatted. If messages arrive faster than they can be written the excess is
+ * dropped and counted rather than slowing the server down
+ */
+public class Log {
+
+	public static final int ERROR = 0;
+	public static final int WARN = 1;
+	public static final int INFO = 2;
+	public static final int DEBUG = 3;
+
+	private static final String[] NAMES = {"ERROR", "WARN", "INFO", "DEBUG"};
+
+	private static final int LEVEL = level(System.getProperty("twotter.log", "info"));
+	// Messages waiting to be written before more are dropped
+	private static final int QUEUE_SIZE = Integer.getInteger("twotter.logQueue", 10000);
+
+	private static final BlockingQueue<Record> QUEUE = new ArrayBlockingQueue<Record>(QUEUE_SIZE);
+	private static final StripedCounter DROPPED =
+			Metrics.counter("twotter_log_dropped_total", "Log messages dropped because the log queue was full").get();
+	private static final Metrics.Family<StripedCounter> MESSAGES =
+			Metrics.counter("twotter_log_messages_total", "Log messages, by level", "level");
+
+	private static class Record {
+		final int level;
+		final long time;
+		final String thread;
+		final String message;
+		final Throwable error;
+
+		Record(int level, String message, Throwable error)
+		{
+			this.level = level;
+			this.time = System.currentTimeMillis();
+			this.thread = Thread.currentThread().getName();
+			this.message = message;
+			this.error = error;
+		}
+	}
+
+	static {
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "twotter-log");
+		writer.setDaemon(true);
+		writer.start();
+		// Write what is still queued when the process exits
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				drain(System.err, new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS"));
+			}
+		});
+	}
+
+	/**
+	 * @param level ERROR, WARN, INFO or DEBUG
+	 * @return Whether messages at that level are logged; check before building an expensive message
+	 */
+	public static boolean enabled(int level)
+	{
+		return level <= LEVEL;
+	}
+
+	public static void error(String message, Throwable error)
+	{
+		log(ERROR, message, error);
+	}
+
+	public static void warn(String message)
+	{
+		log(WARN, message, null);
+	}
+
+	public static void warn(String message, Throwable error)
+	{
+		log(WARN, message, error);
+	}
+
+	public static void info(String message)
+	{
+		log(INFO, message, null);
+	}
+
+	public static void debug(String message)
+	{
+		log(DEBUG, message, null);
+	}
+
+	/**
+	 * @param level ERROR, WARN, INFO or DEBUG
+	 * @param message
+	 * @param error Printed with its stack trace after the message, may be null
+	 */
+	public static void log(int level, String message, Throwable error)
+	{
+		if (level > LEVEL) return;
+		MESSAGES.labels(NAMES[level]).increment();
+		if (!QUEUE.offer(new Record(level, message, error))) DROPPED.increment();
+	}
+
+	private static void writeLoop()
+	{
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		PrintStream out = System.err;
+		while (true) {
+			try {
+				write(out, format, QUEUE.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			drain(out, format);
+		}
+	}
+
+	private static synchronized void drain(PrintStream out, SimpleDateFormat format)
+	{
+		Record r;
+		while ((r = QUEUE.poll()) != null) write(out, format, r);
+		out.flush();
+	}
+
+	private static synchronized void write(PrintStream out, SimpleDateFormat format, Record r)
+	{
+		out.print(format.format(new Date(r.time)) + " " + NAMES[r.level] + " [" + r.thread + "] " + r.message + "\n");
+		if (r.error != null) r.error.printStackTrace(out);
+	}
+
+	private static int level(String name)
+	{
+		for (int i = 0; i < NAMES.length; i++) {
+			if (NAMES[i].equalsIgnoreCase(name)) return i;
+		}
+		return INFO;
+	}
+}
@@ -0,0 +1,292 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, histograms and gauges for the whole process, written out in the
+ * Prometheus text format by scrape(). A metric is registered once, by name, and
+ * has a child per combination of label values; callers on a hot path look the
+ * child up once and keep it. Counting never takes a lock
+ */
+public class Metrics {
+
+	// Latency bucket upper bounds, in seconds
+	private static final double[] LATENCY_BUCKETS = {
+		0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10,
+	};
+
+	// Every metric, in the order registered
+	private static final Map<String, Family<?>> FAMILIES = new LinkedHashMap<String, Family<?>>();
+
+	// Lookups in every cache that DBPortal and the server keep, labelled by cache and hit or miss
+	public static final Family<StripedCounter> CACHE_REQUESTS =
+			counter("twotter_cache_requests_total", "Cache lookups, by cache and result", "cache", "result");
+
+	/**
+	 * Something measured when scraped rather than counted as it happens
+	 */
+	public interface Gauge {
+		double value();
+	}
+
+	/**
+	 * Counts of observed durations in fixed buckets, with their sum. Each thread
+	 * counts into its own stripe of cells, as in StripedCounter
+	 */
+	public static class Histogram {
+		private final long[] bounds;		// bucket upper bounds in nanoseconds
+		private final int stride;			// cells per stripe: a count per bucket, +Inf, then the sum
+		private final AtomicLongArray cells;
+
+		Histogram(double[] boundSeconds)
+		{
+			bounds = new long[boundSeconds.length];
+			for (int i = 0; i < bounds.length; i++) bounds[i] = (long) (boundSeconds[i] * 1e9);
+			stride = (bounds.length + 2 + StripedCounter.PAD - 1) / StripedCounter.PAD * StripedCounter.PAD;
+			cells = new AtomicLongArray(StripedCounter.STRIPES * stride);
+		}
+
+		/**
+		 * @return A start time to pass to stop()
+		 */
+		public long start()
+		{
+			return System.nanoTime();
+		}
+
+		/**
+		 * Observes the time since start
+		 * @param start From start()
+		 */
+		public void stop(long start)
+		{
+			observe(System.nanoTime() - start);
+		}
+
+		/**
+		 * @param nanos A duration
+		 */
+		public void observe(long nanos)
+		{
+			int b = 0;
+			while (b < bounds.length && nanos > bounds[b]) b++;
+			int base = StripedCounter.stripe() * stride;
+			cells.getAndIncrement(base + b);
+			cells.getAndAdd(base + bounds.length + 1, nanos);
+		}
+
+		/*
+		 * @return Counts per bucket, not cumulative, +Inf last, then the sum in nanoseconds
+		 */
+		long[] snapshot()
+		{
+			long[] totals = new long[bounds.length + 2];
+			for (int s = 0; s < StripedCounter.STRIPES; s++) {
+				for (int i = 0; i < totals.length; i++) totals[i] += cells.get(s * stride + i);
+			}
+			return totals;
+		}
+	}
+
+	/**
+	 * A named metric and its children, one per combination of label values
+	 */
+	public static abstract class Family<T> {
+		final String name;
+		final String help;
+		final String type;
+		final String[] labelNames;
+		private final ConcurrentHashMap<String, T> children = new ConcurrentHashMap<String, T>();
+		private final ConcurrentHashMap<String, String[]> labelValues = new ConcurrentHashMap<String, String[]>();
+
+		Family(String name, String help, String type, String[] labelNames)
+		{
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.labelNames = labelNames;
+		}
+
+		/**
+		 * @param values One value per label name
+		 * @return The child for those values, created on first use
+		 */
+		public T labels(String... values)
+		{
+			if (values.length != labelNames.length)
+				throw new IllegalArgumentException(name + " takes " + labelNames.length + " labels");
+			String key = values.length == 1 ? values[0] : join(values);
+			T child = children.get(key);
+			if (child == null) {
+				labelValues.putIfAbsent(key, values.clone());
+				T created = create();
+				child = children.putIfAbsent(key, created);
+				if (child == null) child = created;
+			}
+			return child;
+		}
+
+		/**
+		 * @return The only child of a metric without labels
+		 */
+		public T get()
+		{
+			return labels();
+		}
+
+		abstract T create();
+
+		abstract void write(StringBuilder sb, String labels, T child);
+
+		void write(StringBuilder sb)
+		{
+			sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+			List<String> keys = new ArrayList<String>(children.keySet());
+			Collections.sort(keys);
+			for (String key : keys) write(sb, labelText(labelValues.get(key)), children.get(key));
+		}
+
+		private String labelText(String[] values)
+		{
+			if (values.length == 0) return "";
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < values.length; i++) {
+				sb.append(i == 0 ? '{' : ',').append(labelNames[i]).append("=\"");
+				escape(sb, values[i]);
+				sb.append('"');
+			}
+			return sb.append('}').toString();
+		}
+	}
+
+	/**
+	 * @param name Metric name, ending in _total by convention
+	 * @param help One line description
+	 * @param labelNames Names of the labels that tell children apart
+	 * @return The counter, registered on first call
+	 */
+	public static Family<StripedCounter> counter(String name, String help, String... labelNames)
+	{
+		return register(new Family<StripedCounter>(name, help, "counter", labelNames) {
+			StripedCounter create() {
+				return new StripedCounter();
+			}
+			void write(StringBuilder sb, String labels, StripedCounter child) {
+				sb.append(name).append(labels).append(' ').append(child.sum()).append('\n');
+			}
+		});
+	}
+
+	/**
+	 * A count of things in progress, such as open connections, that goes up and down
+	 * @return The gauge, registered on first call
+	 */
+	public static Family<StripedCounter> upDownCounter(String name, String help, String... labelNames)
+	{
+		return register(new Family<StripedCounter>(name, help, "gauge", labelNames) {
+			StripedCounter create() {
+				return new StripedCounter();
+			}
+			void write(StringBuilder sb, String labels, StripedCounter child) {
+				sb.append(name).append(labels).append(' ').append(child.sum()).append('\n');
+			}
+		});
+	}
+
+	/**
+	 * Durations in seconds, in buckets from 100us to 10s
+	 * @return The histogram, registered on first call
+	 */
+	public static Family<Histogram> timer(String name, String help, String... labelNames)
+	{
+		return register(new Family<Histogram>(name, help, "histogram", labelNames) {
+			Histogram create() {
+				return new Histogram(LATENCY_BUCKETS);
+			}
+			void write(StringBuilder sb, String labels, Histogram child) {
+				long[] counts = child.snapshot();
+				String open = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+				long cumulative = 0;
+				for (int i = 0; i <= LATENCY_BUCKETS.length; i++) {
+					cumulative += counts[i];
+					sb.append(name).append("_bucket").append(open).append("le=\"")
+							.append(i < LATENCY_BUCKETS.length ? Double.toString(LATENCY_BUCKETS[i]) : "+Inf")
+							.append("\"} ").append(cumulative).append('\n');
+				}
+				sb.append(name).append("_sum").append(labels).append(' ').append(counts[counts.length - 1] / 1e9).append('\n');
+				sb.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+			}
+		});
+	}
+
+	/**
+	 * Registers a value read when metrics are scraped
+	 * @param name Metric name
+	 * @param help One line description
+	 * @param gauge Reads the value; must be cheap and thread safe
+	 */
+	public static void gauge(String name, String help, final Gauge gauge)
+	{
+		register(new Family<Gauge>(name, help, "gauge", new String[0]) {
+			Gauge create() {
+				return gauge;
+			}
+			void write(StringBuilder sb, String labels, Gauge child) {
+				sb.append(name).append(labels).append(' ').append(child.value()).append('\n');
+			}
+		}).get();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Family<T> register(Family<T> family)
+	{
+		synchronized (FAMILIES) {
+			Family<?> existing = FAMILIES.get(family.name);
+			if (existing != null) {
+				if (!existing.type.equals(family.type))
+					throw new IllegalArgumentException(family.name + " is already registered as a " + existing.type);
+				return (Family<T>) existing;
+			}
+			FAMILIES.put(family.name, family);
+			return family;
+		}
+	}
+
+	/**
+	 * @return Every metric in the Prometheus text exposition format
+	 */
+	public static String scrape()
+	{
+		List<Family<?>> families;
+		synchronized (FAMILIES) {
+			families = new ArrayList<Family<?>>(FAMILIES.values());
+		}
+		StringBuilder sb = new StringBuilder(8192);
+		for (Family<?> f : families) f.write(sb);
+		return sb.toString();
+	}
+
+	private static String join(String[] values)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (String v : values) sb.append(v).append('\u0000');
+		return sb.toString();
+	}
+
+	private static void escape(StringBuilder sb, String value)
+	{
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') sb.append('\\').append(c);
+			else if (c == '\n') sb.append("\\n");
+			else sb.append(c);
+		}
+	}
+}
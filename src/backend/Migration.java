@@ -0,0 +1,231 @@
+package backend;
+
+import java.io.File;
+import java.sql.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Brings an existing twotter.db up to the current schema. The schema version is
+ * kept in SQLite's user_version, so each step runs once per database.
+ * Version 1 stores POSTED and TIMELINE timestamps as milliseconds since the epoch
+ * instead of "yyyy-MM-dd hh:mm:ss.SS a" text, which did not sort by time (AM/PM,
+ * 12 hour clock), and adds the indexes the feed and fan-out queries rely on.
+ * Version 2 indexes USER by session token, for sessions not yet in SessionStore.
+ * Version 3 keeps when each session started and was last used, so that a session
+ * read back from USER ends when it would have in SessionStore; existing sessions
+ * start at the time of the upgrade.
+ * Version 4 adds MARK, numbers kept under a name, and moves there how far
+ * PostLogStorage had fanned out its log from its own POSTLOG table.
+ * Run on startup by DBPortal; can also be run by hand against a copy of a database
+ * Requires SQLite-JDBC
+ */
+public class Migration {
+
+	public static final int VERSION = 4;
+
+	// Pattern the timestamps were written with before version 1
+	private static final String OLD_TIMESTAMP_FORMAT = "yyyy-MM-dd hh:mm:ss.SS a";
+
+	// A user's own posts and reposts, newest first
+	private static final String CREATE_POSTED_INDEX =
+			"CREATE INDEX IF NOT EXISTS POSTED_BY_TIME ON POSTED(username, timestamp, postId)";
+	// Followers of a user, for fan-out. (follower, followee) is already the primary key
+	private static final String CREATE_FOLLOWERS_INDEX =
+			"CREATE INDEX IF NOT EXISTS FOLLOWING_BY_FOLLOWEE ON FOLLOWING(followee, follower)";
+	// The owner of a session token
+	private static final String CREATE_SESSION_INDEX =
+			"CREATE INDEX IF NOT EXISTS USER_BY_SESSION ON USER(sessionId)";
+	private static final String ADD_SESSION_CREATED =
+			"ALTER TABLE USER ADD COLUMN sessionCreated INTEGER";
+	private static final String ADD_SESSION_USED =
+			"ALTER TABLE USER ADD COLUMN sessionUsed INTEGER";
+	private static final String START_SESSION_CLOCKS =
+			"UPDATE USER SET sessionCreated=?, sessionUsed=? WHERE sessionId IS NOT NULL";
+	private static final String CREATE_MARK_TABLE =
+			"CREATE TABLE IF NOT EXISTS MARK(name VARCHAR(30) PRIMARY KEY, value INTEGER)";
+	private static final String COPY_POSTLOG_MARK =
+			"INSERT OR REPLACE INTO MARK SELECT 'postlog',applied FROM POSTLOG";
+
+	private static final String GET_TEXT_TIMESTAMPS =
+			"SELECT username,postId,timestamp FROM POSTED WHERE typeof(timestamp)='text'";
+	private static final String SET_TIMESTAMP =
+			"UPDATE POSTED SET timestamp=? WHERE username=? AND postId=?";
+	private static final String COPY_TIMELINE_TIMESTAMPS =
+			"UPDATE TIMELINE SET timestamp=(SELECT POSTED.timestamp FROM POSTED " +
+					"WHERE POSTED.postId=TIMELINE.postId AND POSTED.username=TIMELINE.postedBy)";
+
+	/**
+	 * Migrates a database
+	 * @param args Path of the database, src/backend/twotter.db if not given
+	 * @throws SQLException
+	 * @throws ClassNotFoundException SQLite-JDBC is not on the classpath
+	 */
+	public static void main(String[] args) throws SQLException, ClassNotFoundException
+	{
+		// Not DBPortal.DATABASE: loading DBPortal would open and migrate that database
+		String path = args.length > 0 ? args[0] : "src" + File.separator + "backend" + File.separator + "twotter.db";
+		Class.forName("org.sqlite.JDBC");
+		Connection conn = DriverManager.getConnection("jdbc:sqlite:" + path);
+		try {
+			int from = getVersion(conn);
+			migrate(conn);
+			System.out.println(path + ": schema version " + from + " -> " + getVersion(conn));
+			explain(conn, SqliteStorage.GET_USER_POSTS_PAGE_STATEMENT);
+			explain(conn, "SELECT follower FROM FOLLOWING WHERE followee=?");
+			explain(conn, "SELECT username FROM USER WHERE sessionID = ?");
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Applies every step the database has not had yet, in one transaction
+	 * @param conn A connection in auto-commit mode
+	 * @throws SQLException
+	 */
+	public static void migrate(Connection conn) throws SQLException
+	{
+		int version = getVersion(conn);
+		if (version >= VERSION) return;
+		conn.setAutoCommit(false);
+		try {
+			Statement stmt = conn.createStatement();
+			try {
+				if (version < 1) {
+					convertTimestamps(conn);
+					if (tableExists(conn, "TIMELINE")) stmt.executeUpdate(COPY_TIMELINE_TIMESTAMPS);
+					stmt.executeUpdate(CREATE_POSTED_INDEX);
+					stmt.executeUpdate(CREATE_FOLLOWERS_INDEX);
+				}
+				if (version < 2) {
+					stmt.executeUpdate(CREATE_SESSION_INDEX);
+				}
+				if (version < 3) {
+					stmt.executeUpdate(ADD_SESSION_CREATED);
+					stmt.executeUpdate(ADD_SESSION_USED);
+					startSessionClocks(conn);
+				}
+				if (version < 4) {
+					stmt.executeUpdate(CREATE_MARK_TABLE);
+					if (tableExists(conn, "POSTLOG")) {
+						stmt.executeUpdate(COPY_POSTLOG_MARK);
+						stmt.executeUpdate("DROP TABLE POSTLOG");
+					}
+				}
+				stmt.executeUpdate("PRAGMA user_version = " + VERSION);
+			} finally {
+				stmt.close();
+			}
+			conn.commit();
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.setAutoCommit(true);
+		}
+	}
+
+	/*
+	 * Rewrites the text timestamps in POSTED as epoch milliseconds
+	 */
+	private static void convertTimestamps(Connection conn) throws SQLException
+	{
+		SimpleDateFormat sdf = new SimpleDateFormat(OLD_TIMESTAMP_FORMAT);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(GET_TEXT_TIMESTAMPS);
+			while (rs.next()) {
+				long millis;
+				try {
+					millis = sdf.parse(rs.getString(3)).getTime();
+				} catch (ParseException e) {
+					Log.warn("Unreadable timestamp on post " + rs.getLong(2) + ": " + rs.getString(3));
+					millis = 0;
+				}
+				rows.add(new Object[] {rs.getString(1), rs.getLong(2), millis});
+			}
+			rs.close();
+		} finally {
+			stmt.close();
+		}
+		PreparedStatement prepStmt = conn.prepareStatement(SET_TIMESTAMP);
+		try {
+			for (Object[] row : rows) {
+				prepStmt.setLong(1, (Long) row[2]);
+				prepStmt.setString(2, (String) row[0]);
+				prepStmt.setLong(3, (Long) row[1]);
+				prepStmt.addBatch();
+			}
+			prepStmt.executeBatch();
+		} finally {
+			prepStmt.close();
+		}
+	}
+
+	/*
+	 * Dates the sessions that were open before version 3 from now
+	 */
+	private static void startSessionClocks(Connection conn) throws SQLException
+	{
+		long now = System.currentTimeMillis();
+		PreparedStatement prepStmt = conn.prepareStatement(START_SESSION_CLOCKS);
+		try {
+			prepStmt.setLong(1, now);
+			prepStmt.setLong(2, now);
+			prepStmt.executeUpdate();
+		} finally {
+			prepStmt.close();
+		}
+	}
+
+	private static int getVersion(Connection conn) throws SQLException
+	{
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("PRAGMA user_version");
+			try {
+				return rs.next() ? rs.getInt(1) : 0;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private static boolean tableExists(Connection conn, String name) throws SQLException
+	{
+		PreparedStatement prepStmt = conn.prepareStatement("SELECT name FROM sqlite_master WHERE type='table' AND name=?");
+		try {
+			prepStmt.setString(1, name);
+			ResultSet rs = prepStmt.executeQuery();
+			try {
+				return rs.next();
+			} finally {
+				rs.close();
+			}
+		} finally {
+			prepStmt.close();
+		}
+	}
+
+	/*
+	 * Prints SQLite's plan for a query, to check that it uses the indexes
+	 */
+	private static void explain(Connection conn, String sql) throws SQLException
+	{
+		Statement stmt = conn.createStatement();
+		try {
+			System.out.println(sql);
+			ResultSet rs = stmt.executeQuery("EXPLAIN QUERY PLAN " + sql.replace("?", "NULL"));
+			while (rs.next()) System.out.println("\t" + rs.getString(rs.getMetaData().getColumnCount()));
+			rs.close();
+		} finally {
+			stmt.close();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package backend;
+
+/**
+ * Position in a newest-first list of posts, used for keyset pagination. A page
+ * "before" a cursor holds the posts strictly older than it, ordered by timestamp
+ * and then postID, both descending, so each page is a range scan from the cursor
+ * rather than an OFFSET that grows with the page number
+ */
+public class PageCursor {
+
+	private final long timestamp;
+	private final long postID;
+
+	public PageCursor(long timestamp, long postID)
+	{
+		this.timestamp = timestamp;
+		this.postID = postID;
+	}
+
+	/**
+	 * @param p The last post of a page
+	 * @return The cursor for the page that follows it
+	 */
+	public static PageCursor after(Post p)
+	{
+		return new PageCursor(p.getPostTime(), p.getPostID());
+	}
+
+	/**
+	 * @param token A value produced by toString(), as found in a URL parameter
+	 * @return The cursor, or null if token is missing or malformed
+	 */
+	public static PageCursor parse(String token)
+	{
+		if (token == null) return null;
+		int sep = token.lastIndexOf('_');
+		if (sep < 0) return null;
+		try {
+			return new PageCursor(Long.parseLong(token.substring(0, sep)), Long.parseLong(token.substring(sep + 1)));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param p A post
+	 * @return Whether p belongs on a page before this cursor
+	 */
+	public boolean precedes(Post p)
+	{
+		return p.getPostTime() < timestamp || (p.getPostTime() == timestamp && p.getPostID() < postID);
+	}
+
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	public long getPostID()
+	{
+		return postID;
+	}
+
+	/**
+	 * @return The cursor as an opaque token, safe to put in a URL
+	 */
+	@Override
+	public String toString()
+	{
+		return timestamp + "_" + postID;
+	}
+}
@@ -0,0 +1,117 @@
+package backend;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Version stamps of every user's feed and profile, so a page the client already
+ * has can be answered with 304 Not Modified instead of being rendered again. A
+ * stamp is a time in milliseconds, strictly increasing across the whole process,
+ * and is taken after the change it records is visible, so a page rendered under
+ * an older stamp is always replaced once the stamp moves on. Stamps are only kept
+ * in memory; every one starts at the boot time, which the server adds to its
+ * ETags so that tags from before a restart never match.
+ * Favorite counts, follow suggestions and the pictures of other users are not
+ * stamped; every page's version moves on at least every MAX_AGE milliseconds so
+ * they catch up
+ */
+public class PageVersions {
+
+	// Longest a page is reused for before it is rendered again regardless
+	private static final long MAX_AGE = Long.getLong("twotter.pageMaxAge", 60000);
+
+	private final long boot = System.currentTimeMillis();
+	private final AtomicLong clock = new AtomicLong(boot);
+	// Changes to a user's own profile page: their posts, reposts, follows and profile
+	private final ConcurrentHashMap<String, Long> own = new ConcurrentHashMap<String, Long>();
+	// Posts fanned out to a user's feed
+	private final ConcurrentHashMap<String, Long> received = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * @return When the stamps started, in milliseconds
+	 */
+	public long boot()
+	{
+		return boot;
+	}
+
+	/**
+	 * Records a change to what a user's profile and feed show about the user
+	 * themselves, once it is visible
+	 * @param username
+	 */
+	public void changed(String username)
+	{
+		stamp(own, username, next());
+	}
+
+	/**
+	 * Records a post fanned out to the feeds of followers, once it is in their timelines
+	 * @param followers
+	 */
+	public void received(List<String> followers)
+	{
+		if (followers.isEmpty()) return;
+		long now = next();
+		for (String follower : followers) stamp(received, follower, now);
+	}
+
+	/**
+	 * @return The version of a user's profile page
+	 */
+	public long profile(String username)
+	{
+		return Math.max(floor(), get(own, username));
+	}
+
+	/**
+	 * @param username
+	 * @param celebrities The widely followed users username follows, whose posts
+	 * are merged into the feed when it is read rather than fanned out
+	 * @return The version of a user's feed
+	 */
+	public long feed(String username, List<String> celebrities)
+	{
+		long version = Math.max(floor(), Math.max(get(own, username), get(received, username)));
+		for (String celebrity : celebrities) version = Math.max(version, get(own, celebrity));
+		return version;
+	}
+
+	/*
+	 * Start of the current MAX_AGE period
+	 */
+	private long floor()
+	{
+		long now = System.currentTimeMillis();
+		return now - now % MAX_AGE;
+	}
+
+	private long get(ConcurrentHashMap<String, Long> stamps, String username)
+	{
+		Long stamp = stamps.get(username);
+		return stamp == null ? boot : stamp;
+	}
+
+	/*
+	 * The current time, or one more than the last stamp if that is later
+	 */
+	private long next()
+	{
+		while (true) {
+			long last = clock.get(), now = Math.max(last + 1, System.currentTimeMillis());
+			if (clock.compareAndSet(last, now)) return now;
+		}
+	}
+
+	/*
+	 * Raises a stamp, leaving it be if a later one got there first
+	 */
+	private static void stamp(ConcurrentHashMap<String, Long> stamps, String username, long stamp)
+	{
+		while (true) {
+			Long current = stamps.putIfAbsent(username, stamp);
+			if (current == null || current >= stamp || stamps.replace(username, current, stamp)) return;
+		}
+	}
+}
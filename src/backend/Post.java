@@ -3,6 +3,8 @@ package backend;
 import java.io.FileNotFoundException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 
 /**
  * Represents the fields in the Post/Posted tables
@@ -11,27 +13,47 @@ import java.sql.SQLException;
  */
 public class Post {
 
-	private String postBy, postedBy, message, postTime, picture;
+	private String postBy, postedBy, picture;
+	private String text;	// message as written
+	private String message;	// text escaped for HTML, once first rendered
 	private Long postID;
-	private static final String 	POSTED_BY_RE = "%postedUser%",
-									POST_BY_RE = "%postUser%",
-									MESSAGE_RE = "%message%",
-									PICTURE_RE = "%picture%",
-									POST_ID_RE = "%postID%",
-									POST_TIME_RE = "%timestamp%";
+	private long postTime;	// milliseconds since the epoch
+	// How timestamps are shown; SimpleDateFormat is not thread safe, so one per thread
+	private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd hh:mm:ss.SS a");
+		}
+	};
+	private static final String 	TEMPLATE = DBPortal.TEMPLATES + "post_template.html";
+	// Placeholders in post_template.html, in the order toHTML() passes their values
+	private static final String[]	SLOTS = {"postedUser", "postUser", "message", "picture", "postID", "timestamp", "counts"};
+	// Favorite and repost counts, which change after the rest is rendered and cached
+	static final int				COUNTS_SLOT = 6;
 	
 	
 	
-	public Post(String postBy, String postedBy, String message, String postTime, long postID, String picture)
+	public Post(String postBy, String postedBy, String message, long postTime, long postID, String picture)
 	{
 		this.postBy 	= postBy;
 		this.postedBy	= postedBy;
-		this.message 	= message;
+		this.text 		= message;
 		this.picture 	= picture;
 		this.postID 	= postID;
 		this.postTime 	= postTime;
-		message = message.replaceAll("<", "&#60");
-		message = message.replaceAll(">", "&#62");
+	}
+
+	/*
+	 * A copy of a post as reposted
+	 */
+	private Post(Post post, String postedBy, long postTime)
+	{
+		this.postBy 	= post.postBy;
+		this.postedBy	= postedBy;
+		this.text 		= post.text;
+		this.message 	= post.message;
+		this.picture 	= post.picture;
+		this.postID 	= post.postID;
+		this.postTime 	= postTime;
 	}
 	
 	protected Post(ResultSet rs) throws SQLException
@@ -39,30 +61,129 @@ public class Post {
 		this.postID 	= rs.getLong(1);
 		this.postedBy 	= rs.getString(2);
 		this.postBy 	= rs.getString(3);
-		this.postTime 	= rs.getString(4);
-		this.message 	= rs.getString(5);
+		this.postTime 	= rs.getLong(4);
+		this.text 		= rs.getString(5);
 		this.picture 	= rs.getString(6);
-		message = message.replaceAll("<", "&#60");
-		message = message.replaceAll(">", "&#62");
+	}
+
+	/**
+	 * @param username Who reposts this post
+	 * @param postTime When it was reposted, in milliseconds since the epoch
+	 * @return This post as it appears reposted by username
+	 */
+	public Post repostedBy(String username, long postTime)
+	{
+		return new Post(this, username, postTime);
 	}
 	
+	public long getPostID()
+	{
+		return postID;
+	}
+
+	/**
+	 * @return The user who wrote this post
+	 */
+	public String getPostBy()
+	{
+		return postBy;
+	}
+
+	/**
+	 * @return Whether this is a repost rather than the post as its author posted it
+	 */
+	public boolean isRepost()
+	{
+		return !postBy.equals(postedBy);
+	}
+
+	/**
+	 * @return The message as written, not escaped for HTML
+	 */
+	public String getText()
+	{
+		return text;
+	}
+
+	/**
+	 * @return The user who posted or reposted this post
+	 */
+	public String getPostedBy()
+	{
+		return postedBy;
+	}
+
+	public String getPicture()
+	{
+		return picture;
+	}
+
+	/**
+	 * @return When the post was posted or reposted, in milliseconds since the epoch
+	 */
+	public long getPostTime()
+	{
+		return postTime;
+	}
+
 	@Override
 	public String toString()
 	{
-		return postBy + " posted:\n\t" + message + "\n\tat " + postTime + ((postedBy.equals(postBy)) ? "":"\n\tReposted by " + postedBy);
+		return postBy + " posted:\n\t" + escaped() + "\n\tat " + formatTime(postTime) + ((postedBy.equals(postBy)) ? "":"\n\tReposted by " + postedBy);
 	}
 	
 	public String toHTML() throws FileNotFoundException
 	{
-		
-		String postTempF = DBPortal.readFile("src" + DBPortal.SEP + "backend" + DBPortal.SEP + "HTMLTemplates" + DBPortal.SEP + "post_template.html");
-		String html = postTempF.replaceFirst(POSTED_BY_RE, (postBy.equals(postedBy)) ? "" : "Reposted by " + postedBy);
-		html = html.replaceAll(POST_ID_RE, postID.toString());
-		html = html.replaceAll(POST_BY_RE, postBy);
-		html = html.replaceFirst(MESSAGE_RE, message);
-		html = html.replaceFirst(POST_TIME_RE, postTime);
-		html = html.replaceFirst(PICTURE_RE, picture);
-		return html;
+		StringBuilder sb = new StringBuilder();
+		toHTML(sb);
+		return sb.toString();
+	}
+
+	/**
+	 * Appends this post rendered through post_template.html, without its counts
+	 * @param sb Output
+	 * @throws FileNotFoundException post_template.html is missing
+	 */
+	public void toHTML(StringBuilder sb) throws FileNotFoundException
+	{
+		template().render(sb, slotValues(""));
+	}
+
+	/**
+	 * @param counts The rendered favorite and repost counts
+	 * @return The values of SLOTS for this post
+	 */
+	String[] slotValues(String counts)
+	{
+		return new String[] {
+				(postBy.equals(postedBy)) ? "" : "Reposted by " + postedBy,
+				postBy, escaped(), picture, postID.toString(), formatTime(postTime), counts};
+	}
+
+	/*
+	 * The message escaped for HTML. Posts are read far more often than they are
+	 * rendered, most being rendered from FragmentCache, so this is done on demand;
+	 * threads that race here compute the same String
+	 */
+	private String escaped()
+	{
+		String m = message;
+		if (m == null) message = m = Template.escape(text);
+		return m;
+	}
+
+	static Template template() throws FileNotFoundException
+	{
+		return Template.get(TEMPLATE, SLOTS);
+	}
+
+	/**
+	 * @param millis Milliseconds since the epoch
+	 * @return The time as shown on a post
+	 */
+	public static String formatTime(long millis)
+	{
+		return TIME_FORMAT.get().format(new Date(millis));
 	}
 	
 }
@@ -0,0 +1,301 @@
+package backend;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Favorite and repost counts of every post, held in memory so a rendered post can
+ * show them without a COUNT(*). Counts are rebuilt from the favorites and reposts
+ * in Storage at startup. Favorites are written behind: a favorite is counted at once and queued,
+ * and the queue is written to Storage in one transaction every FLUSH_INTERVAL
+ * milliseconds, so a burst of favorites on one post costs one commit rather than
+ * one write lock each. Reposts are written by PostWriter, which counts them here
+ * once they commit
+ */
+public class PostCounts {
+
+	// Milliseconds between writes of queued favorites
+	private static final long FLUSH_INTERVAL = Long.getLong("twotter.favoriteFlush", 1000);
+
+	private static final Metrics.Family<Metrics.Histogram> FLUSH_SECONDS =
+			Metrics.timer("twotter_favorite_flush_seconds", "Time to write a batch of favorites");
+	private static final StripedCounter FAVORITES =
+			Metrics.counter("twotter_favorites_total", "Favorites and unfavorites written").get();
+
+	/**
+	 * A count that threads add to without contending. Adds go to a single value
+	 * while they succeed first time; once two threads collide the count spreads
+	 * over a StripedCounter, so only posts that are favorited concurrently pay for one
+	 */
+	static class Count {
+		private static final AtomicLongFieldUpdater<Count> BASE =
+				AtomicLongFieldUpdater.newUpdater(Count.class, "base");
+		private static final AtomicReferenceFieldUpdater<Count, StripedCounter> CELLS =
+				AtomicReferenceFieldUpdater.newUpdater(Count.class, StripedCounter.class, "cells");
+
+		private volatile long base;
+		private volatile StripedCounter cells;
+
+		void add(long n)
+		{
+			StripedCounter c = cells;
+			if (c == null) {
+				long b = base;
+				if (BASE.compareAndSet(this, b, b + n)) return;
+				CELLS.compareAndSet(this, null, new StripedCounter());
+				c = cells;
+			}
+			c.add(n);
+		}
+
+		long sum()
+		{
+			StripedCounter c = cells;
+			return base + (c == null ? 0 : c.sum());
+		}
+	}
+
+	/**
+	 * Whether a user's favorite of a post should be stored, and how much the count
+	 * was changed for it since it was last written
+	 */
+	private static class Pending {
+		boolean favorite;
+		int applied;
+
+		Pending(boolean favorite)
+		{
+			this.favorite = favorite;
+		}
+	}
+
+	private static class Key {
+		final long postID;
+		final String username;
+
+		Key(long postID, String username)
+		{
+			this.postID = postID;
+			this.username = username;
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return postID == k.postID && username.equals(k.username);
+		}
+
+		public int hashCode()
+		{
+			return (int) (postID ^ (postID >>> 32)) * 31 + username.hashCode();
+		}
+	}
+
+	private final Storage storage;
+	private final ConcurrentHashMap<Long, Count> favorites = new ConcurrentHashMap<Long, Count>();
+	private final ConcurrentHashMap<Long, Count> reposts = new ConcurrentHashMap<Long, Count>();
+
+	// Favorites not yet written, and those being written. Guarded by pending
+	private final Map<Key, Pending> pending = new HashMap<Key, Pending>();
+	private Map<Key, Pending> flushing = new HashMap<Key, Pending>();
+
+	/**
+	 * @param storage Where posts, reposts and favorites are kept
+	 */
+	public PostCounts(Storage storage)
+	{
+		this.storage = storage;
+		Metrics.gauge("twotter_favorites_pending", "Favorites waiting to be written", new Metrics.Gauge() {
+			public double value() {
+				synchronized (pending) {
+					return pending.size();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Loads the counts from Storage and starts writing favorites behind
+	 * @throws SQLException
+	 */
+	public void init() throws SQLException
+	{
+		for (Map.Entry<Long, Integer> e : storage.getFavoriteCounts().entrySet()) count(favorites, e.getKey()).add(e.getValue());
+		for (Map.Entry<Long, Integer> e : storage.getRepostCounts().entrySet()) count(reposts, e.getKey()).add(e.getValue());
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(FLUSH_INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					}
+					flush();
+				}
+			}
+		}, "twotter-favorite-writer");
+		writer.setDaemon(true);
+		writer.start();
+		// Write what is still queued when the process exits
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	private static Count count(ConcurrentHashMap<Long, Count> counts, long postID)
+	{
+		Count c = counts.get(postID);
+		if (c == null) {
+			Count created = new Count();
+			c = counts.putIfAbsent(postID, created);
+			if (c == null) c = created;
+		}
+		return c;
+	}
+
+	public long favorites(long postID)
+	{
+		Count c = favorites.get(postID);
+		return c == null ? 0 : c.sum();
+	}
+
+	public long reposts(long postID)
+	{
+		Count c = reposts.get(postID);
+		return c == null ? 0 : c.sum();
+	}
+
+	/**
+	 * Counts a repost, once it has committed
+	 * @param postID The post reposted
+	 */
+	public void reposted(long postID)
+	{
+		count(reposts, postID).add(1);
+	}
+
+	/**
+	 * Favorites or unfavorites a post. The count changes at once; Storage is
+	 * written with the next batch
+	 * @param username
+	 * @param postID
+	 * @param favorite true to favorite, false to unfavorite
+	 * @return false if the post does not exist or already was, or was not, a favorite
+	 * @throws SQLException
+	 */
+	public boolean favorite(String username, long postID, boolean favorite) throws SQLException
+	{
+		Key key = new Key(postID, username);
+		Boolean queued = queued(key);
+		if (queued == null) {
+			queued = stored(username, postID);
+			if (queued == null) return false;
+		}
+		synchronized (pending) {
+			Pending p = pending.get(key);
+			if (p == null) {
+				Pending f = flushing.get(key);
+				// Read from the table before a batch with this favorite committed
+				if (f != null) queued = f.favorite;
+				if (queued == favorite) return false;
+				pending.put(key, p = new Pending(favorite));
+			}
+			else if (p.favorite == favorite) {
+				return false;
+			}
+			p.favorite = favorite;
+			p.applied += favorite ? 1 : -1;
+			count(favorites, postID).add(favorite ? 1 : -1);
+		}
+		return true;
+	}
+
+	/*
+	 * Whether the favorite is queued or being written, or null if neither
+	 */
+	private Boolean queued(Key key)
+	{
+		synchronized (pending) {
+			Pending p = pending.get(key);
+			if (p == null) p = flushing.get(key);
+			return p == null ? null : p.favorite;
+		}
+	}
+
+	/*
+	 * Whether the favorite is stored, or null if there is no such post
+	 */
+	private Boolean stored(final String username, final long postID) throws SQLException
+	{
+		final boolean[] found = new boolean[1];
+		storage.read(new Storage.Work() {
+			public void run(Storage.Transaction tx) throws SQLException {
+				found[0] = tx.isFavorite(postID, username);
+			}
+		});
+		if (found[0]) return true;
+		return storage.getPost(postID) == null ? null : false;
+	}
+
+	/**
+	 * Writes the queued favorites in one transaction. A favorite counted against
+	 * storage that changed underneath it, such as the same user's favorite arriving
+	 * twice at once, is corrected here to the rows actually written
+	 */
+	void flush()
+	{
+		final Map<Key, Pending> batch;
+		synchronized (pending) {
+			if (pending.isEmpty()) return;
+			batch = new HashMap<Key, Pending>(pending);
+			pending.clear();
+			flushing = batch;
+		}
+		Metrics.Histogram seconds = FLUSH_SECONDS.get();
+		long start = seconds.start();
+		final List<Key> keys = new ArrayList<Key>(batch.keySet());
+		final int[] changed = new int[keys.size()];
+		boolean done = false;
+		try {
+			storage.write(new Storage.Work() {
+				public void run(Storage.Transaction tx) throws SQLException {
+					for (int i = 0; i < keys.size(); i++) {
+						Key k = keys.get(i);
+						boolean favorite = batch.get(k).favorite;
+						changed[i] = tx.setFavorite(k.postID, k.username, favorite) * (favorite ? 1 : -1);
+					}
+				}
+			});
+			done = true;
+			seconds.stop(start);
+			FAVORITES.add(keys.size());
+		} catch (SQLException e) {
+			Log.error("Could not write " + keys.size() + " favorites", e);
+		}
+		synchronized (pending) {
+			flushing = new HashMap<Key, Pending>();
+			for (int i = 0; i < keys.size(); i++) {
+				Key k = keys.get(i);
+				Pending p = batch.get(k);
+				if (done) {
+					if (changed[i] != p.applied) count(favorites, k.postID).add(changed[i] - p.applied);
+				}
+				else {
+					// Try again with the next batch, unless changed since
+					Pending later = pending.get(k);
+					if (later == null) pending.put(k, p);
+					else later.applied += p.applied;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,709 @@
+package backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Storage that keeps posts and reposts in an append-only log, and everything else
+ * in another Storage, normally a SqliteStorage of the database. The log is a
+ * directory of segment files of SEGMENT_SIZE bytes, each mapped into memory, so an
+ * append is a copy into the mapping and a read needs no query and no copy out of
+ * the page cache. A record is its length, the CRC32 of its body and the body:
+ * kind, post ID, time, username and, for a post, the message.
+ * Posts are found by an index from post ID to record location held off the Java
+ * heap, and each user's posts and reposts by a list in time order, both rebuilt
+ * by reading the log at startup. A record that was torn by a crash fails its CRC
+ * and ends the log there.
+ * A batch is forced to disk before it is acknowledged, then fanned out in a
+ * transaction of the other storage that also marks how far into the log has been
+ * fanned out, so after a crash the posts past that point are fanned out again by
+ * recover().
+ * The first time it starts the posts in the other storage are copied into the log;
+ * they are not written there after that
+ */
+public class PostLogStorage implements Storage {
+
+	// Bytes per segment file; a record may not be larger
+	private static final int SEGMENT_SIZE = Integer.getInteger("twotter.postLogSegment", 64 << 20);
+	// Whether a batch is forced to disk before it is acknowledged
+	private static final boolean SYNC = Boolean.parseBoolean(System.getProperty("twotter.postLogSync", "true"));
+
+	private static final byte POST = 1, REPOST = 2;
+	// Length and CRC in front of every record
+	private static final int HEADER = 8;
+
+	// Mark of the location in the log up to which posts have been fanned out
+	private static final String APPLIED = "postlog";
+
+	private static final Metrics.Family<Metrics.Histogram> SYNC_SECONDS =
+			Metrics.timer("twotter_postlog_sync_seconds", "Time to force a batch of posts to disk");
+
+	/**
+	 * One user's posts and reposts, oldest first by time and then post ID
+	 */
+	private static class UserPosts {
+		long[] ids = new long[4], times = new long[4], locations = new long[4];
+		int size;
+
+		void add(long postID, long time, long location)
+		{
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				times = Arrays.copyOf(times, size * 2);
+				locations = Arrays.copyOf(locations, size * 2);
+			}
+			int i = search(time, postID);	// size, unless copied into the log out of order
+			System.arraycopy(ids, i, ids, i + 1, size - i);
+			System.arraycopy(times, i, times, i + 1, size - i);
+			System.arraycopy(locations, i, locations, i + 1, size - i);
+			ids[i] = postID;
+			times[i] = time;
+			locations[i] = location;
+			size++;
+		}
+
+		/*
+		 * Index of the first entry at or after (time, postID)
+		 */
+		int search(long time, long postID)
+		{
+			int lo = 0, hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (times[mid] < time || (times[mid] == time && ids[mid] < postID)) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo;
+		}
+
+		/*
+		 * Whether the post is here, posted or reposted no earlier than since
+		 */
+		boolean contains(long postID, long since)
+		{
+			for (int i = size - 1; i >= 0 && times[i] >= since; i--) {
+				if (ids[i] == postID) return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * A record as read from the log
+	 */
+	private static class Record {
+		byte kind;
+		long postID;
+		long time;
+		String username;
+		String message;		// null for a repost
+	}
+
+	private final Storage base;
+	private final File dir;
+	private File writing;	// dir, or where the log is built before it is moved there
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	// Guarded by lock: the segments, the index, the users' lists and maxID
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private LongBuffer index = ByteBuffer.allocateDirect(8 << 16).asLongBuffer();	// by post ID, 0 if none
+	private final Map<String, UserPosts> users = new HashMap<String, UserPosts>();
+	private long maxID;
+
+	// Where the next record goes. Only the writer, which holds this, moves them
+	private int segment = -1;
+	private int position;
+	private final CRC32 crc = new CRC32();
+	private ByteBuffer body = ByteBuffer.allocate(1024);
+	// Posts stored but not yet fanned out, oldest first
+	private final List<Post> unapplied = new ArrayList<Post>();
+
+	// Users' pictures, for the posts read from the log
+	private final ConcurrentHashMap<String, String> pictures = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * @param base Where everything but posts and reposts is kept, and where the
+	 * posts are copied from the first time
+	 * @param dir Directory of the log, created if needed
+	 */
+	public PostLogStorage(Storage base, File dir)
+	{
+		this.base = base;
+		this.dir = dir;
+		this.writing = dir;
+	}
+
+	public void read(Work work) throws SQLException
+	{
+		base.read(work);
+	}
+
+	public void write(Work work) throws SQLException
+	{
+		base.write(work);
+	}
+
+	public synchronized void init() throws SQLException
+	{
+		base.init();
+		long start = System.currentTimeMillis();
+		final long[] applied = new long[1];
+		base.read(new Work() {
+			public void run(Transaction tx) throws SQLException {
+				applied[0] = tx.getMark(APPLIED);
+			}
+		});
+		try {
+			File[] files = segmentFiles(dir);
+			if (files.length == 0) {
+				// Built aside and renamed into place, so a copy cut short is started again
+				writing = new File(dir.getPath() + ".tmp");
+				for (File f : segmentFiles(writing)) {
+					if (!f.delete()) throw new IOException("Could not delete " + f);
+				}
+				if (!writing.isDirectory() && !writing.mkdirs()) throw new IOException("Could not create " + writing);
+				copyFromBase();
+				if (dir.isDirectory() && !dir.delete()) throw new IOException("Could not replace " + dir);
+				if (!writing.renameTo(dir)) throw new IOException("Could not rename " + writing + " to " + dir);
+				writing = dir;
+			}
+			else {
+				replay(files, applied[0]);
+			}
+		} catch (IOException e) {
+			throw new SQLException("Could not read " + dir, e);
+		}
+		Log.info("Post log: " + maxID + " posts, " + users.size() + " users, " + segments.size() + " segments, " +
+				unapplied.size() + " to fan out, in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	public synchronized void recover(BatchListener listener) throws SQLException
+	{
+		if (!unapplied.isEmpty()) apply(listener);
+	}
+
+	public User getUser(String username) throws SQLException
+	{
+		return base.getUser(username);
+	}
+
+	public boolean createUser(String username, String description, String email, String picture, String passHash, String name) throws SQLException
+	{
+		try {
+			return base.createUser(username, description, email, picture, passHash, name);
+		} finally {
+			pictures.remove(username);
+		}
+	}
+
+	public boolean updateProfile(String username, String name, String picture, String description) throws SQLException
+	{
+		try {
+			return base.updateProfile(username, name, picture, description);
+		} finally {
+			pictures.remove(username);
+		}
+	}
+
+	public boolean checkPassword(String username, String password) throws SQLException
+	{
+		return base.checkPassword(username, password);
+	}
+
+	public Session startSession(String username, String sessionID) throws SQLException
+	{
+		return base.startSession(username, sessionID);
+	}
+
+	public Session getSession(String sessionID) throws SQLException
+	{
+		return base.getSession(sessionID);
+	}
+
+	public void touchSessions(List<Session> sessions) throws SQLException
+	{
+		base.touchSessions(sessions);
+	}
+
+	public void endSession(String sessionID) throws SQLException
+	{
+		base.endSession(sessionID);
+	}
+
+	public void endSessions(List<String> sessionIDs) throws SQLException
+	{
+		base.endSessions(sessionIDs);
+	}
+
+	public void follow(String follower, String followee, Work work) throws SQLException
+	{
+		base.follow(follower, followee, work);
+	}
+
+	public void unfollow(String follower, String followee, Work work) throws SQLException
+	{
+		base.unfollow(follower, followee, work);
+	}
+
+	public void scanFollows(FollowVisitor visitor) throws SQLException
+	{
+		base.scanFollows(visitor);
+	}
+
+	public String describe()
+	{
+		return "postlog " + dir.getAbsolutePath();
+	}
+
+	public long getMaxPostID()
+	{
+		lock.readLock().lock();
+		try {
+			return maxID;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public Post getPost(long postID) throws SQLException
+	{
+		Record r;
+		lock.readLock().lock();
+		try {
+			long location = location(postID);
+			if (location == 0) return null;
+			r = read(location);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return toPost(null, r);
+	}
+
+	public List<Post> getPosts(Transaction tx, long[] ids) throws SQLException
+	{
+		List<Record> records = new ArrayList<Record>(ids.length);
+		lock.readLock().lock();
+		try {
+			for (long id : ids) {
+				long location = location(id);
+				if (location != 0) records.add(read(location));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		List<Post> posts = new ArrayList<Post>(records.size());
+		for (Record r : records) posts.add(toPost(tx, r));
+		return posts;
+	}
+
+	public List<Post> getUserPosts(Transaction tx, String username, PageCursor before, int limit) throws SQLException
+	{
+		List<Record> records = new ArrayList<Record>();
+		List<Long> times = new ArrayList<Long>();
+		lock.readLock().lock();
+		try {
+			UserPosts up = users.get(username);
+			if (up != null) {
+				int i = before == null ? up.size : up.search(before.getTimestamp(), before.getPostID());
+				for (i--; i >= 0 && records.size() < limit; i--) {
+					records.add(read(location(up.ids[i])));
+					times.add(up.times[i]);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		List<Post> posts = new ArrayList<Post>(records.size());
+		for (int i = 0; i < records.size(); i++) {
+			Post p = toPost(tx, records.get(i));
+			if (!p.getPostBy().equals(username)) p = p.repostedBy(username, times.get(i));
+			posts.add(p);
+		}
+		return posts;
+	}
+
+	/**
+	 * Appends the batch to the log and forces it to disk, makes it readable, then
+	 * fans it out and records that in one transaction. If that transaction fails
+	 * the batch is in the log regardless, and is fanned out again with the next one
+	 */
+	public synchronized void writePosts(List<Post> posts, BatchListener listener) throws SQLException
+	{
+		List<Post> written = new ArrayList<Post>(posts.size());
+		List<Long> locations = new ArrayList<Long>(posts.size());
+		Set<String> reposted = new HashSet<String>();
+		try {
+			Set<Integer> touched = new HashSet<Integer>();
+			for (Post p : posts) {
+				long location;
+				if (p.isRepost()) {
+					// Only this thread writes, so reading without the lock sees the latest
+					long original = location(p.getPostID());
+					if (original == 0) continue;
+					Record r = read(original);
+					UserPosts up = users.get(p.getPostedBy());
+					if (r.username.equals(p.getPostedBy()) || (up != null && up.contains(p.getPostID(), r.time))
+							|| !reposted.add(p.getPostedBy() + '\n' + p.getPostID())) continue;
+					location = append(REPOST, p.getPostID(), p.getPostTime(), p.getPostedBy(), null);
+				}
+				else {
+					location = append(POST, p.getPostID(), p.getPostTime(), p.getPostBy(), p.getText());
+				}
+				touched.add(segment);
+				written.add(p);
+				locations.add(location);
+			}
+			if (SYNC && !written.isEmpty()) {
+				Metrics.Histogram seconds = SYNC_SECONDS.get();
+				long start = seconds.start();
+				for (int s : touched) segments.get(s).force();
+				seconds.stop(start);
+			}
+		} catch (IOException e) {
+			throw new SQLException("Could not write " + dir, e);
+		}
+		lock.writeLock().lock();
+		try {
+			for (int i = 0; i < written.size(); i++) {
+				Post p = written.get(i);
+				publish(p.isRepost() ? REPOST : POST, p.getPostID(), p.getPostTime(), p.getPostedBy(), locations.get(i));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		unapplied.addAll(written);
+		if (!unapplied.isEmpty()) apply(listener);
+	}
+
+	public void scanPosts(long afterID, PostVisitor visitor)
+	{
+		lock.readLock().lock();
+		try {
+			for (long id = afterID + 1; id <= maxID; id++) {
+				long location = location(id);
+				if (location == 0) continue;
+				Record r = read(location);
+				visitor.visit(r.postID, r.username, r.message);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gives the posts in order of ID, then the reposts in order of time
+	 */
+	public void export(Exporter exporter) throws SQLException
+	{
+		List<Post> reposts = new ArrayList<Post>();
+		lock.readLock().lock();
+		try {
+			for (long id = 1; id <= maxID; id++) {
+				long location = location(id);
+				if (location == 0) continue;
+				Record r = read(location);
+				exporter.add(new Post(r.username, r.username, r.message, r.time, r.postID, null));
+			}
+			for (Map.Entry<String, UserPosts> e : users.entrySet()) {
+				UserPosts up = e.getValue();
+				for (int i = 0; i < up.size; i++) {
+					long original = location(up.ids[i]);
+					if (up.locations[i] == original) continue;	// the author's own
+					reposts.add(new Post(read(original).username, e.getKey(), null, up.times[i], up.ids[i], null));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		Collections.sort(reposts, new Comparator<Post>() {
+			public int compare(Post a, Post b) {
+				if (a.getPostTime() != b.getPostTime()) return a.getPostTime() < b.getPostTime() ? -1 : 1;
+				return a.getPostID() < b.getPostID() ? -1 : a.getPostID() == b.getPostID() ? 0 : 1;
+			}
+		});
+		for (Post p : reposts) exporter.add(p);
+	}
+
+	public Map<Long, Integer> getRepostCounts()
+	{
+		Map<Long, Integer> counts = new HashMap<Long, Integer>();
+		lock.readLock().lock();
+		try {
+			for (UserPosts up : users.values()) {
+				for (int i = 0; i < up.size; i++) {
+					if (up.locations[i] == location(up.ids[i])) continue;	// the author's own
+					Integer n = counts.get(up.ids[i]);
+					counts.put(up.ids[i], n == null ? 1 : n + 1);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return counts;
+	}
+
+	public Map<Long, Integer> getFavoriteCounts() throws SQLException
+	{
+		return base.getFavoriteCounts();
+	}
+
+	/*
+	 * Fans out the posts not yet fanned out and marks the end of the log as
+	 * applied, in one transaction
+	 */
+	private void apply(final BatchListener listener) throws SQLException
+	{
+		base.write(new Work() {
+			public void run(Transaction tx) throws SQLException {
+				listener.written(tx, new ArrayList<Post>(unapplied));
+				tx.setMark(APPLIED, end());
+			}
+		});
+		unapplied.clear();
+	}
+
+	/*
+	 * Reads the segments into the index and the users' lists, from the first record
+	 * to the last whole one. The posts from applied on are left to fan out
+	 */
+	private void replay(File[] files, long applied) throws IOException, SQLException
+	{
+		for (int s = 0; s < files.length; s++) {
+			MappedByteBuffer buffer = map(files[s], files[s].length());
+			segments.add(buffer);
+			segment = s;
+			position = 0;
+			while (position + HEADER <= buffer.capacity()) {
+				int length = buffer.getInt(position);
+				if (length <= 0) break;		// the rest of the segment is unused
+				if (!valid(buffer, position, length)) {
+					Log.warn("Post log " + files[s] + " ends in a torn record at " + position + ", dropping it");
+					for (int i = position; i < buffer.capacity(); i++) buffer.put(i, (byte) 0);
+					buffer.force();
+					for (int later = s + 1; later < files.length; later++) {
+						if (!files[later].delete()) throw new IOException("Could not delete " + files[later]);
+					}
+					return;
+				}
+				long location = location(s, position);
+				Record r = read(location);
+				publish(r.kind, r.postID, r.time, r.username, location);
+				if (location >= applied) {
+					Post p = toPost(null, read(location(r.postID)));
+					unapplied.add(r.kind == REPOST ? p.repostedBy(r.username, r.time) : p);
+				}
+				position += HEADER + length;
+			}
+		}
+	}
+
+	/*
+	 * Fills the empty log with the posts in the other storage
+	 */
+	private void copyFromBase() throws IOException, SQLException
+	{
+		base.export(new Exporter() {
+			public void add(Post p) throws SQLException {
+				try {
+					byte kind = p.isRepost() ? REPOST : POST;
+					long location = append(kind, p.getPostID(), p.getPostTime(), p.getPostedBy(), p.getText());
+					publish(kind, p.getPostID(), p.getPostTime(), p.getPostedBy(), location);
+				} catch (IOException e) {
+					throw new SQLException("Could not write " + writing, e);
+				}
+			}
+		});
+		if (segments.isEmpty()) newSegment();
+		for (MappedByteBuffer buffer : segments) buffer.force();
+		// Feeds already have these
+		base.write(new Work() {
+			public void run(Transaction tx) throws SQLException {
+				tx.setMark(APPLIED, end());
+			}
+		});
+		Log.info("Post log: copied " + maxID + " posts from " + base.describe());
+	}
+
+	/*
+	 * Writes a record at the end of the log, starting a new segment if it does not fit
+	 * @return Its location
+	 */
+	private long append(byte kind, long postID, long time, String username, String message) throws IOException
+	{
+		byte[] name = username.getBytes(StandardCharsets.UTF_8);
+		byte[] text = message == null ? null : message.getBytes(StandardCharsets.UTF_8);
+		int length = 1 + 8 + 8 + 2 + name.length + (text == null ? 0 : 4 + text.length);
+		if (name.length > 0xffff || HEADER + length > SEGMENT_SIZE) throw new IOException("Post " + postID + " is too large for the log");
+		if (body.capacity() < length) body = ByteBuffer.allocate(Math.max(length, body.capacity() * 2));
+		body.clear();
+		body.put(kind).putLong(postID).putLong(time).putShort((short) name.length).put(name);
+		if (text != null) body.putInt(text.length).put(text);
+		crc.reset();
+		crc.update(body.array(), 0, length);
+		if (segment < 0 || position + HEADER + length > segments.get(segment).capacity()) newSegment();
+		ByteBuffer out = segments.get(segment).duplicate();
+		out.position(position);
+		out.putInt(length).putInt((int) crc.getValue()).put(body.array(), 0, length);
+		long location = location(segment, position);
+		position += HEADER + length;
+		return location;
+	}
+
+	private void newSegment() throws IOException
+	{
+		File file = new File(writing, String.format("%08d.log", segments.size()));
+		MappedByteBuffer buffer = map(file, SEGMENT_SIZE);
+		lock.writeLock().lock();
+		try {
+			segments.add(buffer);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		segment = segments.size() - 1;
+		position = 0;
+	}
+
+	/*
+	 * Makes a record readable. Called with the write lock held, or before anything reads
+	 */
+	private void publish(byte kind, long postID, long time, String username, long location)
+	{
+		if (kind == POST) {
+			if (postID >= index.capacity()) {
+				long capacity = Math.min(Integer.MAX_VALUE / 8, Math.max(postID + 1, 2L * index.capacity()));
+				LongBuffer grown = ByteBuffer.allocateDirect((int) capacity * 8).asLongBuffer();
+				LongBuffer old = index.duplicate();
+				old.clear();
+				grown.put(old);
+				index = grown;
+			}
+			index.put((int) postID, location);
+			maxID = Math.max(maxID, postID);
+		}
+		UserPosts up = users.get(username);
+		if (up == null) users.put(username, up = new UserPosts());
+		up.add(postID, time, location);
+	}
+
+	/*
+	 * Location of a post as its author posted it, 0 if there is none
+	 */
+	private long location(long postID)
+	{
+		return postID > 0 && postID < index.capacity() ? index.get((int) postID) : 0;
+	}
+
+	/*
+	 * Where in the log a record starts: one more than its segment, then its offset
+	 * in the segment, so that locations increase along the log and none is 0
+	 */
+	private static long location(int segment, int position)
+	{
+		return ((long) (segment + 1) << 32) | position;
+	}
+
+	/*
+	 * Location just past the last record
+	 */
+	private long end()
+	{
+		return location(Math.max(segment, 0), position);
+	}
+
+	private Record read(long location)
+	{
+		ByteBuffer in = segments.get((int) (location >>> 32) - 1).duplicate();
+		in.position((int) location + HEADER);
+		Record r = new Record();
+		r.kind = in.get();
+		r.postID = in.getLong();
+		r.time = in.getLong();
+		r.username = string(in, in.getShort() & 0xffff);
+		if (r.kind == POST) r.message = string(in, in.getInt());
+		return r;
+	}
+
+	private static String string(ByteBuffer in, int length)
+	{
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Whether a record is whole and matches its CRC
+	 */
+	private boolean valid(ByteBuffer buffer, int position, int length)
+	{
+		if (position + HEADER + length > buffer.capacity() || length > SEGMENT_SIZE) return false;
+		byte[] bytes = new byte[length];
+		ByteBuffer in = buffer.duplicate();
+		in.position(position + HEADER);
+		in.get(bytes);
+		crc.reset();
+		crc.update(bytes, 0, length);
+		return (int) crc.getValue() == buffer.getInt(position + 4);
+	}
+
+	/*
+	 * A post as its author posted it
+	 * @param tx Transaction to read the author's picture in, or null for one of its own
+	 */
+	private Post toPost(Transaction tx, Record r) throws SQLException
+	{
+		return new Post(r.username, r.username, r.message, r.time, r.postID, picture(tx, r.username));
+	}
+
+	private String picture(Transaction tx, String username) throws SQLException
+	{
+		String picture = pictures.get(username);
+		if (picture != null) return picture;
+		User u = tx == null ? base.getUser(username) : tx.getUser(username);
+		picture = u == null ? null : u.getPicture();
+		if (picture != null) pictures.put(username, picture);
+		return picture;
+	}
+
+	private static File[] segmentFiles(File dir)
+	{
+		File[] files = dir.listFiles();
+		List<File> logs = new ArrayList<File>();
+		if (files != null) {
+			for (File f : files) {
+				if (f.getName().matches("\\d{8}\\.log")) logs.add(f);
+			}
+		}
+		File[] sorted = logs.toArray(new File[logs.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private static MappedByteBuffer map(File file, long size) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < size) raf.setLength(size);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);	// stays mapped once closed
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package backend;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates posts on a single writer thread. Posts submitted by concurrent requests
+ * are queued and written in batches, each batch in one transaction, so a busy
+ * moment costs one commit (and one fsync) for many posts rather than one each,
+ * and the database write lock is taken once per batch. Post IDs are assigned here
+ * rather than by storage, so a batch needs no last_insert_rowid() round trips.
+ * Reposts go through the same batches
+ */
+public class PostWriter {
+
+	// Most posts written in one transaction
+	private static final int BATCH_SIZE = Integer.getInteger("twotter.postBatch", 256);
+	// How long a batch waits for more posts once it has one, in milliseconds
+	private static final long BATCH_DELAY = Integer.getInteger("twotter.postBatchDelay", 2);
+	// Posts waiting to be written before submit() refuses more
+	private static final int QUEUE_SIZE = Integer.getInteger("twotter.postQueue", 10000);
+
+	private final Storage storage;
+	private final TimelineStore timelines;
+	private final SearchIndex search;
+	private final PostCounts counts;
+	private final FeedHub hub;
+	private final PageVersions versions;
+	private final BlockingQueue<PendingPost> queue = new ArrayBlockingQueue<PendingPost>(QUEUE_SIZE);
+	private final AtomicLong lastID = new AtomicLong();
+
+	private static final Metrics.Family<Metrics.Histogram> BATCH_SECONDS =
+			Metrics.timer("twotter_post_batch_seconds", "Time to write and commit a batch of posts");
+	private static final StripedCounter POSTS =
+			Metrics.counter("twotter_posts_total", "Posts created").get();
+
+	/**
+	 * @param storage Where posts are written
+	 * @param timelines Feeds the new posts are fanned out to
+	 * @param search Index the new posts are added to once committed
+	 * @param counts Where reposts are counted once committed
+	 * @param hub Live streams the new posts are pushed to once committed
+	 * @param versions Stamps of the feeds and profiles the new posts change
+	 * @throws SQLException The highest existing post ID could not be read
+	 */
+	public PostWriter(Storage storage, TimelineStore timelines, SearchIndex search, PostCounts counts, FeedHub hub,
+			PageVersions versions) throws SQLException
+	{
+		this.storage = storage;
+		this.timelines = timelines;
+		this.search = search;
+		this.counts = counts;
+		this.hub = hub;
+		this.versions = versions;
+		lastID.set(storage.getMaxPostID());
+		Metrics.gauge("twotter_post_queue", "Posts waiting to be written", new Metrics.Gauge() {
+			public double value() {
+				return queue.size();
+			}
+		});
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "twotter-post-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues a post to be written
+	 * @param message Text of the post
+	 * @param username Author
+	 * @return The ID of the post, once its batch has committed
+	 * @throws SQLException The queue is full
+	 */
+	public Future<Long> submit(String message, String username) throws SQLException
+	{
+		PendingPost p = new PendingPost(message, username, 0);
+		if (!queue.offer(p)) throw new SQLException("Too many posts waiting to be written");
+		return p;
+	}
+
+	/**
+	 * Queues a repost to be written
+	 * @param postID The post to repost
+	 * @param username Who reposts it
+	 * @return postID once its batch has committed, or -1 if there is no such post
+	 * or username posted or already reposted it
+	 * @throws SQLException The queue is full
+	 */
+	public Future<Long> submitRepost(long postID, String username) throws SQLException
+	{
+		PendingPost p = new PendingPost(null, username, postID);
+		if (!queue.offer(p)) throw new SQLException("Too many posts waiting to be written");
+		return p;
+	}
+
+	private void writeLoop()
+	{
+		List<PendingPost> batch = new ArrayList<PendingPost>(BATCH_SIZE);
+		while (true) {
+			try {
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_DELAY);
+				while (batch.size() < BATCH_SIZE) {
+					queue.drainTo(batch, BATCH_SIZE - batch.size());
+					long wait = deadline - System.nanoTime();
+					if (batch.size() >= BATCH_SIZE || wait <= 0) break;
+					PendingPost p = queue.poll(wait, TimeUnit.NANOSECONDS);
+					if (p == null) break;
+					batch.add(p);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			Metrics.Histogram seconds = BATCH_SECONDS.get();
+			long start = seconds.start();
+			try {
+				write(batch);
+				seconds.stop(start);
+				POSTS.add(batch.size());
+			} catch (Exception e) {
+				Log.error("Could not write " + batch.size() + " posts", e);
+				for (PendingPost p : batch) {
+					if (!p.isDone()) p.fail(e);	// those already done were stored
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/*
+	 * Writes a batch in one transaction and fans it out, then completes its futures.
+	 * Once the batch has committed its posts exist, so a failure to publish one is
+	 * logged rather than failing the post
+	 */
+	private void write(List<PendingPost> batch) throws SQLException
+	{
+		long timestamp = System.currentTimeMillis();
+		List<Post> posts = new ArrayList<Post>(batch.size());
+		Map<Post, PendingPost> submitted = new IdentityHashMap<Post, PendingPost>();
+		Map<String, String> pictures = new HashMap<String, String>();
+		for (PendingPost p : batch) {
+			Post post;
+			if (p.repostOf != 0) {
+				Post original = storage.getPost(p.repostOf);
+				if (original == null || original.getPostBy().equals(p.username)) continue;
+				post = original.repostedBy(p.username, timestamp);
+			}
+			else {
+				if (!pictures.containsKey(p.username)) {
+					User u = storage.getUser(p.username);
+					pictures.put(p.username, u == null ? null : u.getPicture());
+				}
+				post = new Post(p.username, p.username, p.message, timestamp, lastID.incrementAndGet(), pictures.get(p.username));
+			}
+			posts.add(post);
+			submitted.put(post, p);
+		}
+		final List<Post> written = new ArrayList<Post>(posts.size());
+		final List<List<String>> followers = new ArrayList<List<String>>(posts.size());
+		storage.writePosts(posts, new Storage.BatchListener() {
+			public void written(Storage.Transaction tx, List<Post> stored) throws SQLException {
+				written.clear();
+				followers.clear();
+				for (Post post : stored) {
+					written.add(post);
+					followers.add(timelines.fanOut(tx, post));
+				}
+			}
+		});
+		// Posts stored by an earlier batch whose fan-out failed may come first
+		for (int i = 0; i < written.size(); i++) {
+			Post post = written.get(i);
+			try {
+				published(post, followers.get(i));
+			} catch (RuntimeException e) {
+				Log.error("Could not publish post " + post.getPostID(), e);
+			}
+			PendingPost p = submitted.get(post);
+			if (p != null) p.complete(post.getPostID());
+		}
+		for (PendingPost p : batch) {
+			if (!p.isDone()) p.complete(-1);	// a repost that was not written
+		}
+	}
+
+	/*
+	 * Shows a committed post in memory: feeds, page stamps, live streams, counts and search
+	 */
+	private void published(Post post, List<String> followers)
+	{
+		timelines.published(post, followers);
+		versions.changed(post.getPostedBy());
+		versions.received(followers);
+		hub.publish(post, followers);
+		if (post.isRepost()) counts.reposted(post.getPostID());
+		else search.add(post.getPostID(), post.getPostBy(), post.getText());
+	}
+
+	/**
+	 * A queued post and the result its submitter waits on
+	 */
+	private static class PendingPost implements Future<Long> {
+
+		final String message;
+		final String username;
+		final long repostOf;	// the post reposted, or 0 for a new post
+		private Long postID;
+		private Exception error;
+		private boolean done;
+
+		PendingPost(String message, String username, long repostOf)
+		{
+			this.message = message;
+			this.username = username;
+			this.repostOf = repostOf;
+		}
+
+		synchronized void complete(long postID)
+		{
+			this.postID = postID;
+			done = true;
+			notifyAll();
+		}
+
+		synchronized void fail(Exception error)
+		{
+			this.error = error;
+			done = true;
+			notifyAll();
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			return false;	// it may already be in a transaction
+		}
+
+		public boolean isCancelled()
+		{
+			return false;
+		}
+
+		public synchronized boolean isDone()
+		{
+			return done;
+		}
+
+		public synchronized Long get() throws InterruptedException, ExecutionException
+		{
+			while (!done) wait();
+			return result();
+		}
+
+		public synchronized Long get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+		{
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			while (!done) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) throw new TimeoutException();
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+			}
+			return result();
+		}
+
+		private Long result() throws ExecutionException
+		{
+			if (error != null) throw new ExecutionException(error);
+			return postID;
+		}
+	}
+}
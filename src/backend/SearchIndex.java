@@ -0,0 +1,455 @@
+package backend;
+
+import java.io.*;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over the words of every post and its author's username. Each term
+ * maps to the IDs of the posts containing it, in increasing order, stored as
+ * variable length deltas so a posting takes one or two bytes rather than eight.
+ * Posts are added as PostWriter commits them; post IDs only ever increase, so a
+ * posting is always appended. The index is saved to a snapshot file now and then
+ * and at exit, and on startup it is loaded from the snapshot and caught up with
+ * the posts created since, rather than rebuilt from every post. A snapshot of other
+ * storage, or one ahead of storage, as after a database is restored, is rebuilt:
+ * the post IDs it holds may since have been given to other posts
+ */
+public class SearchIndex {
+
+	// Longest term indexed; longer words are cut to this
+	static final int MAX_TERM = 32;
+	// Most terms of a query used
+	static final int MAX_QUERY_TERMS = 8;
+	// A snapshot is saved after this many posts have been indexed since the last one
+	private static final int SNAPSHOT_INTERVAL = Integer.getInteger("twotter.searchSnapshotPosts", 10000);
+
+	private static final int MAGIC = 0x54575358;	// "TWSX"
+	private static final int FORMAT = 2;
+
+	private static final Metrics.Family<Metrics.Histogram> QUERY_SECONDS =
+			Metrics.timer("twotter_search_seconds", "Time to search the index, by order", "order");
+
+	/**
+	 * The posts containing one term
+	 */
+	private static class Postings {
+		byte[] data;
+		int length;		// bytes of data in use
+		int count;		// posts
+		long last;		// highest post ID, 0 if none
+
+		Postings()
+		{
+			data = new byte[8];
+		}
+
+		Postings(byte[] data, int count, long last)
+		{
+			this.data = data;
+			this.length = data.length;
+			this.count = count;
+			this.last = last;
+		}
+
+		void add(long postID)
+		{
+			if (length + 10 > data.length) data = Arrays.copyOf(data, Math.max(16, data.length * 2));
+			long delta = postID - last;
+			while ((delta & ~0x7FL) != 0) {
+				data[length++] = (byte) ((delta & 0x7F) | 0x80);
+				delta >>>= 7;
+			}
+			data[length++] = (byte) delta;
+			last = postID;
+			count++;
+		}
+
+		/**
+		 * @return Every post ID, in increasing order
+		 */
+		long[] decode()
+		{
+			long[] ids = new long[count];
+			long id = 0;
+			int pos = 0;
+			for (int i = 0; i < count; i++) {
+				long delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = data[pos++];
+					delta |= (long) (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				id += delta;
+				ids[i] = id;
+			}
+			return ids;
+		}
+	}
+
+	private final File snapshot;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<String, Postings> terms = new HashMap<String, Postings>();
+	private long lastIndexed;		// highest post ID in the index
+	private int posts;				// posts in the index
+	private int sinceSnapshot;		// posts indexed since the last snapshot
+	private final AtomicBoolean saving = new AtomicBoolean();
+	private String source;			// Storage.describe() of the storage indexed
+
+	/**
+	 * @param snapshot Where the index is saved between runs
+	 */
+	public SearchIndex(File snapshot)
+	{
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Loads the snapshot, if there is a usable one, indexes the posts created since
+	 * it was saved, and arranges for the index to be saved at exit
+	 * @param storage Where the posts are read from
+	 * @throws SQLException
+	 */
+	public void init(Storage storage) throws SQLException
+	{
+		long start = System.currentTimeMillis();
+		source = storage.describe();
+		if (snapshot.isFile()) {
+			try {
+				load(storage.getMaxPostID());
+			} catch (IOException e) {
+				Log.warn("Could not read search index " + snapshot + ", rebuilding it", e);
+				lock.writeLock().lock();
+				try {
+					terms.clear();
+					lastIndexed = 0;
+					posts = 0;
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+		}
+		int loaded = posts;
+		storage.scanPosts(lastIndexed, new Storage.PostVisitor() {
+			public void visit(long postID, String username, String message) {
+				add(postID, username, message);
+			}
+		});
+		Log.info("Search index: " + posts + " posts, " + terms.size() + " terms, " + (posts - loaded) +
+				" indexed since the snapshot, in " + (System.currentTimeMillis() - start) + " ms");
+		if (sinceSnapshot > 0) save();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				if (sinceSnapshot > 0) save();
+			}
+		});
+	}
+
+	/**
+	 * Indexes a committed post. Posts must be added in increasing ID order; one
+	 * already indexed is ignored
+	 * @param postID
+	 * @param username Author
+	 * @param message Text of the post, as posted
+	 */
+	public void add(long postID, String username, String message)
+	{
+		Set<String> words = terms(message + " " + username);
+		lock.writeLock().lock();
+		try {
+			if (postID <= lastIndexed) return;
+			for (String w : words) {
+				Postings p = terms.get(w);
+				if (p == null) {
+					p = new Postings();
+					terms.put(w, p);
+				}
+				p.add(postID);
+			}
+			lastIndexed = postID;
+			posts++;
+			sinceSnapshot++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (sinceSnapshot >= SNAPSHOT_INTERVAL) saveInBackground();
+	}
+
+	/**
+	 * Posts containing every word of a query, newest first
+	 * @param query Words to search for
+	 * @param before Only posts with lower IDs than this, for later pages; 0 for the first page
+	 * @param limit Most post IDs to return
+	 * @return Post IDs, newest first
+	 */
+	public long[] searchRecent(String query, long before, int limit)
+	{
+		Metrics.Histogram seconds = QUERY_SECONDS.labels("recent");
+		long start = seconds.start();
+		List<long[]> lists = postings(query, true);
+		long[] found = new long[limit];
+		int n = 0;
+		if (!lists.isEmpty()) {
+			// Walk the shortest list newest first, looking each ID up in the others
+			long[] shortest = lists.get(0);
+			int[] from = new int[lists.size()];
+			for (int i = 1; i < lists.size(); i++) from[i] = lists.get(i).length;
+			for (int i = shortest.length - 1; i >= 0 && n < limit; i--) {
+				long id = shortest[i];
+				if (before > 0 && id >= before) continue;
+				boolean all = true;
+				for (int j = 1; j < lists.size() && all; j++) {
+					int k = Arrays.binarySearch(lists.get(j), 0, from[j], id);
+					if (k < 0) {
+						from[j] = -k - 1;
+						all = false;
+					} else {
+						from[j] = k;
+					}
+				}
+				if (all) found[n++] = id;
+			}
+		}
+		seconds.stop(start);
+		return Arrays.copyOf(found, n);
+	}
+
+	/**
+	 * Posts containing any word of a query, those with the most and rarest words
+	 * first, and newest first among equals
+	 * @param query Words to search for
+	 * @param limit Most post IDs to return
+	 * @return Post IDs, best first
+	 */
+	public long[] searchRanked(String query, int limit)
+	{
+		Metrics.Histogram seconds = QUERY_SECONDS.labels("ranked");
+		long start = seconds.start();
+		List<long[]> lists = postings(query, false);
+		double[] idf = new double[lists.size()];
+		int total;
+		lock.readLock().lock();
+		try {
+			total = posts;
+		} finally {
+			lock.readLock().unlock();
+		}
+		double maxScore = 0;
+		for (int i = 0; i < idf.length; i++) {
+			idf[i] = Math.log(1 + (double) total / lists.get(i).length);
+			maxScore += idf[i];
+		}
+
+		// Merge the lists from their ends, scoring each post once, keeping the best limit
+		PriorityQueue<double[]> best = new PriorityQueue<double[]>(limit + 1, new Comparator<double[]>() {
+			public int compare(double[] a, double[] b) {
+				return a[0] != b[0] ? Double.compare(a[0], b[0]) : Double.compare(a[1], b[1]);
+			}
+		});
+		int[] pos = new int[lists.size()];
+		for (int i = 0; i < pos.length; i++) pos[i] = lists.get(i).length - 1;
+		while (true) {
+			long id = -1;
+			for (int i = 0; i < pos.length; i++)
+				if (pos[i] >= 0 && lists.get(i)[pos[i]] > id) id = lists.get(i)[pos[i]];
+			if (id < 0) break;
+			double score = 0;
+			for (int i = 0; i < pos.length; i++) {
+				if (pos[i] >= 0 && lists.get(i)[pos[i]] == id) {
+					score += idf[i];
+					pos[i]--;
+				}
+			}
+			if (best.size() < limit) best.add(new double[] {score, id});
+			else if (score > best.peek()[0]) {	// an equal score is older, so not better
+				best.poll();
+				best.add(new double[] {score, id});
+			}
+			// Once every post kept has every word, older posts can at best tie
+			if (best.size() == limit && best.peek()[0] >= maxScore) break;
+		}
+		long[] found = new long[best.size()];
+		for (int i = found.length - 1; i >= 0; i--) found[i] = (long) best.poll()[1];
+		seconds.stop(start);
+		return found;
+	}
+
+	/*
+	 * Decoded postings of each distinct term of a query, shortest first. If all is
+	 * set and any term is not indexed, nothing can match and the list is empty
+	 */
+	private List<long[]> postings(String query, boolean all)
+	{
+		List<Postings> found = new ArrayList<Postings>();
+		lock.readLock().lock();
+		try {
+			for (String w : terms(query)) {
+				if (found.size() == MAX_QUERY_TERMS) break;
+				Postings p = terms.get(w);
+				if (p == null) {
+					if (all) return new ArrayList<long[]>();
+					continue;
+				}
+				// The writer may append once the lock is released, but never changes bytes
+				// already written, so the array and count taken now stay consistent
+				found.add(new Postings(p.data, p.count, p.last));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		List<long[]> lists = new ArrayList<long[]>();
+		for (Postings p : found) lists.add(p.decode());
+		Collections.sort(lists, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return Integer.compare(a.length, b.length);
+			}
+		});
+		return lists;
+	}
+
+	/**
+	 * Splits text into lower case words of letters and digits
+	 * @param text
+	 * @return The distinct words, in order of appearance
+	 */
+	static Set<String> terms(String text)
+	{
+		Set<String> words = new LinkedHashSet<String>();
+		if (text == null) return words;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i <= text.length(); i++) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				if (sb.length() < MAX_TERM) sb.append(Character.toLowerCase(c));
+			} else if (sb.length() > 0) {
+				words.add(sb.toString());
+				sb.setLength(0);
+			}
+		}
+		return words;
+	}
+
+	private void saveInBackground()
+	{
+		if (!saving.compareAndSet(false, true)) return;
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					save();
+				} finally {
+					saving.set(false);
+				}
+			}
+		}, "twotter-search-snapshot");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Writes the index to the snapshot file, replacing the old one only once the new
+	 * one is complete. The index is only locked while its postings are listed
+	 */
+	synchronized void save()
+	{
+		List<String> names;
+		List<Postings> copies;
+		long last;
+		int count;
+		lock.readLock().lock();
+		try {
+			names = new ArrayList<String>(terms.size());
+			copies = new ArrayList<Postings>(terms.size());
+			for (Map.Entry<String, Postings> e : terms.entrySet()) {
+				Postings p = e.getValue();
+				// Shares the array: bytes below length are never changed by later adds
+				Postings copy = new Postings(p.data, p.count, p.last);
+				copy.length = p.length;
+				names.add(e.getKey());
+				copies.add(copy);
+			}
+			last = lastIndexed;
+			count = posts;
+			sinceSnapshot = 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+		File tmp = new File(snapshot.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT);
+				out.writeUTF(source);
+				out.writeLong(last);
+				out.writeInt(count);
+				out.writeInt(names.size());
+				for (int i = 0; i < names.size(); i++) {
+					Postings p = copies.get(i);
+					out.writeUTF(names.get(i));
+					out.writeInt(p.count);
+					out.writeLong(p.last);
+					out.writeInt(p.length);
+					out.write(p.data, 0, p.length);
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(snapshot) && !(snapshot.delete() && tmp.renameTo(snapshot)))
+				throw new IOException("Could not replace " + snapshot);
+		} catch (IOException e) {
+			Log.warn("Could not save search index", e);
+			tmp.delete();
+		}
+	}
+
+	/*
+	 * Reads the snapshot, unless it is of other storage or holds posts past maxPostID
+	 */
+	private void load(long maxPostID) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT) throw new IOException("Not a search index snapshot");
+			String from = in.readUTF();
+			if (!from.equals(source)) throw new IOException("Snapshot is of other storage: " + from);
+			long last = in.readLong();
+			if (last > maxPostID) throw new IOException("Snapshot indexes post " + last + ", storage ends at " + maxPostID);
+			int count = in.readInt();
+			int n = in.readInt();
+			Map<String, Postings> loaded = new HashMap<String, Postings>(n * 2);
+			for (int i = 0; i < n; i++) {
+				String term = in.readUTF();
+				int postings = in.readInt();
+				long termLast = in.readLong();
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				loaded.put(term, new Postings(data, postings, termLast));
+			}
+			lock.writeLock().lock();
+			try {
+				terms.clear();
+				terms.putAll(loaded);
+				lastIndexed = last;
+				posts = count;
+				sinceSnapshot = 0;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
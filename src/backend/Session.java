@@ -0,0 +1,56 @@
+package backend;
+
+/**
+ * A logged in user's session. USER keeps when it started and was last used, so that
+ * it ends at the same time whether it is cached in SessionStore, read back after
+ * being dropped from there, or read back after a restart. Times are milliseconds
+ * since the epoch
+ */
+public class Session {
+
+	final String id;
+	final String username;
+	final long created;
+	volatile long lastUsed;
+	// lastUsed as it was last written to storage
+	volatile long storedUse;
+
+	/**
+	 * @param id The session token
+	 * @param username The user it belongs to
+	 * @param created When it started
+	 * @param lastUsed When it was last used, as stored
+	 */
+	public Session(String id, String username, long created, long lastUsed)
+	{
+		this.id = id;
+		this.username = username;
+		this.created = created;
+		this.lastUsed = lastUsed;
+		this.storedUse = lastUsed;
+	}
+
+	public String getID()
+	{
+		return id;
+	}
+
+	public String getUsername()
+	{
+		return username;
+	}
+
+	public long getLastUsed()
+	{
+		return lastUsed;
+	}
+
+	/**
+	 * @return Whether it has been idle for SessionStore.IDLE_TIMEOUT or is older
+	 * than SessionStore.MAX_AGE
+	 */
+	public boolean isExpired(long now)
+	{
+		return now - lastUsed > SessionStore.IDLE_TIMEOUT || now - created > SessionStore.MAX_AGE;
+	}
+}
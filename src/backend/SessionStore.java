@@ -0,0 +1,141 @@
+package backend;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Session tokens of logged in users, mapped to their usernames, so that a request
+ * is authenticated with a hash lookup instead of a query on USER. The USER table
+ * stays the record of who is logged in and since when; this only caches it. A session
+ * ends when it has been idle for IDLE_TIMEOUT or is older than MAX_AGE, or when the
+ * user logs out. Use is written back to storage at most once per TOUCH_INTERVAL
+ */
+public class SessionStore {
+
+	// A session unused for this long has ended
+	public static final long IDLE_TIMEOUT = Long.getLong("twotter.sessionIdle", 30 * 60 * 1000L);
+	// A session this old has ended however much it is used
+	public static final long MAX_AGE = Long.getLong("twotter.sessionMaxAge", 24 * 60 * 60 * 1000L);
+	// Most sessions cached; beyond this the least useful are dropped and reloaded on demand
+	private static final int CAPACITY = Integer.getInteger("twotter.cachedSessions", 100000);
+	// Ended sessions are swept out on every SWEEP_INTERVAL-th put
+	private static final int SWEEP_INTERVAL = 1024;
+	// How stale the last use kept in storage may get; a session read back after a
+	// restart may end this much early
+	private static final long TOUCH_INTERVAL = Long.getLong("twotter.sessionTouch", 60 * 1000L);
+
+	// Returned by get() for a session that has ended; compare with ==
+	public static final String EXPIRED = new String("expired");
+
+	private static final StripedCounter HITS = Metrics.CACHE_REQUESTS.labels("sessions", "hit");
+	private static final StripedCounter MISSES = Metrics.CACHE_REQUESTS.labels("sessions", "miss");
+
+	private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+	private final AtomicInteger puts = new AtomicInteger();
+	private final Storage storage;
+
+	/**
+	 * @param storage Where sessions are kept
+	 */
+	public SessionStore(Storage storage)
+	{
+		this.storage = storage;
+	}
+
+	/**
+	 * @param token A session token from a cookie
+	 * @return The user the session belongs to, EXPIRED if it has ended, or null if
+	 * the token is not cached
+	 * @throws SQLException The use could not be written to storage
+	 */
+	public String get(String token) throws SQLException
+	{
+		Session s = sessions.get(token);
+		if (s == null) {
+			MISSES.increment();
+			return null;
+		}
+		HITS.increment();
+		long now = System.currentTimeMillis();
+		if (s.isExpired(now)) {
+			sessions.remove(token, s);
+			return EXPIRED;
+		}
+		use(s, now);
+		return s.username;
+	}
+
+	/**
+	 * Starts caching a session, at login or after it was read from storage, and
+	 * counts it as used. Its start time is kept as it is
+	 * @param session A session that has not expired
+	 * @throws SQLException Ended sessions could not be ended in storage
+	 */
+	public void put(Session session) throws SQLException
+	{
+		use(session, System.currentTimeMillis());
+		sessions.put(session.id, session);
+		if (puts.incrementAndGet() % SWEEP_INTERVAL == 0 || sessions.size() > CAPACITY) sweep();
+	}
+
+	/**
+	 * Forgets a session, at logout
+	 * @param token The session token
+	 */
+	public void remove(String token)
+	{
+		sessions.remove(token);
+	}
+
+	/*
+	 * Marks a session used, writing the use to storage if what is stored is too stale
+	 */
+	private void use(Session s, long now) throws SQLException
+	{
+		s.lastUsed = now;
+		if (now - s.storedUse < TOUCH_INTERVAL) return;
+		s.storedUse = now;
+		storage.touchSessions(Collections.singletonList(s));
+	}
+
+	/*
+	 * Drops ended sessions, ending them in storage too so they are not read back,
+	 * then the least recently used live ones if still over capacity. Dropped live
+	 * sessions have their last use stored, and are read back on their next request
+	 */
+	private void sweep() throws SQLException
+	{
+		long now = System.currentTimeMillis();
+		long oldest = Long.MAX_VALUE;
+		List<String> ended = new ArrayList<String>();
+		for (Iterator<Map.Entry<String, Session>> it = sessions.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, Session> e = it.next();
+			if (!e.getValue().isExpired(now)) {
+				oldest = Math.min(oldest, e.getValue().lastUsed);
+				continue;
+			}
+			it.remove();
+			ended.add(e.getKey());
+		}
+		// Halve the idle window until enough sessions have gone
+		List<Session> dropped = new ArrayList<Session>();
+		long cutoff = now - (now - oldest) / 2;
+		for (int round = 0; round < 32 && sessions.size() > CAPACITY; round++) {
+			for (Iterator<Session> it = sessions.values().iterator(); it.hasNext(); ) {
+				Session s = it.next();
+				if (s.lastUsed > cutoff) continue;
+				it.remove();
+				if (s.lastUsed != s.storedUse) dropped.add(s);
+			}
+			cutoff = now - (now - cutoff) / 2;
+		}
+		if (!ended.isEmpty()) storage.endSessions(ended);
+		if (!dropped.isEmpty()) storage.touchSessions(dropped);
+	}
+}
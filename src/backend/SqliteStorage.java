@@ -0,0 +1,815 @@
+package backend;
+
+import java.io.File;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage in the SQLite database: users and their sessions in USER, follows in
+ * FOLLOWING, posts in POST and who posted or reposted them in POSTED, feeds in
+ * TIMELINE, favorites in FAVORITE and marks in MARK. A batch of posts and the
+ * listener's work on it commit in one transaction
+ */
+public class SqliteStorage implements Storage {
+
+	// Post IDs looked up per query by getPosts()
+	private static final int ID_BATCH = 64;
+
+	private static final String GET_USER_INFO_STATEMENT =
+			"SELECT username,email,description,picture,name FROM USER WHERE username=?";
+	private static final String CREATE_USER_STATEMENT =
+			"INSERT INTO USER(username,sessionId,password,email,description,picture,name,sessionCreated,sessionUsed) " +
+					"VALUES(?,?,?,?,?,?,?,?,?)";
+	// Profile fields that are null are left as they are
+	private static final String UPDATE_PROFILE_STATEMENT =
+			"UPDATE USER SET name = COALESCE(?, name), picture = COALESCE(?, picture), " +
+					"description = COALESCE(?, description) WHERE username = ?";
+
+	private static final String GET_SESSION_STATEMENT =
+			"SELECT username,sessionCreated,sessionUsed FROM USER WHERE sessionID = ?";
+	private static final String GET_LOGIN_STATEMENT =
+			"SELECT password,sessionId,sessionCreated,sessionUsed FROM USER WHERE username = ?";
+	private static final String SET_SESSION_STATEMENT =
+			"UPDATE USER SET sessionId = ?, sessionCreated = ?, sessionUsed = ? WHERE username = ?";
+	private static final String TOUCH_SESSION_STATEMENT =
+			"UPDATE USER SET sessionUsed = ? WHERE sessionId = ?";
+	private static final String END_SESSION_STATEMENT =
+			"UPDATE USER SET sessionId = NULL WHERE sessionId = ?";
+
+	private static final String FOLLOW_STATEMENT =
+			"INSERT OR IGNORE INTO FOLLOWING VALUES(?,?)";
+	private static final String UNFOLLOW_STATEMENT =
+			"DELETE FROM FOLLOWING WHERE follower=? AND followee=?";
+	private static final String GET_ALL_FOLLOWS =
+			"SELECT follower,followee FROM FOLLOWING";
+
+	// The most recent posts that a user has posted, including reposts
+	private static final String GET_USER_POSTS_STATEMENT =
+			"SELECT POSTED.postID,POSTED.username,POST.username,POSTED.timestamp,POST.message,USER.picture " +
+					"FROM POSTED JOIN POST ON POST.postid=POSTED.postid JOIN USER ON USER.username=POST.username WHERE " +
+					"POSTED.username= ? ORDER BY POSTED.timestamp DESC, POSTED.postId DESC LIMIT ?";
+	// The same, for the page of posts before a cursor
+	static final String GET_USER_POSTS_PAGE_STATEMENT =
+			"SELECT POSTED.postID,POSTED.username,POST.username,POSTED.timestamp,POST.message,USER.picture " +
+					"FROM POSTED JOIN POST ON POST.postid=POSTED.postid JOIN USER ON USER.username=POST.username WHERE " +
+					"POSTED.username= ? AND (POSTED.timestamp < ? OR (POSTED.timestamp = ? AND POSTED.postId < ?)) " +
+					"ORDER BY POSTED.timestamp DESC, POSTED.postId DESC LIMIT ?";
+	// Posts by ID, as posted by their authors; unused placeholders are given -1
+	private static final String GET_POSTS_BY_ID_STATEMENT =
+			"SELECT POST.postId,POST.username,POST.username,POSTED.timestamp,POST.message,USER.picture " +
+					"FROM POST JOIN POSTED ON POSTED.postId=POST.postId AND POSTED.username=POST.username " +
+					"JOIN USER ON USER.username=POST.username WHERE POST.postId IN (" + placeholders(ID_BATCH) + ")";
+	private static final String GET_POST_STATEMENT =
+			"SELECT POST.postId,POST.username,POST.username,POSTED.timestamp,POST.message,USER.picture " +
+					"FROM POST JOIN POSTED ON POSTED.postId=POST.postId AND POSTED.username=POST.username " +
+					"JOIN USER ON USER.username=POST.username WHERE POST.postId=?";
+	private static final String GET_POSTS_AFTER =
+			"SELECT postId,message,username FROM POST WHERE postId > ? ORDER BY postId";
+	private static final String GET_REPOST_COUNTS =
+			"SELECT postId,COUNT(*) FROM POSTED WHERE retweet=1 GROUP BY postId";
+	// Every post, then every repost in the order they were made, for export()
+	private static final String GET_ALL_POSTS =
+			"SELECT POST.postId,POST.username,POSTED.timestamp,POST.message FROM POST JOIN POSTED " +
+					"ON POSTED.postId=POST.postId AND POSTED.username=POST.username ORDER BY POST.postId";
+	private static final String GET_ALL_REPOSTS =
+			"SELECT POSTED.postId,POSTED.username,POSTED.timestamp,POST.username FROM POSTED JOIN POST ON POST.postId=POSTED.postId " +
+					"WHERE POSTED.username<>POST.username ORDER BY POSTED.timestamp, POSTED.postId";
+
+	private static final String MAX_ID_STATEMENT =
+			"SELECT MAX(postId) FROM POST";
+	private static final String CREATE_POST_STATEMENT =
+			"INSERT INTO POST VALUES(?,?,?)";
+	private static final String CREATE_POSTED_STATEMENT =
+			"INSERT INTO POSTED VALUES(?,?,null,?)";
+	// Ignored if the user posted or already reposted it
+	private static final String CREATE_REPOST_STATEMENT =
+			"INSERT OR IGNORE INTO POSTED VALUES(?,?,1,?)";
+
+	private static final String CREATE_TIMELINE_TABLE =
+			"CREATE TABLE IF NOT EXISTS TIMELINE(" +
+			"username VARCHAR(30), " +
+			"postId INT, " +
+			"postedBy VARCHAR(30), " +
+			"timestamp DATETIME, " +
+			"PRIMARY KEY (username, postId, postedBy), " +
+			"FOREIGN KEY (username) REFERENCES USER (username), " +
+			"FOREIGN KEY (postId) REFERENCES POST (postId))";
+	private static final String CREATE_TIMELINE_INDEX =
+			"CREATE INDEX IF NOT EXISTS TIMELINE_BY_TIME ON TIMELINE(username, timestamp, postId)";
+	// Builds timelines for every existing post when the table is first created
+	private static final String BACKFILL_TIMELINE =
+			"INSERT OR IGNORE INTO TIMELINE SELECT FOLLOWING.follower,POSTED.postId,POSTED.username,POSTED.timestamp " +
+					"FROM POSTED JOIN FOLLOWING ON FOLLOWING.followee=POSTED.username WHERE POSTED.username NOT IN " +
+					"(SELECT followee FROM FOLLOWING GROUP BY followee HAVING COUNT(*) > ?)";
+
+	private static final String INSERT_TIMELINE_STATEMENT =
+			"INSERT OR IGNORE INTO TIMELINE VALUES(?,?,?,?)";
+	private static final String TRIM_TIMELINE_STATEMENT =
+			"DELETE FROM TIMELINE WHERE username=? AND timestamp < " +
+					"(SELECT timestamp FROM TIMELINE WHERE username=? ORDER BY timestamp DESC LIMIT 1 OFFSET ?)";
+	private static final String REMOVE_FOLLOW_STATEMENT =
+			"DELETE FROM TIMELINE WHERE username=? AND postedBy=?";
+	private static final String GET_TIMELINE_STATEMENT =
+			"SELECT postId,postedBy,timestamp FROM TIMELINE " +
+					"WHERE username=? ORDER BY timestamp DESC, postId DESC LIMIT ?";
+	// The same, for the page before a cursor
+	private static final String GET_TIMELINE_PAGE_STATEMENT =
+			"SELECT postId,postedBy,timestamp FROM TIMELINE " +
+					"WHERE username=? AND (timestamp < ? OR (timestamp = ? AND postId < ?)) " +
+					"ORDER BY timestamp DESC, postId DESC LIMIT ?";
+
+	private static final String GET_FAVORITE_COUNTS =
+			"SELECT postID,COUNT(*) FROM FAVORITE GROUP BY postID";
+	private static final String GET_FAVORITE_STATEMENT =
+			"SELECT 1 FROM FAVORITE WHERE postID=? AND username=?";
+	private static final String ADD_FAVORITE_STATEMENT =
+			"INSERT OR IGNORE INTO FAVORITE VALUES(?,?)";
+	private static final String REMOVE_FAVORITE_STATEMENT =
+			"DELETE FROM FAVORITE WHERE postID=? AND username=?";
+
+	private static final String GET_MARK_STATEMENT =
+			"SELECT value FROM MARK WHERE name=?";
+	private static final String SET_MARK_STATEMENT =
+			"INSERT OR REPLACE INTO MARK VALUES(?,?)";
+
+	/**
+	 * A transaction, or for read() a connection in auto-commit mode
+	 */
+	private class SqliteTransaction implements Transaction {
+
+		final ConnectionPool.PooledConnection pc;
+
+		SqliteTransaction(ConnectionPool.PooledConnection pc)
+		{
+			this.pc = pc;
+		}
+
+		public User getUser(String username) throws SQLException
+		{
+			return SqliteStorage.getUser(pc, username);
+		}
+
+		public void addToTimeline(String username, long postID, String postedBy, long time) throws SQLException
+		{
+			ConnectionPool.TimedStatement prepStmt = pc.prepare("insert_timeline", INSERT_TIMELINE_STATEMENT);
+			prepStmt.setString(1, username);
+			prepStmt.setLong(2, postID);
+			prepStmt.setString(3, postedBy);
+			prepStmt.setLong(4, time);
+			prepStmt.executeUpdate();
+		}
+
+		public void trimTimeline(String username, int capacity) throws SQLException
+		{
+			ConnectionPool.TimedStatement prepStmt = pc.prepare("trim_timeline", TRIM_TIMELINE_STATEMENT);
+			prepStmt.setString(1, username);
+			prepStmt.setString(2, username);
+			prepStmt.setInt(3, capacity - 1);
+			prepStmt.executeUpdate();
+		}
+
+		public void removeFromTimeline(String username, String postedBy) throws SQLException
+		{
+			ConnectionPool.TimedStatement prepStmt = pc.prepare("remove_follow", REMOVE_FOLLOW_STATEMENT);
+			prepStmt.setString(1, username);
+			prepStmt.setString(2, postedBy);
+			prepStmt.executeUpdate();
+		}
+
+		public void readTimeline(String username, PageCursor before, int limit, TimelineVisitor visitor) throws SQLException
+		{
+			ResultSet rs = queryPage(pc, "get_timeline", "get_timeline_page", GET_TIMELINE_STATEMENT, GET_TIMELINE_PAGE_STATEMENT, username, before, limit);
+			try {
+				while (rs.next()) visitor.visit(rs.getLong(1), rs.getString(2), rs.getLong(3));
+			} finally {
+				rs.close();
+			}
+		}
+
+		public boolean isFavorite(long postID, String username) throws SQLException
+		{
+			ConnectionPool.TimedStatement prepStmt = pc.prepare("get_favorite", GET_FAVORITE_STATEMENT);
+			prepStmt.setLong(1, postID);
+			prepStmt.setString(2, username);
+			ResultSet rs = prepStmt.executeQuery();
+			try {
+				return rs.next();
+			} finally {
+				rs.close();
+			}
+		}
+
+		public int setFavorite(long postID, String username, boolean favorite) throws SQLException
+		{
+			ConnectionPool.TimedStatement prepStmt = favorite ? pc.prepare("add_favorite", ADD_FAVORITE_STATEMENT) : pc.prepare("remove_favorite", REMOVE_FAVORITE_STATEMENT);
+			prepStmt.setLong(1, postID);
+			prepStmt.setString(2, username);
+			return prepStmt.executeUpdate();
+		}
+
+		public long getMark(String name) throws SQLException
+		{
+			ConnectionPool.TimedStatement prepStmt = pc.prepare("get_mark", GET_MARK_STATEMENT);
+			prepStmt.setString(1, name);
+			ResultSet rs = prepStmt.executeQuery();
+			try {
+				return rs.next() ? rs.getLong(1) : 0;
+			} finally {
+				rs.close();
+			}
+		}
+
+		public void setMark(String name, long value) throws SQLException
+		{
+			ConnectionPool.TimedStatement prepStmt = pc.prepare("set_mark", SET_MARK_STATEMENT);
+			prepStmt.setString(1, name);
+			prepStmt.setLong(2, value);
+			prepStmt.executeUpdate();
+		}
+	}
+
+	private final ConnectionPool pool;
+	private final File postLog;
+
+	/**
+	 * @param pool Connections to the database
+	 * @param postLog Where PostLogStorage would keep the database's posts, or null
+	 * if this is the storage under a PostLogStorage. init() refuses to start while
+	 * it exists, as the posts written to the log since are not in POST
+	 */
+	public SqliteStorage(ConnectionPool pool, File postLog)
+	{
+		this.pool = pool;
+		this.postLog = postLog;
+	}
+
+	public void read(Work work) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			work.run(new SqliteTransaction(pc));
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public void write(Work work) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			Connection conn = pc.getConnection();
+			conn.setAutoCommit(false);
+			boolean done = false;
+			try {
+				work.run(new SqliteTransaction(pc));
+				conn.commit();
+				done = true;
+			} finally {
+				if (!done) conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public void init() throws SQLException
+	{
+		if (postLog != null && postLog.exists()) {
+			throw new SQLException(postLog + " holds posts that are not in " + DBPortal.DATABASE +
+					"; run with -Dtwotter.storage=postlog, or move it away to go back to the posts in the database");
+		}
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			// Readers are not blocked by a commit in progress; persists in the database file
+			Statement stmt = pc.getConnection().createStatement();
+			try {
+				stmt.execute("PRAGMA journal_mode=WAL");
+			} finally {
+				stmt.close();
+			}
+			Migration.migrate(pc.getConnection());
+			createTimelines(pc.getConnection());
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	/*
+	 * Creates the TIMELINE table if needed, filling it from the existing posts the
+	 * first time
+	 */
+	private static void createTimelines(Connection conn) throws SQLException
+	{
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type='table' AND name='TIMELINE'");
+			boolean exists;
+			try {
+				exists = rs.next();
+			} finally {
+				rs.close();
+			}
+			stmt.executeUpdate(CREATE_TIMELINE_TABLE);
+			stmt.executeUpdate(CREATE_TIMELINE_INDEX);
+			if (!exists) {
+				PreparedStatement prepStmt = conn.prepareStatement(BACKFILL_TIMELINE);
+				try {
+					prepStmt.setInt(1, TimelineStore.FANOUT_LIMIT);
+					prepStmt.executeUpdate();
+				} finally {
+					prepStmt.close();
+				}
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	public void recover(BatchListener listener) throws SQLException
+	{
+		// Posts and the listener's work commit together, so there is nothing to redo
+	}
+
+	public User getUser(String username) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			return getUser(pc, username);
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	private static User getUser(ConnectionPool.PooledConnection pc, String username) throws SQLException
+	{
+		ConnectionPool.TimedStatement prepStmt = pc.prepare("get_user_info", GET_USER_INFO_STATEMENT);
+		prepStmt.setString(1, username);
+		ResultSet rs = prepStmt.executeQuery();
+		try {
+			return rs.next() ? new User(rs) : null;
+		} finally {
+			rs.close();
+		}
+	}
+
+	public boolean createUser(String username, String description, String email, String picture, String passHash, String name) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			ConnectionPool.TimedStatement prepStmt = pc.prepare("create_user", CREATE_USER_STATEMENT);
+			prepStmt.setString(1, username);
+			prepStmt.setString(2, DBPortal.randomString(20));
+			prepStmt.setString(3, passHash);
+			prepStmt.setString(4, email);
+			prepStmt.setString(5, description);
+			prepStmt.setString(6, picture);
+			prepStmt.setString(7, name);
+			long now = System.currentTimeMillis();
+			prepStmt.setLong(8, now);
+			prepStmt.setLong(9, now);
+			return prepStmt.execute();
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public boolean updateProfile(String username, String name, String picture, String description) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			ConnectionPool.TimedStatement prepStmt = pc.prepare("update_profile", UPDATE_PROFILE_STATEMENT);
+			prepStmt.setString(1, name);
+			prepStmt.setString(2, picture);
+			prepStmt.setString(3, description);
+			prepStmt.setString(4, username);
+			return prepStmt.executeUpdate() > 0;
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public boolean checkPassword(String username, String password) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			ConnectionPool.TimedStatement prepStmt = pc.prepare("get_login", GET_LOGIN_STATEMENT);
+			prepStmt.setString(1, username);
+			ResultSet rs = prepStmt.executeQuery();
+			try {
+				return rs.next() && password != null && password.equals(rs.getString(1));
+			} finally {
+				rs.close();
+			}
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public Session startSession(String username, String sessionID) throws SQLException
+	{
+		long now = System.currentTimeMillis();
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			ConnectionPool.TimedStatement prepStmt = pc.prepare("get_login", GET_LOGIN_STATEMENT);
+			prepStmt.setString(1, username);
+			Session current = null;
+			ResultSet rs = prepStmt.executeQuery();
+			try {
+				if (!rs.next()) return null;
+				if (rs.getString(2) != null) current = new Session(rs.getString(2), username, rs.getLong(3), rs.getLong(4));
+			} finally {
+				rs.close();
+			}
+			// An expired session is replaced rather than revived
+			if (current != null && !current.isExpired(now)) return current;
+			prepStmt = pc.prepare("set_session", SET_SESSION_STATEMENT);
+			prepStmt.setString(1, sessionID);
+			prepStmt.setLong(2, now);
+			prepStmt.setLong(3, now);
+			prepStmt.setString(4, username);
+			prepStmt.executeUpdate();
+			return new Session(sessionID, username, now, now);
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public Session getSession(String sessionID) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			ConnectionPool.TimedStatement prepStmt = pc.prepare("get_session", GET_SESSION_STATEMENT);
+			prepStmt.setString(1, sessionID);
+			ResultSet rs = prepStmt.executeQuery();
+			try {
+				return rs.next() ? new Session(sessionID, rs.getString(1), rs.getLong(2), rs.getLong(3)) : null;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public void touchSessions(List<Session> sessions) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			Connection conn = pc.getConnection();
+			conn.setAutoCommit(false);
+			boolean done = false;
+			try {
+				ConnectionPool.TimedStatement prepStmt = pc.prepare("touch_session", TOUCH_SESSION_STATEMENT);
+				for (Session session : sessions) {
+					prepStmt.setLong(1, session.getLastUsed());
+					prepStmt.setString(2, session.getID());
+					prepStmt.addBatch();
+				}
+				prepStmt.executeBatch();
+				conn.commit();
+				done = true;
+			} finally {
+				if (!done) conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public void endSession(String sessionID) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			ConnectionPool.TimedStatement prepStmt = pc.prepare("end_session", END_SESSION_STATEMENT);
+			prepStmt.setString(1, sessionID);
+			prepStmt.executeUpdate();
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public void endSessions(List<String> sessionIDs) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			Connection conn = pc.getConnection();
+			conn.setAutoCommit(false);
+			boolean done = false;
+			try {
+				ConnectionPool.TimedStatement prepStmt = pc.prepare("end_session", END_SESSION_STATEMENT);
+				for (String sessionID : sessionIDs) {
+					prepStmt.setString(1, sessionID);
+					prepStmt.addBatch();
+				}
+				prepStmt.executeBatch();
+				conn.commit();
+				done = true;
+			} finally {
+				if (!done) conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public void follow(String follower, String followee, Work work) throws SQLException
+	{
+		changeFollow("follow", FOLLOW_STATEMENT, follower, followee, work);
+	}
+
+	public void unfollow(String follower, String followee, Work work) throws SQLException
+	{
+		changeFollow("unfollow", UNFOLLOW_STATEMENT, follower, followee, work);
+	}
+
+	private void changeFollow(String name, String sql, String follower, String followee, Work work) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			Connection conn = pc.getConnection();
+			conn.setAutoCommit(false);
+			boolean done = false;
+			try {
+				ConnectionPool.TimedStatement prepStmt = pc.prepare(name, sql);
+				prepStmt.setString(1, follower);
+				prepStmt.setString(2, followee);
+				prepStmt.executeUpdate();
+				work.run(new SqliteTransaction(pc));
+				conn.commit();
+				done = true;
+			} finally {
+				if (!done) conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public void scanFollows(FollowVisitor visitor) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			Statement stmt = pc.getConnection().createStatement();
+			try {
+				ResultSet rs = stmt.executeQuery(GET_ALL_FOLLOWS);
+				try {
+					while (rs.next()) visitor.visit(rs.getString(1), rs.getString(2));
+				} finally {
+					rs.close();
+				}
+			} finally {
+				stmt.close();
+			}
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public String describe()
+	{
+		return "sqlite " + pool.getURL();
+	}
+
+	public long getMaxPostID() throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			ResultSet rs = pc.prepare("max_id", MAX_ID_STATEMENT).executeQuery();
+			try {
+				return rs.next() ? rs.getLong(1) : 0;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public Post getPost(long postID) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			ConnectionPool.TimedStatement prepStmt = pc.prepare("get_post", GET_POST_STATEMENT);
+			prepStmt.setLong(1, postID);
+			ResultSet rs = prepStmt.executeQuery();
+			try {
+				return rs.next() ? new Post(rs) : null;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public List<Post> getPosts(Transaction tx, long[] ids) throws SQLException
+	{
+		List<Post> posts = new ArrayList<Post>(ids.length);
+		if (ids.length == 0) return posts;
+		ConnectionPool.TimedStatement prepStmt = ((SqliteTransaction) tx).pc.prepare("get_posts_by_id", GET_POSTS_BY_ID_STATEMENT);
+		for (int from = 0; from < ids.length; from += ID_BATCH) {
+			for (int i = 0; i < ID_BATCH; i++) prepStmt.setLong(i + 1, from + i < ids.length ? ids[from + i] : -1);
+			ResultSet rs = prepStmt.executeQuery();
+			try {
+				while (rs.next()) posts.add(new Post(rs));
+			} finally {
+				rs.close();
+			}
+		}
+		return posts;
+	}
+
+	public List<Post> getUserPosts(Transaction tx, String username, PageCursor before, int limit) throws SQLException
+	{
+		return queryPosts(((SqliteTransaction) tx).pc, "get_user_posts", "get_user_posts_page", GET_USER_POSTS_STATEMENT, GET_USER_POSTS_PAGE_STATEMENT, username, before, limit);
+	}
+
+	public void writePosts(List<Post> posts, BatchListener listener) throws SQLException
+	{
+		List<Post> written = new ArrayList<Post>(posts.size());
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			Connection conn = pc.getConnection();
+			conn.setAutoCommit(false);
+			try {
+				ConnectionPool.TimedStatement insertPost = pc.prepare("create_post", CREATE_POST_STATEMENT);
+				ConnectionPool.TimedStatement insertPosted = pc.prepare("create_posted", CREATE_POSTED_STATEMENT);
+				for (Post p : posts) {
+					if (p.isRepost()) {
+						ConnectionPool.TimedStatement prepStmt = pc.prepare("create_repost", CREATE_REPOST_STATEMENT);
+						prepStmt.setString(1, p.getPostedBy());
+						prepStmt.setLong(2, p.getPostID());
+						prepStmt.setLong(3, p.getPostTime());
+						if (prepStmt.executeUpdate() > 0) written.add(p);
+						continue;
+					}
+					insertPost.setLong(1, p.getPostID());
+					insertPost.setString(2, p.getText());
+					insertPost.setString(3, p.getPostBy());
+					insertPost.addBatch();
+					insertPosted.setString(1, p.getPostBy());
+					insertPosted.setLong(2, p.getPostID());
+					insertPosted.setLong(3, p.getPostTime());
+					insertPosted.addBatch();
+					written.add(p);
+				}
+				insertPost.executeBatch();
+				insertPosted.executeBatch();
+				listener.written(new SqliteTransaction(pc), written);
+				conn.commit();
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			} finally {
+				conn.setAutoCommit(true);
+			}
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public void scanPosts(long afterID, PostVisitor visitor) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			PreparedStatement prepStmt = pc.getConnection().prepareStatement(GET_POSTS_AFTER);
+			try {
+				prepStmt.setLong(1, afterID);
+				ResultSet rs = prepStmt.executeQuery();
+				try {
+					while (rs.next()) visitor.visit(rs.getLong(1), rs.getString(3), rs.getString(2));
+				} finally {
+					rs.close();
+				}
+			} finally {
+				prepStmt.close();
+			}
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public void export(Exporter exporter) throws SQLException
+	{
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			Statement stmt = pc.getConnection().createStatement();
+			try {
+				ResultSet rs = stmt.executeQuery(GET_ALL_POSTS);
+				try {
+					while (rs.next()) exporter.add(new Post(rs.getString(2), rs.getString(2), rs.getString(4), rs.getLong(3), rs.getLong(1), null));
+				} finally {
+					rs.close();
+				}
+				rs = stmt.executeQuery(GET_ALL_REPOSTS);
+				try {
+					while (rs.next()) exporter.add(new Post(rs.getString(4), rs.getString(2), null, rs.getLong(3), rs.getLong(1), null));
+				} finally {
+					rs.close();
+				}
+			} finally {
+				stmt.close();
+			}
+		} finally {
+			pool.release(pc);
+		}
+	}
+
+	public Map<Long, Integer> getRepostCounts() throws SQLException
+	{
+		return getCounts(GET_REPOST_COUNTS);
+	}
+
+	public Map<Long, Integer> getFavoriteCounts() throws SQLException
+	{
+		return getCounts(GET_FAVORITE_COUNTS);
+	}
+
+	/*
+	 * Reads a query of post IDs and counts
+	 */
+	private Map<Long, Integer> getCounts(String sql) throws SQLException
+	{
+		Map<Long, Integer> counts = new HashMap<Long, Integer>();
+		ConnectionPool.PooledConnection pc = pool.acquire();
+		try {
+			Statement stmt = pc.getConnection().createStatement();
+			try {
+				ResultSet rs = stmt.executeQuery(sql);
+				try {
+					while (rs.next()) counts.put(rs.getLong(1), rs.getInt(2));
+				} finally {
+					rs.close();
+				}
+			} finally {
+				stmt.close();
+			}
+		} finally {
+			pool.release(pc);
+		}
+		return counts;
+	}
+
+	/**
+	 * Runs a paged post query. Both statements take the key as their first parameter
+	 * and the limit as their last; the page statement takes the cursor's timestamp,
+	 * timestamp again and postID in between
+	 * @param pc Connection to query with
+	 * @param name What the first page statement is timed as; the page statement is
+	 * timed as pageName
+	 * @param firstSql Statement for the first page
+	 * @param pageSql Statement for the page before a cursor
+	 * @param key Value of the first parameter, normally a username
+	 * @param before Cursor of the page, or null for the first page
+	 * @param limit Most rows to return
+	 * @return The rows. The caller must close it
+	 * @throws SQLException
+	 */
+	private static ResultSet queryPage(ConnectionPool.PooledConnection pc, String name, String pageName, String firstSql, String pageSql, String key, PageCursor before, int limit) throws SQLException
+	{
+		ConnectionPool.TimedStatement prepStmt = before == null ? pc.prepare(name, firstSql) : pc.prepare(pageName, pageSql);
+		int i = 1;
+		prepStmt.setString(i++, key);
+		if (before != null) {
+			prepStmt.setLong(i++, before.getTimestamp());
+			prepStmt.setLong(i++, before.getTimestamp());
+			prepStmt.setLong(i++, before.getPostID());
+		}
+		prepStmt.setInt(i, limit);
+		return prepStmt.executeQuery();
+	}
+
+	/**
+	 * Runs a paged post query whose columns are in the order Post(ResultSet)
+	 * expects, and reads the whole result
+	 * @see #queryPage
+	 */
+	private static List<Post> queryPosts(ConnectionPool.PooledConnection pc, String name, String pageName, String firstSql, String pageSql, String key, PageCursor before, int limit) throws SQLException
+	{
+		List<Post> posts = new ArrayList<Post>();
+		ResultSet rs = queryPage(pc, name, pageName, firstSql, pageSql, key, before, limit);
+		try {
+			while (rs.next()) posts.add(new Post(rs));
+		} finally {
+			rs.close();
+		}
+		return posts;
+	}
+
+	/**
+	 * @return n comma separated SQL parameter placeholders
+	 */
+	private static String placeholders(int n)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) sb.append(i == 0 ? "?" : ",?");
+		return sb.toString();
+	}
+}
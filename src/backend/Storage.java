@@ -0,0 +1,261 @@
+package backend;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where users, their sessions and follows, and posts and reposts are kept, and what
+ * is built from them: feeds and favorites. DBPortal and the stores in front of it
+ * read and write these only through a Storage, and feeds and favorites only through
+ * the Transaction it gives to their work, so the engine can be chosen with
+ * -Dtwotter.storage: SqliteStorage, the default, keeps everything in the database
+ * file; PostLogStorage keeps posts and reposts in an append-only log and the rest
+ * in a SqliteStorage. The search index is kept in its own file with either engine.
+ * Engines report failures as SQLException, whatever they are stored in
+ */
+public interface Storage {
+
+	/**
+	 * Reads and writes of feeds, favorites and marks, made in the transaction or
+	 * connection of the work it is given to. Only valid until that work returns
+	 */
+	interface Transaction {
+		/**
+		 * @return The user, or null if there is no such user
+		 */
+		User getUser(String username) throws SQLException;
+
+		/**
+		 * Adds a post to a user's feed, if it is not already there
+		 * @param postedBy Who posted or reposted it
+		 * @param time When they did
+		 */
+		void addToTimeline(String username, long postID, String postedBy, long time) throws SQLException;
+
+		/**
+		 * Drops the oldest entries of a user's feed past the newest capacity
+		 */
+		void trimTimeline(String username, int capacity) throws SQLException;
+
+		/**
+		 * Drops every entry of a user's feed posted or reposted by postedBy
+		 */
+		void removeFromTimeline(String username, String postedBy) throws SQLException;
+
+		/**
+		 * Visits a page of a user's feed, newest first
+		 * @param before Cursor of the page, or null for the first page
+		 * @param limit Most entries to visit
+		 */
+		void readTimeline(String username, PageCursor before, int limit, TimelineVisitor visitor) throws SQLException;
+
+		boolean isFavorite(long postID, String username) throws SQLException;
+
+		/**
+		 * @return 1 if the favorite was added or removed, 0 if it already was, or was not, there
+		 */
+		int setFavorite(long postID, String username, boolean favorite) throws SQLException;
+
+		/**
+		 * @return A number kept under a name, such as how far an engine has fanned
+		 * out its posts, or 0 if none is
+		 */
+		long getMark(String name) throws SQLException;
+
+		void setMark(String name, long value) throws SQLException;
+	}
+
+	/**
+	 * Work that is done in the same transaction as a change to storage, such as
+	 * keeping feeds in step with a follow, or given one by read() or write()
+	 */
+	interface Work {
+		void run(Transaction tx) throws SQLException;
+	}
+
+	/**
+	 * Work done with a batch of posts once they are stored, in the transaction that
+	 * commits them
+	 */
+	interface BatchListener {
+		/**
+		 * @param tx The open transaction
+		 * @param posts The posts and reposts that were stored, in the order given
+		 */
+		void written(Transaction tx, List<Post> posts) throws SQLException;
+	}
+
+	interface TimelineVisitor {
+		/**
+		 * @param postedBy Who posted or reposted the post
+		 * @param time When they did
+		 */
+		void visit(long postID, String postedBy, long time);
+	}
+
+	/**
+	 * Takes every post and repost from an engine, as export() gives them
+	 */
+	interface Exporter {
+		void add(Post post) throws SQLException;
+	}
+
+	interface FollowVisitor {
+		void visit(String follower, String followee);
+	}
+
+	interface PostVisitor {
+		/**
+		 * @param message As written, not escaped
+		 */
+		void visit(long postID, String username, String message);
+	}
+
+	/**
+	 * Does work that only reads, outside a transaction
+	 */
+	void read(Work work) throws SQLException;
+
+	/**
+	 * Does work in one transaction, which rolls back if the work throws
+	 */
+	void write(Work work) throws SQLException;
+
+	/**
+	 * Creates or upgrades what the engine keeps, and recovers it after a crash
+	 * @throws SQLException
+	 */
+	void init() throws SQLException;
+
+	/**
+	 * Redoes the listener's work for posts that were stored but whose batch did not
+	 * commit that work, as can happen to an engine that does not keep posts in the
+	 * database. Call once, after init() and after what the listener writes to is loaded
+	 * @throws SQLException
+	 */
+	void recover(BatchListener listener) throws SQLException;
+
+	/**
+	 * @return The user, or null if there is no such user
+	 */
+	User getUser(String username) throws SQLException;
+
+	/**
+	 * @return Whether a new user was created
+	 */
+	boolean createUser(String username, String description, String email, String picture, String passHash, String name) throws SQLException;
+
+	/**
+	 * Changes the profile of a user; fields that are null are left as they are
+	 * @return Whether the user exists
+	 */
+	boolean updateProfile(String username, String name, String picture, String description) throws SQLException;
+
+	/**
+	 * @return Whether the user exists and password is theirs
+	 */
+	boolean checkPassword(String username, String password) throws SQLException;
+
+	/**
+	 * Gives a user a session unless they already have one that has not expired
+	 * @param sessionID The new session, if they have none
+	 * @return The user's session, or null if there is no such user
+	 */
+	Session startSession(String username, String sessionID) throws SQLException;
+
+	/**
+	 * @return The session with its stored times, or null if there is none. It may
+	 * have expired
+	 */
+	Session getSession(String sessionID) throws SQLException;
+
+	/**
+	 * Records when sessions were last used
+	 */
+	void touchSessions(List<Session> sessions) throws SQLException;
+
+	void endSession(String sessionID) throws SQLException;
+
+	void endSessions(List<String> sessionIDs) throws SQLException;
+
+	/**
+	 * Records a follow, if it is not already recorded
+	 * @param work Done in the same transaction
+	 */
+	void follow(String follower, String followee, Work work) throws SQLException;
+
+	/**
+	 * Removes a follow, if there is one
+	 * @param work Done in the same transaction
+	 */
+	void unfollow(String follower, String followee, Work work) throws SQLException;
+
+	/**
+	 * Visits every follow
+	 */
+	void scanFollows(FollowVisitor visitor) throws SQLException;
+
+	/**
+	 * @return The engine and where it keeps posts, so that what is built from the
+	 * posts outside storage, such as the search index snapshot, can tell which
+	 * storage it was built from
+	 */
+	String describe();
+
+	/**
+	 * @return The highest post ID used, 0 if there are no posts
+	 */
+	long getMaxPostID() throws SQLException;
+
+	/**
+	 * @return A post as its author posted it, or null if there is no such post
+	 */
+	Post getPost(long postID) throws SQLException;
+
+	/**
+	 * @param tx Transaction of the work reading them
+	 * @param ids Post IDs
+	 * @return The posts that exist, as their authors posted them, in any order
+	 */
+	List<Post> getPosts(Transaction tx, long[] ids) throws SQLException;
+
+	/**
+	 * @param tx Transaction of the work reading them
+	 * @param before Cursor of the page, or null for the first page
+	 * @param limit Most posts to return
+	 * @return The posts and reposts of a user, newest first
+	 */
+	List<Post> getUserPosts(Transaction tx, String username, PageCursor before, int limit) throws SQLException;
+
+	/**
+	 * Stores new posts, whose IDs the caller assigns above getMaxPostID(), and
+	 * reposts of existing posts. A repost is left out if its user already posted
+	 * or reposted the post
+	 * @param posts New posts and reposts, as returned by Post.repostedBy()
+	 * @param listener Told which were stored, before they commit
+	 */
+	void writePosts(List<Post> posts, BatchListener listener) throws SQLException;
+
+	/**
+	 * Visits the posts after a post ID, as their authors posted them, in order of ID
+	 */
+	void scanPosts(long afterID, PostVisitor visitor) throws SQLException;
+
+	/**
+	 * Gives every post, in order of ID, then every repost in the order they were
+	 * made; for copying them into another engine. Pictures, and the messages of
+	 * reposts, are left out
+	 */
+	void export(Exporter exporter) throws SQLException;
+
+	/**
+	 * @return How many times each post that has been reposted was reposted, by post ID
+	 */
+	Map<Long, Integer> getRepostCounts() throws SQLException;
+
+	/**
+	 * @return How many users favorited each post that has been favorited, by post ID
+	 */
+	Map<Long, Integer> getFavoriteCounts() throws SQLException;
+}
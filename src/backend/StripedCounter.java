@@ -0,0 +1,55 @@
+package backend;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count updated by many threads at once without contention. Each thread adds
+ * to one of several cells, chosen by its thread ID, with each cell on its own
+ * cache line; reading the count sums the cells. Adding is cheap and lock free,
+ * reading is slower and sees a value that may be a moment out of date, which
+ * suits metrics: counted on every request, read on every scrape.
+ * May go down as well as up, for counts of things in progress
+ */
+public class StripedCounter {
+
+	// Cells, a power of two, enough that concurrent threads rarely share one
+	static final int STRIPES = Math.min(64, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1);
+	// Longs per cache line, so cells in use by different threads are not falsely shared
+	static final int PAD = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+	public void increment()
+	{
+		add(1);
+	}
+
+	public void decrement()
+	{
+		add(-1);
+	}
+
+	public void add(long n)
+	{
+		cells.getAndAdd(stripe() * PAD, n);
+	}
+
+	/**
+	 * @return The sum of everything added
+	 */
+	public long sum()
+	{
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) sum += cells.get(i * PAD);
+		return sum;
+	}
+
+	/**
+	 * @return The calling thread's cell, spreading consecutive thread IDs apart
+	 */
+	static int stripe()
+	{
+		long id = Thread.currentThread().getId();
+		return ((int) (id ^ (id >>> 32)) * 0x9E3779B9 >>> 16) & (STRIPES - 1);
+	}
+}
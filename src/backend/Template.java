@@ -0,0 +1,181 @@
+package backend;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An HTML template parsed once into literal text and placeholder slots. A
+ * placeholder is a slot name wrapped in percent signs, e.g. %username%, and may
+ * appear any number of times. Rendering appends the literals and the values
+ * for each slot in order, with no regular expressions involved.
+ * Templates are cached by path and re-read only when the file changes.
+ */
+public class Template {
+
+	// How often, at most, a cached template checks its file for changes
+	private static final long CHECK_INTERVAL = 1000;
+
+	private static final ConcurrentHashMap<String, Template> CACHE = new ConcurrentHashMap<String, Template>();
+
+	private static final Metrics.Family<Metrics.Histogram> RENDER_SECONDS =
+			Metrics.timer("twotter_template_render_seconds", "Time to render a template, by file", "template");
+
+	private final File file;
+	private final Metrics.Histogram renderSeconds;
+	private final long lastModified;
+	private volatile long checkedAt;
+
+	// literals[i] is followed by the value of slot slots[i]; the last literal has no slot after it
+	private final String[] literals;
+	private final int[] slots;
+
+	private Template(File file, String[] slotNames) throws FileNotFoundException
+	{
+		this.file = file;
+		this.renderSeconds = RENDER_SECONDS.labels(file.getName());
+		this.lastModified = file.lastModified();
+		this.checkedAt = System.currentTimeMillis();
+		String text = DBPortal.readFile(file.getPath());
+		if (text == null) throw new FileNotFoundException(file.getPath());
+
+		ArrayList<String> lits = new ArrayList<String>();
+		ArrayList<Integer> slts = new ArrayList<Integer>();
+		int start = 0;
+		for (int i = text.indexOf('%'); i >= 0; i = text.indexOf('%', i + 1)) {
+			for (int s = 0; s < slotNames.length; s++) {
+				String name = slotNames[s];
+				int end = i + 1 + name.length();
+				if (end < text.length() && text.charAt(end) == '%' && text.startsWith(name, i + 1)) {
+					lits.add(text.substring(start, i));
+					slts.add(s);
+					start = end + 1;
+					i = end;
+					break;
+				}
+			}
+		}
+		lits.add(text.substring(start));
+		literals = lits.toArray(new String[lits.size()]);
+		slots = new int[slts.size()];
+		for (int i = 0; i < slots.length; i++) slots[i] = slts.get(i);
+	}
+
+	/**
+	 * Returns the parsed template for a file, loading it on first use or when the
+	 * file has been modified since it was parsed
+	 * @param pathname Location of the template file
+	 * @param slotNames Placeholder names, without percent signs. Values passed to
+	 * render() are given in this order. Every caller of a file must use the same names
+	 * @return The parsed template
+	 * @throws FileNotFoundException The template file is missing
+	 */
+	public static Template get(String pathname, String... slotNames) throws FileNotFoundException
+	{
+		Template t = CACHE.get(pathname);
+		if (t == null || t.isStale()) {
+			t = new Template(new File(pathname), slotNames);
+			CACHE.put(pathname, t);
+		}
+		return t;
+	}
+
+	private boolean isStale()
+	{
+		long now = System.currentTimeMillis();
+		if (now - checkedAt < CHECK_INTERVAL) return false;
+		checkedAt = now;
+		return file.lastModified() != lastModified;
+	}
+
+	/**
+	 * Appends the template to sb with each placeholder replaced by its value
+	 * @param sb Output, typically reused across renders
+	 * @param values One value per slot name, in the order the names were given to get()
+	 */
+	public void render(StringBuilder sb, String... values)
+	{
+		long start = renderSeconds.start();
+		for (int i = 0; i < slots.length; i++) {
+			sb.append(literals[i]);
+			sb.append(values[slots[i]]);
+		}
+		sb.append(literals[slots.length]);
+		renderSeconds.stop(start);
+	}
+
+	/**
+	 * Appends the part of the template before the first occurrence of a slot, so
+	 * the slot's content can be streamed separately
+	 * @param sb Output
+	 * @param slot Index of the slot name that was given to get()
+	 * @param values One value per slot name; the value for slot is not used
+	 */
+	public void renderUntil(StringBuilder sb, int slot, String... values)
+	{
+		long start = renderSeconds.start();
+		int stop = firstOccurrence(slot);
+		for (int i = 0; i < stop; i++) {
+			sb.append(literals[i]);
+			sb.append(values[slots[i]]);
+		}
+		sb.append(literals[stop]);
+		renderSeconds.stop(start);
+	}
+
+	/**
+	 * Appends the part of the template after the first occurrence of a slot
+	 * @param sb Output
+	 * @param slot Index of the slot name that was given to get()
+	 * @param values One value per slot name; the value for slot is not used
+	 */
+	public void renderAfter(StringBuilder sb, int slot, String... values)
+	{
+		long start = renderSeconds.start();
+		int i = firstOccurrence(slot) + 1;
+		sb.append(literals[i]);
+		for (; i < slots.length; i++) {
+			sb.append(values[slots[i]]);
+			sb.append(literals[i + 1]);
+		}
+		renderSeconds.stop(start);
+	}
+
+	private int firstOccurrence(int slot)
+	{
+		for (int i = 0; i < slots.length; i++) {
+			if (slots[i] == slot) return i;
+		}
+		throw new IllegalArgumentException("Slot " + slot + " does not appear in " + file.getPath());
+	}
+
+	/**
+	 * @param values One value per slot name, in the order the names were given to get()
+	 * @return The rendered template
+	 */
+	public String render(String... values)
+	{
+		StringBuilder sb = new StringBuilder();
+		render(sb, values);
+		return sb.toString();
+	}
+
+	/**
+	 * Replaces the angle brackets in user supplied text so it cannot inject markup
+	 * @param text Text to escape, may be null
+	 * @return The escaped text
+	 */
+	public static String escape(String text)
+	{
+		if (text == null || (text.indexOf('<') < 0 && text.indexOf('>') < 0)) return text;
+		StringBuilder sb = new StringBuilder(text.length() + 16);
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '<') sb.append("&#60");
+			else if (c == '>') sb.append("&#62");
+			else sb.append(c);
+		}
+		return sb.toString();
+	}
+}
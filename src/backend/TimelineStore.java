@@ -0,0 +1,279 @@
+package backend;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Materialized news feeds. When a post is created it is pushed onto the timeline of
+ * every follower of its author (fan-out-on-write), both in Storage and in
+ * the in-memory timelines of recently active users, so reading a feed is a range scan
+ * of one user's entries instead of a join across every followee's posts.
+ * Authors with more than FANOUT_LIMIT followers are not fanned out; their posts are
+ * merged into their followers' feeds when the feeds are read (fan-out-on-read).
+ * Who follows whom comes from the in-memory FollowGraph rather than FOLLOWING.
+ * A stored timeline holds only which posts are in a feed; the posts themselves
+ * are read from Storage with it.
+ */
+public class TimelineStore {
+
+	// Most entries kept per timeline, in memory and in Storage
+	public static final int CAPACITY = Integer.getInteger("twotter.timelineSize", 200);
+	// Authors with more followers than this are merged at read time instead of fanned out
+	public static final int FANOUT_LIMIT = Integer.getInteger("twotter.fanoutLimit", 5000);
+	// Most timelines held in memory at once
+	private static final int CACHED_USERS = Integer.getInteger("twotter.cachedTimelines", 10000);
+	// Persisted timelines are trimmed back to CAPACITY on every TRIM_INTERVAL-th post
+	private static final int TRIM_INTERVAL = 64;
+
+	// Newest first. Access order, so the least recently read timeline is evicted first
+	private final Map<String, ArrayDeque<Post>> timelines = new LinkedHashMap<String, ArrayDeque<Post>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String, ArrayDeque<Post>> eldest) {
+			return size() > CACHED_USERS;
+		}
+	};
+	// Bumped by every fan-out, so a read that raced a fan-out does not cache a stale timeline
+	private final AtomicLong fanouts = new AtomicLong();
+	// Authors that are merged at read time
+	private final Set<String> celebrities = Collections.synchronizedSet(new HashSet<String>());
+	private final FollowGraph follows;
+	private final Storage storage;
+
+	/**
+	 * @param follows Who follows whom; load it before calling init()
+	 * @param storage Where timelines and the posts in them are read from
+	 */
+	public TimelineStore(FollowGraph follows, Storage storage)
+	{
+		this.follows = follows;
+		this.storage = storage;
+	}
+
+	/**
+	 * Loads the set of authors that are too widely followed to fan out
+	 */
+	public void init()
+	{
+		celebrities.addAll(follows.followedByMoreThan(FANOUT_LIMIT));
+	}
+
+	/**
+	 * Writes a new post into the stored timelines of its author's followers. Must run
+	 * in the same transaction as the post's insert; call published() once it commits
+	 * @param tx The post's transaction
+	 * @param post The new post
+	 * @return The followers whose timelines received the post, for published()
+	 * @throws SQLException
+	 */
+	public List<String> fanOut(Storage.Transaction tx, Post post) throws SQLException
+	{
+		String author = post.getPostedBy();
+		if (celebrities.contains(author)) return new ArrayList<String>();
+		if (follows.followerCount(author) > FANOUT_LIMIT) {
+			celebrities.add(author);
+			return new ArrayList<String>();
+		}
+		List<String> followers = follows.followers(author);
+		boolean trim = post.getPostID() % TRIM_INTERVAL == 0;
+		for (String follower : followers) {
+			tx.addToTimeline(follower, post.getPostID(), author, post.getPostTime());
+			if (trim) tx.trimTimeline(follower, CAPACITY);
+		}
+		return followers;
+	}
+
+	/**
+	 * Pushes a committed post onto the in-memory timelines of its followers
+	 * @param post The new post
+	 * @param followers The result of fanOut() for the post
+	 */
+	public void published(Post post, List<String> followers)
+	{
+		synchronized (timelines) {
+			fanouts.incrementAndGet();
+			for (String follower : followers) {
+				ArrayDeque<Post> timeline = timelines.get(follower);
+				if (timeline == null) continue;	// read from Storage next time
+				timeline.addFirst(post);
+				if (timeline.size() > CAPACITY) timeline.removeLast();
+			}
+		}
+	}
+
+	/**
+	 * Copies the recent posts of a newly followed author into the follower's stored
+	 * timeline. Must run in the same transaction as the follow is stored in,
+	 * after the follow is added to the FollowGraph, so that a post committed at the
+	 * same time is either fanned out to the follower or copied here; call
+	 * invalidate() once it commits
+	 * @param tx The follow's transaction
+	 * @throws SQLException
+	 */
+	public void followed(Storage.Transaction tx, String follower, String followee) throws SQLException
+	{
+		if (celebrities.contains(followee)) return;	// merged at read time
+		for (Post p : storage.getUserPosts(tx, followee, null, CAPACITY)) {
+			tx.addToTimeline(follower, p.getPostID(), followee, p.getPostTime());
+		}
+	}
+
+	/**
+	 * Removes an unfollowed author's posts from the follower's stored timeline. Must
+	 * run in the same transaction as the unfollow is stored in; call invalidate()
+	 * once it commits
+	 * @param tx The unfollow's transaction
+	 * @throws SQLException
+	 */
+	public void unfollowed(Storage.Transaction tx, String follower, String followee) throws SQLException
+	{
+		tx.removeFromTimeline(follower, followee);
+	}
+
+	/**
+	 * Drops a user's in-memory timeline, to be read from Storage again
+	 * @param username
+	 */
+	public void invalidate(String username)
+	{
+		synchronized (timelines) {
+			fanouts.incrementAndGet();
+			timelines.remove(username);
+		}
+	}
+
+	/**
+	 * Returns a page of a user's feed, newest first. Recent pages come from memory;
+	 * older ones are read from the stored timeline starting at the cursor
+	 * @param tx Transaction to read in on a cache miss
+	 * @param username Owner of the feed
+	 * @param before Cursor of the page, or null for the first page
+	 * @param limit Most posts to return
+	 * @return Up to limit posts
+	 * @throws SQLException
+	 */
+	public List<Post> read(Storage.Transaction tx, String username, PageCursor before, int limit) throws SQLException
+	{
+		List<Post> cached;
+		synchronized (timelines) {
+			ArrayDeque<Post> timeline = timelines.get(username);
+			cached = timeline == null ? null : new ArrayList<Post>(timeline);
+		}
+		if (cached == null) {
+			long seen = fanouts.get();
+			cached = query(tx, username, null, CAPACITY);
+			synchronized (timelines) {
+				if (fanouts.get() == seen) timelines.put(username, new ArrayDeque<Post>(cached));
+			}
+		}
+		List<Post> posts = new ArrayList<Post>(limit);
+		for (Post p : cached) {
+			if (posts.size() == limit) break;
+			if (before == null || before.precedes(p)) posts.add(p);
+		}
+		// The cached copy may not reach back this far
+		if (posts.size() < limit && cached.size() >= CAPACITY) {
+			PageCursor from = posts.isEmpty() ? before : PageCursor.after(posts.get(posts.size() - 1));
+			posts.addAll(query(tx, username, from, limit - posts.size()));
+		}
+		if (celebrities.isEmpty()) return posts;
+
+		// Merge in the posts of widely followed authors, which were not fanned out
+		for (String celebrity : celebritiesFollowedBy(username)) {
+			posts = merge(posts, storage.getUserPosts(tx, celebrity, before, limit), limit);
+		}
+		return posts;
+	}
+
+	/*
+	 * Reads a page of the stored timeline and the posts in it, newest first. A post
+	 * that is not in storage is left out
+	 */
+	private List<Post> query(Storage.Transaction tx, String username, PageCursor before, int limit) throws SQLException
+	{
+		final List<Long> ids = new ArrayList<Long>();
+		final List<String> postedBy = new ArrayList<String>();
+		final List<Long> times = new ArrayList<Long>();
+		tx.readTimeline(username, before, limit, new Storage.TimelineVisitor() {
+			public void visit(long postID, String by, long time) {
+				ids.add(postID);
+				postedBy.add(by);
+				times.add(time);
+			}
+		});
+		long[] lookup = new long[ids.size()];
+		for (int i = 0; i < lookup.length; i++) lookup[i] = ids.get(i);
+		Map<Long, Post> byID = new HashMap<Long, Post>();
+		for (Post p : storage.getPosts(tx, lookup)) byID.put(p.getPostID(), p);
+		List<Post> posts = new ArrayList<Post>(ids.size());
+		for (int i = 0; i < ids.size(); i++) {
+			Post p = byID.get(ids.get(i));
+			if (p == null) continue;
+			// A repost, or a post of its author's shown at the time it was reposted
+			if (!p.getPostedBy().equals(postedBy.get(i)) || p.getPostTime() != times.get(i)) p = p.repostedBy(postedBy.get(i), times.get(i));
+			posts.add(p);
+		}
+		return posts;
+	}
+
+	/**
+	 * @return The authors username follows whose posts are merged into the feed
+	 * when it is read, rather than fanned out
+	 */
+	public List<String> celebritiesFollowedBy(String username)
+	{
+		List<String> followed = new ArrayList<String>();
+		if (celebrities.isEmpty()) return followed;
+		synchronized (celebrities) {
+			for (String celebrity : celebrities) {
+				if (follows.follows(username, celebrity)) followed.add(celebrity);
+			}
+		}
+		return followed;
+	}
+
+	/**
+	 * Merges two newest-first lists, keeping at most limit posts. An author fanned out
+	 * before becoming a celebrity still has entries in stored timelines, so a post in
+	 * both lists is kept once; the copies sort next to each other
+	 */
+	private static List<Post> merge(List<Post> a, List<Post> b, int limit)
+	{
+		List<Post> merged = new ArrayList<Post>(Math.min(limit, a.size() + b.size()));
+		Iterator<Post> ia = a.iterator(), ib = b.iterator();
+		Post pa = ia.hasNext() ? ia.next() : null, pb = ib.hasNext() ? ib.next() : null;
+		Post last = null;
+		while ((pa != null || pb != null) && merged.size() < limit) {
+			Post p;
+			if (pb == null || (pa != null && PageCursor.after(pa).precedes(pb))) {
+				p = pa;
+				pa = ia.hasNext() ? ia.next() : null;
+			} else {
+				p = pb;
+				pb = ib.hasNext() ? ib.next() : null;
+			}
+			if (last != null && isSameEntry(last, p)) continue;
+			merged.add(p);
+			last = p;
+		}
+		return merged;
+	}
+
+	/*
+	 * Whether two posts are the same feed entry: one post shown by the same user at the same time
+	 */
+	private static boolean isSameEntry(Post a, Post b)
+	{
+		return a.getPostID() == b.getPostID() && a.getPostTime() == b.getPostTime()
+				&& a.getPostedBy().equals(b.getPostedBy());
+	}
+}
@@ -13,14 +13,14 @@ import java.sql.SQLException;
 public class User {
 
 	private static final String 
-		PICTURE_RE 		= "%picture%",
-		USERNAME_RE 	= "%username%",
-		NAME_RE 		= "%name%",
-		DESC_RE 		= "%description%";
+		TEMPLATE 		= DBPortal.TEMPLATES + "user_template.html";
+	// Placeholders in user_template.html, in the order toHTML() passes their values
+	private static final String[]
+		SLOTS 			= {"picture", "username", "name", "description"};
 	
 	protected String name, username, email, description, picture;
 	
-	protected User(String username, String email, String desc, String picture, String name)
+	public User(String username, String email, String desc, String picture, String name)
 	{
 		this.username 		= username;
 		this.email 			= email;
@@ -36,10 +36,15 @@ public class User {
 		this.description	= rs.getString(3);
 		this.picture 		= rs.getString(4);
 		this.name 			= rs.getString(5);
-		description = description.replaceAll("<", "&#60");
-		description = description.replaceAll(">", "&#62");
+		description = Template.escape(description);
+		name = Template.escape(name);
 	}
 	
+	public String getPicture()
+	{
+		return picture;
+	}
+
 	public String toString()
 	{
 		return this.name + "\n\t" + this.username + ", " + this.email + ", " + this.description + ", " + this.picture;
@@ -47,13 +52,23 @@ public class User {
 	
 	public String toHTML() throws FileNotFoundException
 	{
+		StringBuilder sb = new StringBuilder();
+		toHTML(sb);
+		return sb.toString();
+	}
 
-		String userTempF = DBPortal.readFile("src" + DBPortal.SEP + "backend" + DBPortal.SEP + "HTMLTemplates" + DBPortal.SEP + "user_template.html");
+	/**
+	 * Appends this user rendered through user_template.html
+	 * @param sb Output
+	 * @throws FileNotFoundException user_template.html is missing
+	 */
+	public void toHTML(StringBuilder sb) throws FileNotFoundException
+	{
+		template().render(sb, picture, username, name, description);
+	}
 
-		String html = userTempF.replaceAll(USERNAME_RE, username);
-		html = html.replaceAll(NAME_RE, name);
-		html = html.replaceAll(PICTURE_RE, picture);
-		html = html.replaceAll(DESC_RE, description);
-		return html;
+	static Template template() throws FileNotFoundException
+	{
+		return Template.get(TEMPLATE, SLOTS);
 	}
 }
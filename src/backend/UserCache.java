@@ -0,0 +1,121 @@
+package backend;
+
+import java.io.FileNotFoundException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recently used rows of USER, with each user's rendered user_template.html, and
+ * recently requested usernames that do not exist. DBPortal reads USER only on a
+ * miss and invalidates an entry whenever it writes the user's row
+ */
+public class UserCache {
+
+	// Most users held
+	private static final int CAPACITY = Integer.getInteger("twotter.cachedUsers", 10000);
+	// Most unknown usernames remembered
+	private static final int MISSING_CAPACITY = Integer.getInteger("twotter.cachedMissingUsers", 10000);
+
+	private static class Cached {
+		final User user;
+		Template template;	// what html was rendered from, null until first rendered
+		String html;
+
+		Cached(User user)
+		{
+			this.user = user;
+		}
+	}
+
+	// Access order, so the least recently used entry is evicted first
+	private final Map<String, Cached> users = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+			return size() > CAPACITY;
+		}
+	};
+	private final Map<String, Boolean> missing = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MISSING_CAPACITY;
+		}
+	};
+	// Bumped by every invalidation, so a read that raced a write does not cache the old row
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * @param username
+	 * @return The cached user, or null if not cached
+	 */
+	public synchronized User get(String username)
+	{
+		Cached e = users.get(username);
+		return e == null ? null : e.user;
+	}
+
+	/**
+	 * @param username
+	 * @return Whether the user is known not to exist
+	 */
+	public synchronized boolean isMissing(String username)
+	{
+		return missing.containsKey(username);
+	}
+
+	/**
+	 * @return A stamp to take before reading USER and pass to put()
+	 */
+	public long stamp()
+	{
+		return invalidations.get();
+	}
+
+	/**
+	 * Caches the result of reading a user's row
+	 * @param username
+	 * @param user The user, or null if there is no such user
+	 * @param stamp The value of stamp() before the row was read
+	 */
+	public synchronized void put(String username, User user, long stamp)
+	{
+		if (invalidations.get() != stamp) return;
+		if (user == null) missing.put(username, Boolean.TRUE);
+		else users.put(username, new Cached(user));
+	}
+
+	/**
+	 * @param username A cached user
+	 * @return The user rendered through user_template.html, or null if not cached
+	 * @throws FileNotFoundException user_template.html is missing
+	 */
+	public String getHTML(String username) throws FileNotFoundException
+	{
+		Cached e;
+		synchronized (this) {
+			e = users.get(username);
+		}
+		if (e == null) return null;
+		Template t = User.template();
+		synchronized (e) {
+			if (e.template != t) {	// first use, or the template file changed
+				StringBuilder sb = new StringBuilder();
+				e.user.toHTML(sb);
+				e.html = sb.toString();
+				e.template = t;
+			}
+			return e.html;
+		}
+	}
+
+	/**
+	 * Forgets anything cached about a user, after their row is created or changed
+	 * @param username
+	 */
+	public synchronized void invalidate(String username)
+	{
+		invalidations.incrementAndGet();
+		users.remove(username);
+		missing.remove(username);
+	}
+}
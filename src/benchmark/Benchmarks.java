@@ -0,0 +1,133 @@
+package benchmark;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import server.RequestParser;
+import backend.DBPortal;
+import backend.Post;
+import backend.User;
+
+/**
+ * Benchmarks of the code every page view runs: rendering posts and users,
+ * building feeds and profiles from the database, creating posts and parsing
+ * requests. Generates its own database first, so results are comparable between
+ * runs and never touch src/backend/twotter.db
+ *
+ * Usage: java -cp bin:sqlite-jdbc-3.7.2.jar benchmark.Benchmarks [--users n]
+ * [--follows n] [--posts n] [--db path] [--warmup ms] [--iterations n]
+ * [--time ms] [--threads n] [--filter name]
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception
+	{
+		DataGenerator generator = new DataGenerator();
+		String db = new File(System.getProperty("java.io.tmpdir"), "twotter-bench.db").getPath();
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("--users")) generator.users = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--follows")) generator.follows = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--posts")) generator.postsPerUser = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--db")) db = args[++i];
+		}
+		generator.generate(db);
+		// Must be set before DBPortal is loaded, which opens the database
+		System.setProperty("twotter.db", db);
+
+		Harness harness = new Harness();
+		harness.configure(args);
+		harness.run(cases(generator.users));
+	}
+
+	private static List<Harness.Case> cases(final int users)
+	{
+		final DBPortal portal = new DBPortal();
+		List<Harness.Case> cases = new ArrayList<Harness.Case>();
+
+		cases.add(new Harness.Case("Post.toHTML") {
+			final Post post = new Post("user1", "user1", "Steak & <b>lunch</b> today, what a great server",
+					System.currentTimeMillis(), 1, "/user1.jpg");
+			protected Object run(int thread, long i) throws Exception {
+				StringBuilder sb = new StringBuilder(512);
+				post.toHTML(sb);
+				return sb.length();
+			}
+		});
+
+		cases.add(new Harness.Case("User.toHTML") {
+			final User user = new User("user1", "user1@example.com", "Likes steak & coffee", "/user1.jpg", "User 1");
+			protected Object run(int thread, long i) throws Exception {
+				StringBuilder sb = new StringBuilder(512);
+				user.toHTML(sb);
+				return sb.length();
+			}
+		});
+
+		cases.add(new Harness.Case("getNewsFeedHTML") {
+			protected Object run(int thread, long i) throws Exception {
+				return portal.getNewsFeedHTML(user(users, thread, i)).length();
+			}
+		});
+
+		cases.add(new Harness.Case("getProfileHTML") {
+			protected Object run(int thread, long i) throws Exception {
+				return portal.getProfileHTML(user(users, thread, i)).length();
+			}
+		});
+
+		cases.add(new Harness.Case("getUsernameByID") {
+			protected Object run(int thread, long i) throws Exception {
+				return portal.getUsernameByID(DataGenerator.sessionID(index(users, thread, i)));
+			}
+		});
+
+		// Measures the latency of one post; with --threads, concurrent posts share commits
+		cases.add(new Harness.Case("createPostWithUsername") {
+			protected Object run(int thread, long i) throws Exception {
+				if (!portal.createPostWithUsername("benchmark post " + i, user(users, thread, i)))
+					throw new IllegalStateException("post was not created");
+				return null;
+			}
+		});
+
+		cases.add(new Harness.Case("RequestParser.parse") {
+			final byte[] head = ("GET /TwOtter/newsfeed?before=1400000000000_1234 HTTP/1.1\r\n" +
+					"Host: localhost:8080\r\n" +
+					"User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:31.0) Gecko/20100101 Firefox/31.0\r\n" +
+					"Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+					"Accept-Language: en-US,en;q=0.5\r\n" +
+					"Accept-Encoding: gzip, deflate\r\n" +
+					"Cookie: session=12345678901234567890\r\n" +
+					"Connection: keep-alive\r\n" +
+					"\r\n").getBytes(StandardCharsets.US_ASCII);
+			final ThreadLocal<RequestParser> parsers = new ThreadLocal<RequestParser>() {
+				protected RequestParser initialValue() {
+					return new RequestParser(null, 8192);
+				}
+			};
+			protected Object run(int thread, long i) throws Exception {
+				RequestParser parser = parsers.get();
+				parser.parse(head, 0, head.length);
+				return parser;
+			}
+		});
+
+		return cases;
+	}
+
+	/*
+	 * A user to request, spread over all users but the same sequence on every run
+	 */
+	private static int index(int users, int thread, long i)
+	{
+		return new Random(i * 31 + thread).nextInt(users);
+	}
+
+	private static String user(int users, int thread, long i)
+	{
+		return "user" + index(users, thread, i);
+	}
+}
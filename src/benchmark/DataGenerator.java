@@ -0,0 +1,157 @@
+package benchmark;
+
+import java.io.File;
+import java.sql.*;
+import java.util.Random;
+
+/**
+ * Builds a TwOtter database of a given size, for benchmarks. Users are named
+ * user0, user1, ... and user i logs in with session ID sessionID(i). Follows are
+ * drawn with a skew towards low numbered users, so a few accounts are popular the
+ * way real ones are. Generation is deterministic for a given seed
+ * Requires SQLite-JDBC
+ */
+public class DataGenerator {
+
+	// The schema of src/backend/twotter.db before any migration
+	private static final String[] SCHEMA = {
+		"CREATE TABLE USER(username VARCHAR(30), sessionId CHAR(20), password CHAR(20), email VARCHAR(50), " +
+				"description VARCHAR(140), picture VARCHAR(10), name VARCHAR(30), PRIMARY KEY (username))",
+		"CREATE TABLE POST(postId INTEGER PRIMARY KEY, message VARCHAR(140), username VARCHAR(30), " +
+				"FOREIGN KEY (username) REFERENCES USER (username))",
+		"CREATE TABLE POSTED(username VARCHAR(30), postId INT, retweet INT, timestamp DATETIME, " +
+				"PRIMARY KEY (username, postId), FOREIGN KEY (username) REFERENCES USER (username), " +
+				"FOREIGN KEY (postId) REFERENCES POST (postId))",
+		"CREATE TABLE FOLLOWING(follower VARCHAR(30), followee VARCHAR(30), PRIMARY KEY (follower, followee), " +
+				"FOREIGN KEY (follower) REFERENCES USER (username), FOREIGN KEY (followee) REFERENCES USER (username))",
+		"CREATE TABLE FAVORITE(postID INT, username VARCHAR(30), PRIMARY KEY (postID, username), " +
+				"FOREIGN KEY (postID) REFERENCES POST (postID), FOREIGN KEY (username) REFERENCES USER (username))",
+	};
+
+	private static final String[] WORDS = {
+		"the", "a", "steak", "server", "feed", "lunch", "today", "is", "was", "great", "terrible", "new",
+		"post", "java", "coffee", "weekend", "<b>bold</b>", "game", "&", "what", "why", "never", "always",
+	};
+
+	int users = 1000;
+	int follows = 50;			// average followees per user
+	int postsPerUser = 20;
+	long seed = 42;
+
+	public static void main(String[] args) throws SQLException, ClassNotFoundException
+	{
+		DataGenerator g = new DataGenerator();
+		String path = "bench.db";
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--users")) g.users = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--follows")) g.follows = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--posts")) g.postsPerUser = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--seed")) g.seed = Long.parseLong(args[++i]);
+			else path = args[i];
+		}
+		g.generate(path);
+	}
+
+	/**
+	 * @param i A user number
+	 * @return The session ID the generated user i is logged in with
+	 */
+	public static String sessionID(int i)
+	{
+		return String.format("%020d", i + 1);
+	}
+
+	/**
+	 * Writes a new database, replacing any file at path
+	 * @param path Where to write it
+	 * @throws SQLException
+	 * @throws ClassNotFoundException SQLite-JDBC is not on the classpath
+	 */
+	public void generate(String path) throws SQLException, ClassNotFoundException
+	{
+		Class.forName("org.sqlite.JDBC");
+		new File(path).delete();
+		long start = System.currentTimeMillis();
+		Random random = new Random(seed);
+		Connection conn = DriverManager.getConnection("jdbc:sqlite:" + path);
+		try {
+			Statement stmt = conn.createStatement();
+			for (String sql : SCHEMA) stmt.executeUpdate(sql);
+			stmt.close();
+			conn.setAutoCommit(false);
+
+			PreparedStatement prepStmt = conn.prepareStatement("INSERT INTO USER VALUES(?,?,?,?,?,?,?)");
+			for (int i = 0; i < users; i++) {
+				prepStmt.setString(1, "user" + i);
+				prepStmt.setString(2, sessionID(i));
+				prepStmt.setString(3, "12345678901234567890");
+				prepStmt.setString(4, "user" + i + "@example.com");
+				prepStmt.setString(5, sentence(random, 12));
+				prepStmt.setString(6, "/user" + (i % 10) + ".jpg");
+				prepStmt.setString(7, "User " + i);
+				prepStmt.addBatch();
+			}
+			prepStmt.executeBatch();
+			prepStmt.close();
+
+			prepStmt = conn.prepareStatement("INSERT OR IGNORE INTO FOLLOWING VALUES(?,?)");
+			for (int i = 0; i < users; i++) {
+				int n = Math.min(users - 1, random.nextInt(2 * follows + 1));
+				for (int j = 0; j < n; j++) {
+					// Squaring a uniform draw favours low numbered users
+					double r = random.nextDouble();
+					int followee = (int) (r * r * users);
+					if (followee == i) continue;
+					prepStmt.setString(1, "user" + i);
+					prepStmt.setString(2, "user" + followee);
+					prepStmt.addBatch();
+				}
+				if (i % 1000 == 999) prepStmt.executeBatch();
+			}
+			prepStmt.executeBatch();
+			prepStmt.close();
+
+			PreparedStatement post = conn.prepareStatement("INSERT INTO POST VALUES(?,?,?)");
+			PreparedStatement posted = conn.prepareStatement("INSERT INTO POSTED VALUES(?,?,null,?)");
+			long now = System.currentTimeMillis();
+			long postID = 0;
+			for (int i = 0; i < users; i++) {
+				for (int j = 0; j < postsPerUser; j++) {
+					postID++;
+					post.setLong(1, postID);
+					post.setString(2, sentence(random, 20));
+					post.setString(3, "user" + i);
+					post.addBatch();
+					posted.setString(1, "user" + i);
+					posted.setLong(2, postID);
+					posted.setLong(3, now - (long) (random.nextDouble() * 30L * 24 * 60 * 60 * 1000));
+					posted.addBatch();
+				}
+				if (i % 100 == 99) {
+					post.executeBatch();
+					posted.executeBatch();
+				}
+			}
+			post.executeBatch();
+			posted.executeBatch();
+			post.close();
+			posted.close();
+			conn.commit();
+		} finally {
+			conn.close();
+		}
+		System.out.println(path + ": " + users + " users, ~" + follows + " follows each, " + postsPerUser +
+				" posts each, in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private static String sentence(Random random, int maxWords)
+	{
+		StringBuilder sb = new StringBuilder();
+		int n = 1 + random.nextInt(maxWords);
+		for (int i = 0; i < n; i++) {
+			if (i > 0) sb.append(' ');
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,133 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs benchmark cases for a fixed time each: a warmup period, so the JIT has
+ * compiled the code being measured, then a number of timed iterations. Reports
+ * throughput and the average time per operation with its spread across
+ * iterations. Results of each operation are folded into a sink so the JIT cannot
+ * discard the work
+ */
+public class Harness {
+
+	/**
+	 * One thing to measure
+	 */
+	public static abstract class Case {
+		final String name;
+
+		protected Case(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * Called once, before warmup
+		 */
+		protected void setUp() throws Exception
+		{
+		}
+
+		/**
+		 * @param thread Which of the benchmark's threads is calling, from 0
+		 * @param i Count of operations this thread has done, for varying the input
+		 * @return Anything derived from the work done, so it is not optimized away
+		 */
+		protected abstract Object run(int thread, long i) throws Exception;
+	}
+
+	long warmupMillis = 2000;
+	int iterations = 5;
+	long iterationMillis = 1000;
+	int threads = 1;
+	String filter;
+
+	private volatile int sink;
+
+	/**
+	 * Parses the options shared by every benchmark main, ignoring the others
+	 * @param args --warmup ms, --iterations n, --time ms, --threads n, --filter text
+	 */
+	public void configure(String[] args)
+	{
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("--warmup")) warmupMillis = Long.parseLong(args[++i]);
+			else if (args[i].equals("--iterations")) iterations = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--time")) iterationMillis = Long.parseLong(args[++i]);
+			else if (args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--filter")) filter = args[++i];
+		}
+	}
+
+	/**
+	 * Runs each case whose name contains the filter, printing a line per case
+	 */
+	public void run(List<Case> cases) throws Exception
+	{
+		System.out.println(String.format("%-28s %7s %14s %14s %10s", "benchmark", "threads", "ops/s", "ns/op", "+/-"));
+		for (Case c : cases) {
+			if (filter != null && !c.name.contains(filter)) continue;
+			c.setUp();
+			measure(c, warmupMillis);
+			double[] nsPerOp = new double[iterations];
+			double opsPerSecond = 0;
+			for (int i = 0; i < iterations; i++) {
+				long[] result = measure(c, iterationMillis);
+				nsPerOp[i] = (double) result[1] * threads / result[0];
+				opsPerSecond += result[0] * 1e9 / result[1];
+			}
+			double mean = 0, variance = 0;
+			for (double x : nsPerOp) mean += x / iterations;
+			for (double x : nsPerOp) variance += (x - mean) * (x - mean) / Math.max(1, iterations - 1);
+			System.out.println(String.format("%-28s %7d %14.1f %14.1f %10.1f",
+					c.name, threads, opsPerSecond / iterations, mean, Math.sqrt(variance)));
+		}
+	}
+
+	/*
+	 * Runs a case on every thread for about the given time
+	 * @return {operations done by all threads, elapsed nanoseconds}
+	 */
+	private long[] measure(final Case c, long millis) throws Exception
+	{
+		final long deadline = System.nanoTime() + millis * 1000000L;
+		final AtomicLong ops = new AtomicLong();
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		final List<Exception> errors = new ArrayList<Exception>();
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					long i = 0;
+					int h = 0;
+					try {
+						startSignal.await();
+						while (System.nanoTime() < deadline) {
+							Object result = c.run(thread, i++);
+							h += result == null ? 0 : result.hashCode();
+						}
+					} catch (Exception e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+					ops.addAndGet(i);
+					sink += h;
+				}
+			}, "bench-" + t);
+			workers.add(worker);
+			worker.start();
+		}
+		long start = System.nanoTime();
+		startSignal.countDown();
+		for (Thread worker : workers) worker.join();
+		long elapsed = System.nanoTime() - start;
+		if (!errors.isEmpty()) throw errors.get(0);
+		return new long[] {Math.max(1, ops.get()), elapsed};
+	}
+}
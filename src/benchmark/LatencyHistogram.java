@@ -0,0 +1,90 @@
+package benchmark;
+
+/**
+ * Counts of latencies in buckets whose width grows with the value, in the manner
+ * of HdrHistogram: every power of two range is split into 64 equal buckets, so
+ * any recorded value is known to within 1.6% however large it is, with a fixed
+ * few thousand counters. Not thread safe; each thread records into its own and
+ * they are added together at the end
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;	// values below this are counted exactly
+	private static final int HALF = SUB_BUCKETS / 2;
+
+	private final long[] counts = new long[SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF];
+	private long total;
+	private long max;
+	private double sum;
+
+	/**
+	 * @param value A latency, in any unit, not negative
+	 */
+	public void record(long value)
+	{
+		counts[index(value)]++;
+		total++;
+		sum += value;
+		if (value > max) max = value;
+	}
+
+	/**
+	 * Adds another histogram's counts to this one
+	 */
+	public void add(LatencyHistogram other)
+	{
+		for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+		total += other.total;
+		sum += other.sum;
+		if (other.max > max) max = other.max;
+	}
+
+	public long count()
+	{
+		return total;
+	}
+
+	public long max()
+	{
+		return max;
+	}
+
+	public double mean()
+	{
+		return total == 0 ? 0 : sum / total;
+	}
+
+	/**
+	 * @param percentile From 0 to 100
+	 * @return The largest value in the bucket holding that percentile, so a value
+	 * at least that many percent of recorded values are no larger than
+	 */
+	public long percentile(double percentile)
+	{
+		if (total == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min(max, highestValue(i));
+		}
+		return max;
+	}
+
+	private static int index(long value)
+	{
+		if (value < SUB_BUCKETS) return (int) value;
+		// Shift so the value keeps SUB_BUCKET_BITS significant bits, the top one set
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	private static long highestValue(int index)
+	{
+		if (index < SUB_BUCKETS) return index;
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		long sub = (index - SUB_BUCKETS) % HALF + HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+}
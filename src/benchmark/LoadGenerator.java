@@ -0,0 +1,422 @@
+package benchmark;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import server.HttpServer;
+
+/**
+ * Drives a TwOtter server with a mix of the requests browsers send it and reports
+ * throughput and latency percentiles for each kind. Unless --host is given it
+ * generates a database and starts HttpServer in this JVM, so server options such
+ * as -Dtwotter.mode apply as usual.
+ *
+ * With --rate the load is open loop: requests are due at fixed intervals whether
+ * or not earlier ones have been answered, and latency is measured from when a
+ * request was due, so time spent queued behind a slow response counts (as it
+ * would for real users) rather than being hidden. Without --rate each connection
+ * sends its next request as soon as the last is answered.
+ *
+ * Usage: java -cp bin:sqlite-jdbc-3.7.2.jar benchmark.LoadGenerator [--host name]
+ * [--port n] [--users n] [--follows n] [--posts n] [--db path] [--connections n]
+ * [--rate requests/s] [--warmup s] [--duration s] [--mix feed=50,profile=25,...]
+ */
+public class LoadGenerator {
+
+	static final String PASSWORD = "12345678901234567890";
+
+	// Kinds of request, in report order
+	static final String LOGIN = "login";
+	static final String FEED = "feed";
+	static final String PROFILE = "profile";
+	static final String POST = "post";
+	static final String ASSET = "asset";
+	static final String[] ROUTES = {LOGIN, FEED, PROFILE, POST, ASSET};
+
+	static final String[] ASSETS = {
+		"/bootstrap/css/bootstrap.min.css",
+		"/bootstrap/css/bootstrap-responsive.min.css",
+		"/bootstrap/img/glyphicons-halflings.png",
+	};
+
+	String host;
+	int port = 8089;
+	int users = 1000;
+	int connections = 16;
+	double rate;				// requests per second over all connections, 0 for closed loop
+	int warmup = 5;				// seconds
+	int duration = 30;			// seconds
+	int[] weights = {5, 50, 25, 10, 10};	// per route, as in ROUTES
+
+	public static void main(String[] args) throws Exception
+	{
+		LoadGenerator load = new LoadGenerator();
+		DataGenerator generator = new DataGenerator();
+		String db = new File(System.getProperty("java.io.tmpdir"), "twotter-load.db").getPath();
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("--host")) load.host = args[++i];
+			else if (args[i].equals("--port")) load.port = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--users")) generator.users = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--follows")) generator.follows = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--posts")) generator.postsPerUser = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--db")) db = args[++i];
+			else if (args[i].equals("--connections")) load.connections = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--rate")) load.rate = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--warmup")) load.warmup = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--duration")) load.duration = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--mix")) load.weights = parseMix(args[++i]);
+		}
+		load.users = generator.users;
+		if (load.host == null) {
+			generator.generate(db);
+			System.setProperty("twotter.db", db);
+			load.host = "localhost";
+			load.startServer();
+		}
+		load.run();
+		System.exit(0);
+	}
+
+	/*
+	 * Parses a mix such as "feed=60,post=40"; routes not named get no requests
+	 */
+	static int[] parseMix(String mix)
+	{
+		int[] weights = new int[ROUTES.length];
+		for (String part : mix.split(",")) {
+			String[] kv = part.split("=");
+			int route = routeIndex(kv[0].trim());
+			if (route < 0 || kv.length != 2) throw new IllegalArgumentException("Bad mix entry: " + part);
+			weights[route] = Integer.parseInt(kv[1].trim());
+		}
+		return weights;
+	}
+
+	static int routeIndex(String name)
+	{
+		for (int i = 0; i < ROUTES.length; i++)
+			if (ROUTES[i].equals(name)) return i;
+		return -1;
+	}
+
+	/*
+	 * Starts HttpServer on a daemon thread and waits until it accepts connections
+	 */
+	void startServer() throws InterruptedException
+	{
+		Thread server = new Thread(new Runnable() {
+			public void run() {
+				new HttpServer(port).run();
+			}
+		}, "twotter-server");
+		server.setDaemon(true);
+		server.start();
+		long deadline = System.currentTimeMillis() + 60000;
+		while (true) {
+			try {
+				new Socket(host, port).close();
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) throw new IllegalStateException("Server did not start");
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	void run() throws InterruptedException
+	{
+		int totalWeight = 0;
+		for (int w : weights) totalWeight += w;
+		if (totalWeight <= 0) throw new IllegalArgumentException("The mix has no requests in it");
+
+		System.out.println("Load: " + connections + " connections, " +
+				(rate > 0 ? rate + " requests/s open loop" : "closed loop") +
+				", " + warmup + "s warmup, " + duration + "s measured, against " + host + ":" + port);
+		final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		final long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+		final long end = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+		final CountDownLatch done = new CountDownLatch(connections);
+		List<Client> clients = new ArrayList<Client>();
+		for (int c = 0; c < connections; c++) {
+			final Client client = new Client(c, totalWeight);
+			clients.add(client);
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						client.run(start, measureFrom, end);
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "load-" + c);
+			t.setDaemon(true);
+			t.start();
+		}
+		done.await();
+
+		LatencyHistogram[] histograms = new LatencyHistogram[ROUTES.length];
+		long[] errors = new long[ROUTES.length];
+		for (int r = 0; r < ROUTES.length; r++) {
+			histograms[r] = new LatencyHistogram();
+			for (Client client : clients) {
+				histograms[r].add(client.histograms[r]);
+				errors[r] += client.errors[r];
+			}
+		}
+		report(histograms, errors, TimeUnit.NANOSECONDS.toSeconds(end - measureFrom));
+	}
+
+	static void report(LatencyHistogram[] histograms, long[] errors, double seconds)
+	{
+		System.out.println(String.format("%-8s %9s %9s %7s %9s %9s %9s %9s %9s %9s",
+				"route", "requests", "req/s", "errors", "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		LatencyHistogram all = new LatencyHistogram();
+		long allErrors = 0;
+		for (int r = 0; r < ROUTES.length; r++) {
+			if (histograms[r].count() == 0 && errors[r] == 0) continue;
+			line(ROUTES[r], histograms[r], errors[r], seconds);
+			all.add(histograms[r]);
+			allErrors += errors[r];
+		}
+		line("all", all, allErrors, seconds);
+	}
+
+	// Latencies are recorded in microseconds
+	private static void line(String name, LatencyHistogram h, long errors, double seconds)
+	{
+		System.out.println(String.format("%-8s %9d %9.1f %7d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f",
+				name, h.count(), h.count() / seconds, errors, h.mean() / 1000,
+				h.percentile(50) / 1000.0, h.percentile(90) / 1000.0, h.percentile(99) / 1000.0,
+				h.percentile(99.9) / 1000.0, h.max() / 1000.0));
+	}
+
+	/**
+	 * One keep-alive connection acting as a stream of users
+	 */
+	class Client {
+		final int id;
+		final int totalWeight;
+		final Random random;
+		final LatencyHistogram[] histograms = new LatencyHistogram[ROUTES.length];
+		final long[] errors = new long[ROUTES.length];
+		final Map<Integer, String> sessions = new LinkedHashMap<Integer, String>();
+		final byte[] buf = new byte[8192];
+		Socket socket;
+		InputStream in;
+		OutputStream out;
+		int pos, limit;
+		long posts;
+
+		Client(int id, int totalWeight)
+		{
+			this.id = id;
+			this.totalWeight = totalWeight;
+			this.random = new Random(id);
+			for (int r = 0; r < ROUTES.length; r++) histograms[r] = new LatencyHistogram();
+		}
+
+		void run(long start, long measureFrom, long end)
+		{
+			// Each connection is due a request every interval, offset so they do not all send at once
+			long interval = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+			long due = start + (interval * id) / Math.max(1, connections);
+			waitUntil(start);
+			while (true) {
+				long now = System.nanoTime();
+				if (interval > 0) {
+					if (due >= end) break;
+					waitUntil(due);
+				} else {
+					if (now >= end) break;
+					due = now;
+				}
+				int route = pickRoute();
+				boolean ok;
+				try {
+					ok = request(route);
+				} catch (IOException e) {
+					ok = false;
+					close();
+				}
+				long latency = System.nanoTime() - due;
+				if (due >= measureFrom) {
+					if (ok) histograms[route].record(TimeUnit.NANOSECONDS.toMicros(latency));
+					else errors[route]++;
+				}
+				due += interval;
+			}
+			close();
+		}
+
+		int pickRoute()
+		{
+			int n = random.nextInt(totalWeight);
+			for (int r = 0; r < weights.length; r++) {
+				n -= weights[r];
+				if (n < 0) return r;
+			}
+			return weights.length - 1;
+		}
+
+		/*
+		 * Sends one request of the given kind as a random user
+		 * @return Whether the server answered with a success or Not Modified
+		 */
+		boolean request(int route) throws IOException
+		{
+			int u = random.nextInt(users);
+			String cookie = sessions.get(u);
+			if (cookie == null) cookie = DataGenerator.sessionID(u);
+			String target;
+			switch (ROUTES[route]) {
+			case LOGIN:
+				String session = send("/?username=user" + u + "&password=" + PASSWORD, null, false);
+				if (session == null) return false;
+				sessions.put(u, session);
+				return true;
+			case FEED:
+				target = "/TwOtter";
+				break;
+			case PROFILE:
+				target = "/user" + random.nextInt(users);
+				break;
+			case POST:
+				target = "/TwOtter?post=load+test+" + id + "+" + posts++;
+				break;
+			default:
+				return send(ASSETS[random.nextInt(ASSETS.length)], null, true) != null;
+			}
+			return send(target, cookie, false) != null;
+		}
+
+		/*
+		 * Sends a GET and reads the whole response
+		 * @return The session cookie the server set, "" if it set none, or null if the status was an error
+		 */
+		String send(String target, String session, boolean gzip) throws IOException
+		{
+			if (socket == null) connect();
+			StringBuilder sb = new StringBuilder(256);
+			sb.append("GET ").append(target).append(" HTTP/1.1\r\nHost: ").append(host).append(':').append(port).append("\r\n");
+			if (session != null) sb.append("Cookie: session=").append(session).append("\r\n");
+			if (gzip) sb.append("Accept-Encoding: gzip, deflate\r\n");
+			sb.append("\r\n");
+			out.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+
+			String status = readLine();
+			if (status == null) throw new EOFException();
+			long length = -1;
+			boolean chunked = false, keepAlive = status.startsWith("HTTP/1.1");
+			String cookie = "";
+			String line;
+			while ((line = readLine()) != null && !line.isEmpty()) {
+				int colon = line.indexOf(':');
+				if (colon < 0) continue;
+				String name = line.substring(0, colon).trim().toLowerCase();
+				String value = line.substring(colon + 1).trim();
+				if (name.equals("content-length")) length = Long.parseLong(value);
+				else if (name.equals("transfer-encoding")) chunked = value.toLowerCase().contains("chunked");
+				else if (name.equals("connection")) keepAlive = !value.toLowerCase().contains("close");
+				else if (name.equals("set-cookie") && value.startsWith("session=")) {
+					int semi = value.indexOf(';');
+					cookie = value.substring(8, semi < 0 ? value.length() : semi);
+				}
+			}
+			if (line == null) throw new EOFException();
+			if (chunked) {
+				long size;
+				while ((size = Long.parseLong(readLine().trim().split(";")[0], 16)) > 0) {
+					skip(size);
+					readLine();
+				}
+				while ((line = readLine()) != null && !line.isEmpty()) {
+					// trailers
+				}
+			} else if (length >= 0) {
+				skip(length);
+			} else {
+				while (fill()) pos = limit;	// body ends when the connection does
+				keepAlive = false;
+			}
+			if (!keepAlive) close();
+			int code = Integer.parseInt(status.split(" ")[1]);
+			return code < 400 ? cookie : null;
+		}
+
+		void connect() throws IOException
+		{
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host, port));
+			socket.setSoTimeout(60000);
+			in = socket.getInputStream();
+			out = new BufferedOutputStream(socket.getOutputStream());
+			pos = limit = 0;
+		}
+
+		void close()
+		{
+			if (socket == null) return;
+			try {
+				socket.close();
+			} catch (IOException e) {}
+			socket = null;
+		}
+
+		private boolean fill() throws IOException
+		{
+			pos = 0;
+			limit = in.read(buf);
+			if (limit < 0) {
+				limit = 0;
+				return false;
+			}
+			return true;
+		}
+
+		private String readLine() throws IOException
+		{
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				if (pos == limit && !fill()) return sb.length() == 0 ? null : sb.toString();
+				byte b = buf[pos++];
+				if (b == '\n') break;
+				if (b != '\r') sb.append((char) b);
+			}
+			return sb.toString();
+		}
+
+		private void skip(long n) throws IOException
+		{
+			while (n > 0) {
+				if (pos == limit && !fill()) throw new EOFException();
+				int k = (int) Math.min(n, limit - pos);
+				pos += k;
+				n -= k;
+			}
+		}
+	}
+
+	private static void waitUntil(long nanoTime)
+	{
+		long wait;
+		while ((wait = nanoTime - System.nanoTime()) > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+}
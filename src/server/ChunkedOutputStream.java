@@ -0,0 +1,94 @@
+package server;
+
+import java.io.*;
+
+/**
+ * Writes a response body with Transfer-Encoding: chunked. The response header
+ * is held back until the first chunk goes out, so a handler can still send a
+ * different response if nothing has been written yet
+ */
+public class ChunkedOutputStream extends OutputStream {
+	static final byte[] CRLF = {'\r', '\n'};
+	static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+	OutputStream out;
+	byte[] header;	// null once written
+	byte[] buf = new byte[8192];
+	int count;
+
+	public ChunkedOutputStream(OutputStream out, byte[] header) {
+		this.out = out;
+		this.header = header;
+	}
+
+	/* whether any part of the response has reached the underlying stream */
+	public boolean isStarted() {
+		return header == null;
+	}
+
+	/* add a line to the response header, which must not have been sent yet */
+	public void addHeader(byte[] name, String value) {
+		if (header == null)
+			throw new IllegalStateException("Response header already sent");
+		byte[] v = ResponseWriter.bytes(value);
+		int end = header.length - CRLF.length;	// before the blank line that ends the header
+		byte[] h = java.util.Arrays.copyOf(header, end + name.length + v.length + 2 * CRLF.length);
+		System.arraycopy(name, 0, h, end, name.length);
+		System.arraycopy(v, 0, h, end + name.length, v.length);
+		System.arraycopy(CRLF, 0, h, end + name.length + v.length, CRLF.length);
+		System.arraycopy(CRLF, 0, h, h.length - CRLF.length, CRLF.length);
+		header = h;
+	}
+
+	public void write(int b) throws IOException {
+		if (count == buf.length)
+			writeBuffer();
+		buf[count++] = (byte) b;
+	}
+
+	public void write(byte b[], int off, int len) throws IOException {
+		if (len > buf.length - count)
+			writeBuffer();
+		if (len >= buf.length)
+			writeChunk(b, off, len);
+		else {
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+	}
+
+	/* send what is buffered as a chunk and push it to the client */
+	public void flush() throws IOException {
+		writeBuffer();
+		out.flush();
+	}
+
+	/* write the terminating chunk; the underlying stream stays open for the next response */
+	public void finish() throws IOException {
+		writeBuffer();
+		start();
+		out.write(LAST_CHUNK);
+	}
+
+	void writeBuffer() throws IOException {
+		if (count > 0) {
+			writeChunk(buf, 0, count);
+			count = 0;
+		}
+	}
+
+	void writeChunk(byte b[], int off, int len) throws IOException {
+		start();
+		out.write(Integer.toHexString(len).getBytes());
+		out.write(CRLF);
+		out.write(b, off, len);
+		out.write(CRLF);
+	}
+
+	void start() throws IOException {
+		if (header != null) {
+			out.write(header);
+			header = null;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package server;
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import backend.Metrics;
+import backend.StripedCounter;
+
+/**
+ * Compresses a dynamic response body with Content-Encoding gzip or deflate as it
+ * is written. In front of a ChunkedOutputStream the first MIN_SIZE bytes are held
+ * back: a body that ends before then is sent as it is, otherwise Content-Encoding
+ * is added to the response header, which the ChunkedOutputStream has not sent yet,
+ * and compression starts. flush() ends a deflate block, so a streamed page still
+ * reaches the client piece by piece. Deflaters hold native memory and are costly
+ * to create, so they are pooled rather than made for each response
+ */
+public class CompressingOutputStream extends OutputStream {
+
+	// zlib level from 1, fastest, to 9, smallest; 0 turns compression off. On a feed
+	// page 1 is a quarter of the time of 6 for output only 8% larger
+	static final int LEVEL = Integer.getInteger("twotter.compressionLevel", 1);
+	// Bodies smaller than this are not worth compressing
+	static final int MIN_SIZE = Integer.getInteger("twotter.compressionMinSize", 1024);
+	// Most idle Deflaters kept for each encoding
+	static final int POOL_SIZE = Integer.getInteger("twotter.deflaterPool", 64);
+
+	static final ArrayBlockingQueue<Deflater> GZIP_POOL = new ArrayBlockingQueue<Deflater>(Math.max(1, POOL_SIZE));
+	static final ArrayBlockingQueue<Deflater> DEFLATE_POOL = new ArrayBlockingQueue<Deflater>(Math.max(1, POOL_SIZE));
+
+	// No file name, time or extra fields
+	static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+	static final Metrics.Family<StripedCounter> BYTES =
+			Metrics.counter("twotter_http_compression_bytes_total", "Dynamic response bytes compressed, before and after", "side");
+	static final StripedCounter BYTES_IN = BYTES.labels("uncompressed");
+	static final StripedCounter BYTES_OUT = BYTES.labels("compressed");
+
+	OutputStream out;
+	ChunkedOutputStream chunks;	// out, if the header is still to be told of the encoding
+	String encoding;	// gzip or deflate, null to send the body as it is
+	Deflater deflater;	// while compressing
+	CRC32 crc;			// of the uncompressed body, for the gzip trailer
+	byte[] held;		// body held back until it is known to be worth compressing
+	int heldCount;
+	byte[] buf = new byte[8192];
+
+	/*
+	Compress everything written to out
+	 */
+	CompressingOutputStream(OutputStream out, String encoding) {
+		this.out = out;
+		this.encoding = encoding;
+	}
+
+	/*
+	Compress a chunked body in encoding if it reaches MIN_SIZE, adding the
+	Content-Encoding header. encoding may be null, to pass the body through
+	 */
+	public CompressingOutputStream(ChunkedOutputStream chunks, String encoding) {
+		this.out = chunks;
+		this.chunks = chunks;
+		this.encoding = encoding;
+		if (encoding != null)
+			held = new byte[MIN_SIZE];
+	}
+
+	/*
+	The encoding to use for a client's Accept-Encoding: gzip if it takes it, else
+	deflate, else null
+	 */
+	public static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null)
+			return null;
+		boolean deflate = false;
+		for (String coding : acceptEncoding.toLowerCase().split(",")) {
+			String[] params = coding.split(";");
+			String name = params[0].trim();
+			boolean refused = false;
+			for (int i = 1; i < params.length; i++) {
+				String p = params[i].trim();
+				if (p.startsWith("q="))
+					refused = p.substring(2).trim().matches("0(\\.0*)?");
+			}
+			if (refused)
+				continue;
+			if (name.equals("gzip") || name.equals("x-gzip"))
+				return "gzip";
+			if (name.equals("deflate"))
+				deflate = true;
+		}
+		return deflate ? "deflate" : null;
+	}
+
+	/*
+	Whether responses of a type are compressed for clients that take it, so should
+	carry Vary: Accept-Encoding
+	 */
+	public static boolean compressible(String type) {
+		return LEVEL > 0 && type.startsWith("text/");
+	}
+
+	/*
+	A whole body compressed in encoding, or null if that does not make it smaller
+	 */
+	public static byte[] compress(byte[] body, String encoding) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 64);
+		CompressingOutputStream z = new CompressingOutputStream(bytes, encoding);
+		z.write(body, 0, body.length);
+		z.finish();
+		return bytes.size() < body.length ? bytes.toByteArray() : null;
+	}
+
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	public void write(byte b[], int off, int len) throws IOException {
+		if (deflater != null) {
+			deflate(b, off, len);
+		}
+		else if (encoding == null) {
+			out.write(b, off, len);
+		}
+		else if (held != null && heldCount + len < held.length) {
+			System.arraycopy(b, off, held, heldCount, len);
+			heldCount += len;
+		}
+		else {
+			start();
+			deflate(b, off, len);
+		}
+	}
+
+	/* end the current deflate block and send it; held back if too little has been written to decide */
+	public void flush() throws IOException {
+		if (deflater != null) {
+			while (drain(Deflater.SYNC_FLUSH) == buf.length)
+				;
+			out.flush();
+		}
+		else if (encoding == null)
+			out.flush();
+	}
+
+	/* write the rest of the body, and end the chunked body if there is one */
+	public void finish() throws IOException {
+		if (deflater != null) {
+			deflater.finish();
+			while (!deflater.finished())
+				drain(Deflater.NO_FLUSH);
+			if (crc != null) {
+				writeInt((int) crc.getValue());
+				writeInt((int) deflater.getBytesRead());
+			}
+			BYTES_IN.add(deflater.getBytesRead());
+			BYTES_OUT.add(deflater.getBytesWritten());
+			release();
+		}
+		else if (heldCount > 0) {
+			out.write(held, 0, heldCount);	// too small to compress
+		}
+		heldCount = 0;
+		encoding = null;
+		if (chunks != null)
+			chunks.finish();
+	}
+
+	/* give the Deflater back, if the body was not finished */
+	public void release() {
+		if (deflater == null)
+			return;
+		deflater.reset();
+		if (!(encoding.equals("gzip") ? GZIP_POOL : DEFLATE_POOL).offer(deflater))
+			deflater.end();
+		deflater = null;
+	}
+
+	/*
+	Commit to compressing: announce the encoding and compress what was held back
+	 */
+	void start() throws IOException {
+		if (chunks != null)
+			chunks.addHeader(ResponseWriter.CONTENT_ENCODING, encoding);
+		boolean gzip = encoding.equals("gzip");
+		deflater = (gzip ? GZIP_POOL : DEFLATE_POOL).poll();
+		if (deflater == null)
+			deflater = new Deflater(LEVEL, gzip);	// gzip has its own header and trailer around raw deflate
+		if (gzip) {
+			crc = new CRC32();
+			out.write(GZIP_HEADER);
+		}
+		if (heldCount > 0)
+			deflate(held, 0, heldCount);
+		held = null;
+		heldCount = 0;
+	}
+
+	void deflate(byte b[], int off, int len) throws IOException {
+		if (crc != null)
+			crc.update(b, off, len);
+		deflater.setInput(b, off, len);
+		while (!deflater.needsInput())
+			drain(Deflater.NO_FLUSH);
+	}
+
+	int drain(int flush) throws IOException {
+		int n = deflater.deflate(buf, 0, buf.length, flush);
+		if (n > 0)
+			out.write(buf, 0, n);
+		return n;
+	}
+
+	/* little-endian, as gzip wants */
+	void writeInt(int v) throws IOException {
+		out.write(new byte[] {(byte) v, (byte) (v >> 8), (byte) (v >> 16), (byte) (v >> 24)});
+	}
+}
@@ -3,30 +3,101 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 
 import backend.DBPortal;
+import backend.FeedHub;
+import backend.Log;
+import backend.Metrics;
+import backend.StripedCounter;
 
-public class HttpHandler extends java.lang.Thread {
+public class HttpHandler implements Runnable {
 	DBPortal portal = new DBPortal();
 	Socket client;
 	OutputStream os=null;
+	RequestParser parser;
+	ResponseWriter out;
 	String sessionId;
+	String user;		// owner of sessionId, null if the request is not logged in
 	String DEFAULT_ID = "00000000000000000000";
+	boolean keepAlive;	// whether the connection stays open after the current response
+	boolean responded;	// whether the current request has been answered
+	boolean chunked;	// whether the client understands Transfer-Encoding: chunked
+	int requests;		// requests served on this connection so far
+	String ifNoneMatch;	// ETags the client already has, from If-None-Match
+	boolean acceptGzip;	// whether the client takes Content-Encoding: gzip
+	String encoding;	// what dynamic responses are compressed with for this client, null for nothing
+	String etag;		// version of the page being sent, null if it has none
+	long lastModified;	// when that version was stamped, in milliseconds
+	String route;		// what kind of request the current one is, for metrics
+
+	static final String PAGE_TYPE = "text/html; charset=utf-8";
+	// Pages differ by session, and are checked with the server every time they are shown
+	static final String PAGE_CACHE_CONTROL = "private, no-cache";
+
+	static final byte[] BODY_404 = "<html><body>Error - invalid url</body></html>".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] BODY_500 = "<html><body>Error - invalid Request</body></html>".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] BODY_503 = "<html><body>Server busy - try again</body></html>".getBytes(StandardCharsets.US_ASCII);
+
+	// Live feed updates, as Server-Sent Events
+	static final String STREAM_PATH = "/TwOtter/stream";
+	static final String STREAM_TYPE = "text/event-stream; charset=utf-8";
+	// How often an idle stream is sent a comment, so a client that has gone is noticed
+	static final int STREAM_HEARTBEAT = Integer.getInteger("twotter.streamHeartbeat", 15000);
+	// Sent first: how long the browser waits before reconnecting
+	static final byte[] STREAM_START = ("retry: 3000\n\n").getBytes(StandardCharsets.US_ASCII);
+	static final byte[] STREAM_HEARTBEAT_EVENT = (": keep-alive\n\n").getBytes(StandardCharsets.US_ASCII);
+
+	// Persistent connection limits
+	static final int IDLE_TIMEOUT = Integer.getInteger("twotter.keepAliveTimeout", 5000);
+	static final int MAX_REQUESTS = Integer.getInteger("twotter.keepAliveMax", 100);
+
+	// Bootstrap css, js and images, served without a session or the database
+	static final String ASSET_PREFIX = "/bootstrap/";
+	static final StaticFiles ASSETS = new StaticFiles(new File(DBPortal.TEMPLATES + "bootstrap"));
+
+	// Where metrics are served in the Prometheus text format; empty to not serve them
+	static final String METRICS_PATH = System.getProperty("twotter.metricsPath", "/metrics");
+	static final String METRICS_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	static final Metrics.Family<StripedCounter> REQUESTS =
+			Metrics.counter("twotter_http_requests_total", "Requests answered, by route and status", "route", "code");
+	static final Metrics.Family<Metrics.Histogram> REQUEST_SECONDS =
+			Metrics.timer("twotter_http_request_seconds", "Time from a request being read to its response being written, by route", "route");
+	static final StripedCounter IN_FLIGHT =
+			Metrics.upDownCounter("twotter_http_requests_in_flight", "Requests being handled").get();
+	static final StripedCounter CONNECTIONS =
+			Metrics.upDownCounter("twotter_http_connections", "Client connections open").get();
 
 	public HttpHandler(Socket client,int cnt) {
 		this.client=client;
 		sessionId = DEFAULT_ID;
 	}
 
+	/*
+	Used by the NIO front end: the request head has already been read off the
+	channel and the response is written to os. requests is the number of
+	requests already served on the connection
+	 */
+	public HttpHandler(DBPortal portal, OutputStream os, int requests) {
+		this.portal = portal;
+		this.os = os;
+		this.out = new ResponseWriter(os);
+		this.parser = new RequestParser(null, 0);
+		this.requests = requests;
+		sessionId = DEFAULT_ID;
+	}
+
 	/* send 404 */
 	public void send404() throws IOException {
-		sendResponse(404,"404 - Invalid URL","text/html","<html><body>Error - invalid url</body></html>".getBytes());
+		sendResponse(404,"404 - Invalid URL","text/html",BODY_404);
 	}
 
 	/* send 500 */
 	public void send500() throws IOException {
-		sendResponse(500,"500 - Invalid Server Request","text/html","<html><body>Error - invalid Request</body></html>".getBytes());
+		sendResponse(500,"500 - Invalid Server Request","text/html",BODY_500);
 	}
 
 
@@ -34,56 +105,158 @@ public class HttpHandler extends java.lang.Thread {
 	send response
 	 */
 	public void sendResponse(int code, String status, String type, byte body[]) throws IOException {
-		StringBuffer sb = new StringBuffer();
-		sb.append("HTTP/1.1 " + code + " " + status + "\r\n");
-		sb.append("Content-Length: " + body.length + "\r\n");
-		sb.append("Content-Type: " + type + "\r\n");
-		sb.append("\r\n");	//dont' forget blank line
-		os.write(sb.toString().getBytes());
-		os.write(body);
-		os.flush();
+		out.status(code, status);
+		body = encodeBody(type, body);
+		out.header(ResponseWriter.CONTENT_LENGTH, body.length);
+		out.header(ResponseWriter.CONTENT_TYPE, type);
+		appendValidators();
+		appendConnectionHeader();
+		out.send(body);
+		responded = true;
 	}
 
 	public void sendCookieResponse(int code, String status, String type, byte body[]) throws IOException {
-		StringBuffer sb = new StringBuffer();
-		sb.append("HTTP/1.1 " + code + " " + status + "\r\n");
-		sb.append("Content-Length: " + body.length + "\r\n");
-		sb.append("Content-Type: " + type + "\r\n");
-		sb.append("Set-Cookie: session=" + sessionId + "\r\n"); //Setting the sessionId for the client
-		sb.append("\r\n");	//dont' forget blank line
-		os.write(sb.toString().getBytes());
-		os.write(body);
-		os.flush();
+		out.status(code, status);
+		body = encodeBody(type, body);
+		out.header(ResponseWriter.CONTENT_LENGTH, body.length);
+		out.header(ResponseWriter.CONTENT_TYPE, type);
+		out.header(ResponseWriter.SET_COOKIE_SESSION, sessionId); //Setting the sessionId for the client
+		appendValidators();
+		appendConnectionHeader();
+		out.send(body);
+		responded = true;
+	}
+
+	/*
+	Add Content-Encoding and Vary for a body of type, returning the body to send:
+	compressed if the client takes it and it is big enough to be worth it
+	 */
+	byte[] encodeBody(String type, byte[] body) throws IOException {
+		if (!CompressingOutputStream.compressible(type))
+			return body;
+		out.header(ResponseWriter.VARY, "Accept-Encoding");
+		if (encoding == null || body.length < CompressingOutputStream.MIN_SIZE)
+			return body;
+		byte[] compressed = CompressingOutputStream.compress(body, encoding);
+		if (compressed == null)
+			return body;
+		out.header(ResponseWriter.CONTENT_ENCODING, encoding);
+		return compressed;
+	}
+
+	/*
+	ETag, Last-Modified and Cache-Control of the page being sent, if it has a version
+	 */
+	void appendValidators() {
+		if (etag == null)
+			return;
+		out.header(ResponseWriter.ETAG, "W/" + etag);	// weak, since the same version is sent compressed or not
+		out.date(ResponseWriter.LAST_MODIFIED, lastModified);
+		out.header(ResponseWriter.CACHE_CONTROL, PAGE_CACHE_CONTROL);
+	}
+
+	/*
+	Tell the client whether the connection will be reused
+	 */
+	void appendConnectionHeader() {
+		out.connection(keepAlive, IDLE_TIMEOUT / 1000, MAX_REQUESTS - requests);
 	}
 
 	/*
 	send response HEADER
 	 */
 	public void sendResponseHeader(int code, String status, String type) throws IOException {
-		StringBuffer sb = new StringBuffer();
-		sb.append("HTTP/1.1 " + code + " " + status + "\r\n");
-		sb.append("Connection: close\r\n");
-		sb.append("Content-Type: " + type + "\r\n");
-		sb.append("\r\n");	//dont' forget blank line
-		os.write(sb.toString().getBytes());
+		keepAlive = false;	// no Content-Length, so the body ends when the connection does
+		out.status(code, status);
+		out.append(ResponseWriter.CONNECTION_CLOSE);
+		out.header(ResponseWriter.CONTENT_TYPE, type);
+		out.send(null);
+		responded = true;
 	}
 
 	public String getContentType(String URL) {
-		//get extension
-		System.err.println(URL);
-		String ext[] = URL.split("\\.");
-		System.err.println(ext.length);
-		String e = ext[ext.length-1].toLowerCase();
-		if ("txt".equals(e)) 
-			return "text/txt";
-		else if("html".equals(e) || "htm".equals(e))
-			return "text/html";
-		else if ("jpg".equals(e))
-			return "image/jpg";
-		else if ("gif".equals(e))
-			return "image/gif";
-		else
-			return "text/txt";
+		return StaticFiles.getContentType(URL);
+	}
+
+	/*
+	Send a file from the asset directory. Cached files are written from memory,
+	gzipped if the client accepts it; others are copied from disk, through the
+	socket's channel when there is one
+	 */
+	public void sendAsset(String path) throws IOException {
+		StaticFiles.Asset a = testURL(path) == null ? null : ASSETS.get(path.substring(ASSET_PREFIX.length()));
+		if (a == null) {
+			send404();
+			return;
+		}
+		boolean gzip = acceptGzip && a.gzipped != null;
+		String etag = gzip ? a.gzipEtag : a.etag;
+		boolean notModified = StaticFiles.matches(ifNoneMatch, etag);
+		if (notModified)
+			out.status(304, "Not Modified");
+		else {
+			out.status(200, "OK");
+			out.header(ResponseWriter.CONTENT_LENGTH, gzip ? a.gzipped.length : a.length);
+			out.header(ResponseWriter.CONTENT_TYPE, a.type);
+			if (gzip)
+				out.header(ResponseWriter.CONTENT_ENCODING, "gzip");
+		}
+		out.header(ResponseWriter.ETAG, etag);
+		out.header(ResponseWriter.CACHE_CONTROL, StaticFiles.CACHE_CONTROL);
+		if (a.gzipped != null)
+			out.header(ResponseWriter.VARY, "Accept-Encoding");
+		appendConnectionHeader();
+		responded = true;
+		if (notModified || a.data != null) {
+			out.send(notModified ? null : gzip ? a.gzipped : a.data);
+			return;
+		}
+		out.send(null);
+		FileInputStream in = new FileInputStream(a.file);
+		try {
+			FileChannel fc = in.getChannel();
+			if (client != null && client.getChannel() != null) {
+				os.flush();
+				for (long pos = 0; pos < a.length; ) {
+					long n = fc.transferTo(pos, a.length - pos, client.getChannel());
+					if (n <= 0)
+						throw new EOFException(a.file.getPath() + " changed while it was sent");
+					pos += n;
+				}
+			}
+			else if (os instanceof NioServer.ChannelOutputStream)
+				((NioServer.ChannelOutputStream) os).sendFile(fc, a.length);
+			else {
+				byte[] buf = new byte[8192];
+				long left = a.length;
+				while (left > 0) {
+					int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+					if (n < 0)
+						throw new EOFException(a.file.getPath() + " changed while it was sent");
+					os.write(buf, 0, n);
+					left -= n;
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	Value of a parameter in a query string, decoded, or null if absent
+	 */
+	public static String getParameter(String query, String name) {
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq == name.length() && pair.startsWith(name)) {
+				try {
+					return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+				} catch (UnsupportedEncodingException | IllegalArgumentException err) {
+					return null;
+				}
+			}
+		}
+		return null;
 	}
 
 	/*
@@ -96,113 +269,418 @@ public class HttpHandler extends java.lang.Thread {
 			return url;
 	}
 
+	/*
+	Read the next request from the connection. Returns null when the client
+	has closed the connection or the request could not be served
+	 */
 	public String getRequest() throws IOException {
-		BufferedReader br = new BufferedReader(new InputStreamReader(client.getInputStream()));
-		String get = br.readLine();
-		System.out.println(get);
-		if (get==null)
-			throw new IOException("null string");
-		String line = "empty";
-		while (!line.equals("")) {
-			line = br.readLine();
-			System.out.println(line);
-			line = line.toLowerCase();
-			if(line.contains("session=")) {
-				sessionId = line.substring(line.indexOf("session=")+10);
-				System.out.println("sessionId = " + sessionId);
-			}
+		if (!parser.next())
+			return null;
+		// HTTP/1.1 connections persist unless the client asks otherwise, HTTP/1.0 only on request
+		keepAlive = parser.http11;
+		chunked = keepAlive;
+		ifNoneMatch = parser.ifNoneMatch;
+		String accepted = CompressingOutputStream.negotiate(parser.acceptEncoding);
+		acceptGzip = "gzip".equals(accepted);
+		encoding = CompressingOutputStream.LEVEL > 0 ? accepted : null;
+		if (parser.session != null)
+			sessionId = parser.session;
+		if (parser.connection != null) {
+			String connection = parser.connection.toLowerCase();
+			if (connection.contains("close"))
+				keepAlive = false;
+			else if (connection.contains("keep-alive"))
+				keepAlive = true;
 		}
-		String parts[] =  get.split(" ");
-		if (parts.length != 3 || !parts[0].toLowerCase().equals("get") || !parts[2].toLowerCase().startsWith("http/"))
+		requests++;
+		if (requests >= MAX_REQUESTS)
+			keepAlive = false;
+		if (!parser.valid)
 		{
+			keepAlive = false;
 			send500();
 			return null;
 		}
-		System.out.println("URL: " + parts[1]);
-		return parts[1];
+		return parser.target;
 	}
 
 	public void run() {
-		System.err.println("handler");
+		CONNECTIONS.increment();
 		try {
-			os = client.getOutputStream();
-			String URL = getRequest();
-			if (URL!= null) {
-				if(sessionId == DEFAULT_ID) {
-					if (URL.contains("username=") && URL.contains("password=")) {
-						//User just submitted log in information
-						getLogin(URL);
-					}
-					else {
-						//By default send user to log in page if they have not logged
-						sendLogin();
-					}
+			client.setSoTimeout(IDLE_TIMEOUT);
+			// Responses are flushed whole, so Nagle's algorithm would only hold back the last segment
+			client.setTcpNoDelay(true);
+			parser = new RequestParser(client.getInputStream(), NioServer.MAX_HEAD);
+			os = new BufferedOutputStream(client.getOutputStream());
+			out = new ResponseWriter(os);
+			while (serveRequest() && keepAlive) {
+				// Pipelined requests that are already buffered get answered before flushing
+				if (!parser.hasBuffered())
+					os.flush();
+			}
+			os.flush();
+		} catch (SocketTimeoutException err) {
+			// idle keep-alive connection timed out
+		} catch (EOFException err) {
+			// client went away part way through a request
+		} catch (Exception err) {
+			Log.error("Connection failed", err);
+		} finally {
+			CONNECTIONS.decrement();
+			try {
+				client.close();
+			} catch (IOException err) {}
+		}
+	}
+
+	/*
+	Serve a request whose head has already been read. Returns whether the
+	connection should stay open
+	 */
+	public boolean serve(byte[] head) throws IOException {
+		parser.wrap(head);
+		serveRequest();
+		os.flush();
+		return keepAlive;
+	}
+
+	/*
+	Read and answer the next request. Returns false when there was no request to serve
+	 */
+	boolean serveRequest() throws IOException {
+		sessionId = DEFAULT_ID;
+		user = null;
+		responded = false;
+		etag = null;
+		route = "unknown";
+		String URL = getRequest();
+		if (URL == null)
+			return false;
+		long start = System.nanoTime();
+		IN_FLIGHT.increment();
+		try {
+			handle(URL);
+		} catch (IOException err) {
+			throw err;
+		} catch (Exception err) {
+			Log.error("Failed to serve " + URL, err);
+			keepAlive = false;
+			if (!responded)
+				send500();
+		} finally {
+			IN_FLIGHT.decrement();
+			REQUEST_SECONDS.labels(route).stop(start);
+		}
+		if (!responded)
+			keepAlive = false;	// nothing was sent, the client only sees the end when the socket closes
+		String code = responded ? Integer.toString(out.code) : "none";
+		REQUESTS.labels(route, code).increment();
+		if (Log.enabled(Log.DEBUG))
+			Log.debug(code + " " + route + " " + URL + " " + (System.nanoTime() - start) / 1000 + "us");
+		return true;
+	}
+
+	/*
+	Route a single request
+	 */
+	public void handle(String URL) throws IOException, SQLException {
+		if (URL!= null) {
+			String path = URL;
+			String before = null;	// page cursor for feeds and profiles
+			int q = URL.indexOf('?');
+			if (q >= 0) {
+				path = URL.substring(0, q);
+				before = getParameter(URL.substring(q + 1), "before");
+			}
+			if (path.startsWith(ASSET_PREFIX)) {
+				route = "asset";
+				sendAsset(path);
+				return;
+			}
+			if (path.equals(METRICS_PATH)) {
+				route = "metrics";
+				sendResponse(200, "OK", METRICS_TYPE, Metrics.scrape().getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			if (sessionId != DEFAULT_ID)
+				user = portal.getUsernameByID(sessionId);	// null once the session has ended
+			if(user == null) {
+				if (URL.contains("username=") && URL.contains("password=")) {
+					//User just submitted log in information
+					route = "login";
+					getLogin(URL);
 				}
 				else {
-					if (URL.equals("/TwOtter")) {
-						sendNewsFeed();
-					}
-					else if (URL.equals("/MakeAProfile")) {
-						//sendMakeAProfile();
-					}
-					else if (URL.startsWith("/MakeAProfile")) {
-						//User made profile
-						//getMakeAProfile();
-					}
-					else if (URL.contains("post=")) {
-						String[] parts = URL.split("post=");
-						String post = parts[1];
-						post = post.replace("+", " ");
-						portal.createPost(post,sessionId);
-						sendNewsFeed();
-					}
-					else if(URL.equals("/EditProfile")) {
-						sendEditProfile();
-					}
-					else if(URL.startsWith("/EditProfile")) {
-						//User Edited Profile
-						getEditProfile(URL);
-					}
-					else if(URL.equals("/LogOut")) {
-						sessionId = DEFAULT_ID;
-						sendLogin();
+					//By default send user to log in page if they have not logged
+					route = "login_page";
+					sendLogin();
+				}
+			}
+			else {
+				if (path.equals(STREAM_PATH)) {
+					route = "stream";
+					sendStream();
+				}
+				else if (path.equals("/TwOtter") && !URL.contains("post=")) {
+					route = "feed";
+					sendPage(user,true,before,false);
+				}
+				else if (path.equals("/search")) {
+					route = "search";
+					String query = getParameter(URL.substring(q + 1), "q");
+					sendSearch(query == null ? "" : query, "recent".equals(getParameter(URL.substring(q + 1), "sort")), before);
+				}
+				else if (path.equals("/follow") || path.equals("/unfollow")) {
+					route = path.substring(1);
+					String followee = getParameter(URL.substring(q + 1), "user");
+					if (followee == null || !portal.userExists(followee)) {
+						send404();
+						return;
 					}
-					else if(portal.userExists(URL.substring(1))) {
-						userProfile(URL);
+					if (route.equals("follow"))
+						portal.follow(user, followee);
+					else
+						portal.unfollow(user, followee);
+					userProfile(followee, null);
+				}
+				else if (path.equals("/favorite") || path.equals("/unfavorite") || path.equals("/repost")) {
+					route = path.substring(1);
+					String id = getParameter(URL.substring(q + 1), "id");
+					if (id == null) {
+						send404();
+						return;
 					}
-					else {
+					long postID;
+					try {
+						postID = Long.parseLong(id);
+					} catch (NumberFormatException err) {
 						send404();
+						return;
 					}
+					if (route.equals("repost"))
+						portal.repost(postID, user);
+					else
+						portal.favorite(postID, user, route.equals("favorite"));
+					sendNewsFeed();
+				}
+				else if (URL.equals("/MakeAProfile")) {
+					//sendMakeAProfile();
+				}
+				else if (URL.startsWith("/MakeAProfile")) {
+					//User made profile
+					//getMakeAProfile();
+				}
+				else if (URL.contains("post=")) {
+					String[] parts = URL.split("post=");
+					String post = parts[1];
+					post = post.replace("+", " ");
+					route = "post";
+					portal.createPostWithUsername(post,user);
+					if (q >= 0 && "1".equals(getParameter(URL.substring(q + 1), "async")))
+						sendResponse(204,"No Content",PAGE_TYPE,new byte[0]);	// posted from the page, which is kept up to date by its stream
+					else
+						sendNewsFeed();
+				}
+				else if(URL.equals("/EditProfile")) {
+					route = "edit_profile_page";
+					sendEditProfile();
+				}
+				else if(URL.startsWith("/EditProfile")) {
+					//User Edited Profile
+					route = "edit_profile";
+					getEditProfile(URL);
+				}
+				else if(URL.equals("/LogOut")) {
+					route = "logout";
+					portal.endSession(sessionId);
+					sessionId = DEFAULT_ID;
+					user = null;
+					sendLogin();
+				}
+				else if(portal.userExists(path.substring(1))) {
+					route = "profile";
+					userProfile(path.substring(1),before);
+				}
+				else {
+					route = "not_found";
+					send404();
 				}
 			}
-			os.close();
-		} catch (Exception err) {
-			err.printStackTrace();
 		}
 	}
 
-	public void userProfile(String username) throws IOException, SQLException { //Get someone else's Profile
+	public void userProfile(String username, String before) throws IOException, SQLException { //Get someone else's Profile
 		try {
-		String body = portal.getProfileHTML(username);
-		sendResponse(200,"OK","text/html",body.getBytes());
+			sendPage(username,false,before,false);
 		} catch (FileNotFoundException err) {
-			send404();
+			if (!responded)
+				send404();
+		}
+	}
+
+	public void sendProfile() throws IOException, SQLException {
+		sendPage(user,false,null,false);
+	}
+
+	/*
+	Send a page of a newsfeed or profile, before is the page cursor or null for the
+	first page. A page the client already has in its current version is answered
+	with 304 and not rendered. HTTP/1.1 clients get it streamed in chunks as it is
+	rendered, older clients get it with a Content-Length; either is compressed if
+	the client takes it
+	 */
+	public void sendPage(String username, boolean newsfeed, String before, boolean cookie) throws IOException, SQLException {
+		// Read before rendering, so a change made meanwhile moves the version on past what is sent
+		lastModified = portal.getPageVersion(username, newsfeed);
+		etag = pageTag(lastModified);
+		if (!cookie && StaticFiles.matches(ifNoneMatch, etag)) {
+			out.status(304, "Not Modified");
+			appendValidators();
+			appendConnectionHeader();
+			out.send(null);
+			responded = true;
+			return;
+		}
+		if (!chunked) {
+			String body = portal.getHTML(user,username,newsfeed,before);
+			if (body == null) {
+				etag = null;
+				send404();
+			}
+			else if (cookie)
+				sendCookieResponse(200,"OK",PAGE_TYPE,body.getBytes("UTF-8"));
+			else
+				sendResponse(200,"OK",PAGE_TYPE,body.getBytes("UTF-8"));
+			return;
+		}
+		out.status(200, "OK");
+		out.append(ResponseWriter.TRANSFER_ENCODING_CHUNKED);
+		out.header(ResponseWriter.CONTENT_TYPE, PAGE_TYPE);
+		if (cookie)
+			out.header(ResponseWriter.SET_COOKIE_SESSION, sessionId);
+		appendValidators();
+		if (CompressingOutputStream.compressible(PAGE_TYPE))
+			out.header(ResponseWriter.VARY, "Accept-Encoding");
+		appendConnectionHeader();
+		CompressingOutputStream body = new CompressingOutputStream(new ChunkedOutputStream(os, out.toHead()), encoding);
+		responded = true;	// a failure part way through must not start a second response
+		try {
+			if (!portal.writeHTML(user, username, newsfeed, before, body)) {
+				responded = false;
+				etag = null;
+				send404();
+				return;
+			}
+			body.finish();
+		} finally {
+			body.release();
+		}
+	}
+
+	/*
+	ETag of a page version as seen by the logged in user. The process start is part
+	of it, since versions are not kept across restarts, and so is the viewer, whose
+	follow button is on the page and whose cookie decides what /TwOtter is
+	 */
+	String pageTag(long version) {
+		return "\"" + Long.toString(portal.getVersionEpoch(), 36) + "-" + Long.toString(version, 36)
+				+ "-" + Integer.toHexString(user.hashCode()) + "\"";
+	}
+
+	/*
+	Send a page of search results, streamed like a news feed when the client takes chunks
+	 */
+	public void sendSearch(String query, boolean recent, String before) throws IOException, SQLException {
+		if (!chunked) {
+			String body = portal.getSearchHTML(user, query, recent, before);
+			if (body == null)
+				send404();
+			else
+				sendResponse(200,"OK",PAGE_TYPE,body.getBytes("UTF-8"));
+			return;
+		}
+		out.status(200, "OK");
+		out.append(ResponseWriter.TRANSFER_ENCODING_CHUNKED);
+		out.header(ResponseWriter.CONTENT_TYPE, PAGE_TYPE);
+		if (CompressingOutputStream.compressible(PAGE_TYPE))
+			out.header(ResponseWriter.VARY, "Accept-Encoding");
+		appendConnectionHeader();
+		CompressingOutputStream body = new CompressingOutputStream(new ChunkedOutputStream(os, out.toHead()), encoding);
+		responded = true;	// a failure part way through must not start a second response
+		try {
+			if (!portal.writeSearchHTML(user, query, recent, before, body)) {
+				responded = false;
+				send404();
+				return;
+			}
+			body.finish();
+		} finally {
+			body.release();
 		}
 	}
 
-	public void sendProfile() {
-		String body = portal.getProfileHTML_SessionID(sessionId);
-		sendResponse(200,"OK","text/html",body.getBytes());
+	/*
+	Stream the posts arriving in the user's feed as Server-Sent Events, until the
+	client goes away or falls too far behind, when the connection is closed under
+	us. Holds this thread while it is open, except in nio mode, where the selector
+	takes the stream over once its head is sent
+	 */
+	public void sendStream() throws IOException {
+		FeedHub.Subscription sub = portal.subscribe(user, client != null ? client : os);
+		if (sub == null) {
+			keepAlive = false;
+			sendResponse(503,"Service Unavailable",PAGE_TYPE,BODY_503);
+			return;
+		}
+		try {
+			keepAlive = keepAlive && chunked;	// otherwise the stream ends with the connection
+			out.status(200, "OK");
+			if (chunked)
+				out.append(ResponseWriter.TRANSFER_ENCODING_CHUNKED);
+			out.header(ResponseWriter.CONTENT_TYPE, STREAM_TYPE);
+			out.header(ResponseWriter.CACHE_CONTROL, "no-cache");
+			appendConnectionHeader();
+			OutputStream body;
+			if (chunked) {
+				body = new ChunkedOutputStream(os, out.toHead());
+			} else {
+				out.send(null);
+				body = os;
+			}
+			responded = true;
+			body.write(STREAM_START);
+			body.flush();
+			if (os instanceof NioServer.ChannelOutputStream) {
+				keepAlive = false;
+				if (((NioServer.ChannelOutputStream) os).stream(sub, chunked))
+					sub = null;		// the connection closes it
+				return;
+			}
+			while (!sub.isEvicted()) {
+				byte[] event = sub.poll(STREAM_HEARTBEAT);
+				body.write(event != null ? event : STREAM_HEARTBEAT_EVENT);
+				// Write whatever else has arrived in the same flush
+				while ((event = sub.poll()) != null)
+					body.write(event);
+				body.flush();
+			}
+			keepAlive = false;
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+			keepAlive = false;
+		} finally {
+			if (sub != null)
+				sub.close();
+		}
 	}
 
-	public void getLogin(String URL) throws IOException {
+	public void getLogin(String URL) throws IOException, SQLException {
 		String responses[] = URL.split("=");
 		String username = responses[1].substring(0, responses[1].length()-9);
 		String password = responses[2];
-		System.out.println(username);
-		System.out.println(password);
 		if(portal.checkLogin(username, password)) { //Log in was successful
 			sessionId = portal.retreiveSessionID(username);
+			user = username;
 			sendLoginNewsFeed();
 		} else { //Login was unsuccessful
 			sendLoginError();
@@ -213,25 +691,34 @@ public class HttpHandler extends java.lang.Thread {
 	//Newsfeed that is sent when the user first logs on, sets the sessionId cookie for the client browser
 	//establishing session control until the user logs out.
 	public void sendLoginNewsFeed() throws IOException, SQLException {
-		String username = portal.getUsernameByID(sessionId);
-		String body = portal.getNewsFeedHTML(username);
-		sendCookieResponse(200,"OK","text/html",body.getBytes());
+		sendPage(user,true,null,true);
 	}
 	
 	public void sendNewsFeed() throws IOException, SQLException {
-		String username = portal.getUsernameByID(sessionId);
-		String body = portal.getNewsFeedHTML(username);
-		sendResponse(200,"OK","text/html",body.getBytes());
+		sendPage(user,true,null,false);
 	}
 
-	public void getEditProfile(String URL) throws IOException { //Justin will change this text
-		String responses[] = URL.split("=");
-		String name = responses[1].substring(0, responses[1].length()-6);
-		String image = responses[2].substring(0,responses[2].length()-12);
-		String description = responses[3];
-		System.out.println(name);
-		System.out.println(image);
-		System.out.println(description);
+	public void getEditProfile(String URL) throws IOException, SQLException {
+		int q = URL.indexOf('?');
+		String query = q < 0 ? "" : URL.substring(q + 1);
+		String name = getParameter(query, "name");
+		String image = getParameter(query, "image");
+		String description = getParameter(query, "description");
+		if (image != null && !image.matches("[A-Za-z0-9_.-]+\\.(jpg|gif)"))
+			image = null;	// only a plain .jpg or .gif file name
+		else if (image != null)
+			image = "/" + image;	// pictures are served from the root, like the existing ones
+		if (description != null && description.length() > 140)
+			description = description.substring(0, 140);
+		portal.updateProfile(user, blankToNull(name), blankToNull(image), blankToNull(description));
+		sendProfile();
+	}
+
+	/*
+	An empty form field means the value is not changed
+	 */
+	static String blankToNull(String value) {
+		return value == null || value.trim().isEmpty() ? null : value;
 	}
 
 	public void sendLogin() throws IOException { //Justin will change this text
@@ -242,7 +729,7 @@ public class HttpHandler extends java.lang.Thread {
 		sb.append("Username: <input type='text' name='username'><br>");
 		sb.append("Password: <input type='text' name='password'><input type='submit'>");
 		sb.append("</form></body></html>");
-		sendResponse(200,"OK","text/html",sb.toString().getBytes());
+		sendResponse(200,"OK","text/html",sb.toString().getBytes(StandardCharsets.UTF_8));
 	}
 	
 	public void sendLoginError() throws IOException { //Justin will change this text
@@ -253,7 +740,7 @@ public class HttpHandler extends java.lang.Thread {
 		sb.append("Username: <input type='text' name='username'><br>");
 		sb.append("Password: <input type='text' name='password'><input type='submit'>");
 		sb.append("</form></body></html>");
-		sendResponse(200,"OK","text/html",sb.toString().getBytes());
+		sendResponse(200,"OK","text/html",sb.toString().getBytes(StandardCharsets.UTF_8));
 	}
 
 	public void sendEditProfile() throws IOException { //Just will change this text
@@ -265,6 +752,6 @@ public class HttpHandler extends java.lang.Thread {
 		sb.append("Enter your new image (.jpg or .gif only): <input type='file' name='image'><br>");
 		sb.append("Enter your new profile description (up to 140 characters): <input type='text' name='description' size=140><input type='submit'>");
 		sb.append("</form></body></html>");
-		sendResponse(200,"OK","text/html",sb.toString().getBytes());
+		sendResponse(200,"OK","text/html",sb.toString().getBytes(StandardCharsets.UTF_8));
 	}
 }
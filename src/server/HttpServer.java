@@ -2,11 +2,38 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import backend.Log;
 
 public class HttpServer {
+	// Execution modes for accepted connections, selected with -Dtwotter.mode
+	public static final String MODE_POOL = "pool";		// bounded pool of worker threads
+	public static final String MODE_VIRTUAL = "virtual";	// one virtual thread per connection (Java 21+)
+	public static final String MODE_THREAD = "thread";	// one platform thread per connection
+	public static final String MODE_NIO = "nio";		// selector front end, workers only see complete requests
+
+	// Sent when every worker is busy and the connection queue is full
+	static final byte[] RESPONSE_503 = ("HTTP/1.1 503 Service Unavailable\r\n" +
+			"Content-Length: 49\r\n" +
+			"Content-Type: text/html\r\n" +
+			"Retry-After: 1\r\n" +
+			"Connection: close\r\n" +
+			"\r\n" +
+			"<html><body>Server busy - try again</body></html>").getBytes();
+
 	int port;
 	int cnt;
 	ServerSocket svr = null;
+	String mode = System.getProperty("twotter.mode", MODE_POOL);
+	int workers = Integer.getInteger("twotter.workers", 64);
+	int queueSize = Integer.getInteger("twotter.queue", 256);
+	int backlog = Integer.getInteger("twotter.backlog", 512);
+	int maxConnections = Integer.getInteger("twotter.maxConnections", 10000);
+	Executor executor;
+	Semaphore permits;	// caps in-flight connections when the executor itself is unbounded
 
 	public HttpServer(int p) {
 		this.port=p;
@@ -17,7 +44,7 @@ public class HttpServer {
 		try {
 			port = Integer.parseInt(a[0]);
 		} catch (Exception err) {
-			System.err.println("Usage: <port>");
+			System.err.println("Usage: <port>  (-Dtwotter.mode=pool|virtual|thread|nio -Dtwotter.workers -Dtwotter.queue -Dtwotter.backlog)");
 			System.exit(-1);
 		}
 
@@ -25,21 +52,103 @@ public class HttpServer {
 	}
 
 	public void run() {
+		if (MODE_NIO.equals(mode)) {
+			new NioServer(this).run();
+			return;
+		}
 
 		try {
-			svr = new ServerSocket(port);
+			// Opened through a channel so accepted sockets have one, for FileChannel.transferTo
+			svr = ServerSocketChannel.open().socket();
+			svr.bind(new InetSocketAddress(port), backlog);
 		} catch (IOException err) {
 			System.err.println("Socket invalid or in use");
 			System.exit(-1);
 		}
 
+		executor = createExecutor();
 		while (true) {
 			try {
 				Socket client = svr.accept();
 				cnt++;
-				new HttpHandler(client,cnt).start();
+				dispatch(client);
 			} catch (IOException err) {}
 		}
 	}
-}
 
+	/*
+	Build the executor for the configured mode
+	 */
+	Executor createExecutor() {
+		if (MODE_THREAD.equals(mode)) {
+			permits = new Semaphore(maxConnections);
+			return new Executor() {
+				public void execute(Runnable r) {
+					new Thread(r).start();
+				}
+			};
+		}
+		if (MODE_VIRTUAL.equals(mode)) {
+			try {
+				// Looked up reflectively so the server still builds and runs on older JVMs
+				Executor virtual = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				permits = new Semaphore(maxConnections);
+				return virtual;
+			} catch (Exception err) {
+				Log.warn("Virtual threads unavailable, using a bounded pool");
+			}
+		}
+		final AtomicInteger threadCount = new AtomicInteger();
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "twotter-worker-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), factory, new ThreadPoolExecutor.AbortPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/*
+	Hand a connection to the executor, or reject it with a 503 when saturated
+	 */
+	void dispatch(Socket client) {
+		if (permits != null && !permits.tryAcquire()) {
+			reject(client);
+			return;
+		}
+		Runnable handler = new HttpHandler(client,cnt);
+		if (permits != null) {
+			final Runnable inner = handler;
+			handler = new Runnable() {
+				public void run() {
+					try {
+						inner.run();
+					} finally {
+						permits.release();
+					}
+				}
+			};
+		}
+		try {
+			executor.execute(handler);
+		} catch (RejectedExecutionException err) {
+			if (permits != null)
+				permits.release();
+			reject(client);
+		}
+	}
+
+	/*
+	Fast reject: the request is never read, the client is told to retry
+	 */
+	void reject(Socket client) {
+		try {
+			client.getOutputStream().write(RESPONSE_503);
+			client.close();
+		} catch (IOException err) {}
+	}
+}
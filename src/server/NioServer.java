@@ -0,0 +1,466 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import backend.DBPortal;
+import backend.FeedHub;
+import backend.Log;
+
+/**
+ * Non-blocking front end for the HTTP server. A single selector thread accepts
+ * connections and reads request heads incrementally; only complete requests are
+ * handed to the worker pool, so idle and slow clients do not hold a thread.
+ * Live streams are handed back from the worker once their head is sent, and their
+ * events written from here, so open streams do not hold a thread either.
+ * Selected with -Dtwotter.mode=nio
+ */
+public class NioServer {
+
+	// Largest request head accepted before the connection is dropped
+	static final int MAX_HEAD = Integer.getInteger("twotter.maxHeader", 16384);
+	// Time a client has to send a complete request head once it has started one
+	static final int HEAD_TIMEOUT = Integer.getInteger("twotter.headerTimeout", 10000);
+	// Response bytes queued for a connection before the worker writing them waits
+	static final int MAX_QUEUED = 1 << 20;
+	// Live stream bytes queued for a connection before the stream is evicted
+	static final int MAX_STREAM_QUEUED = 64 << 10;
+
+	HttpServer config;
+	Selector selector;
+	ServerSocketChannel svr;
+	Executor workers;
+	int connections;
+	// Connections whose state was changed by a worker, processed on the selector thread
+	final Queue<Connection> pending = new ConcurrentLinkedQueue<Connection>();
+	final ByteBuffer readBuffer = ByteBuffer.allocateDirect(MAX_HEAD);
+
+	public NioServer(HttpServer config) {
+		this.config = config;
+	}
+
+	public void run() {
+		try {
+			selector = Selector.open();
+			svr = ServerSocketChannel.open();
+			svr.configureBlocking(false);
+			svr.bind(new InetSocketAddress(config.port), config.backlog);
+			svr.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException err) {
+			System.err.println("Socket invalid or in use");
+			System.exit(-1);
+		}
+
+		workers = config.createExecutor();
+		long lastSweep = System.currentTimeMillis();
+		while (true) {
+			try {
+				selector.select(1000);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else {
+						Connection conn = (Connection) key.attachment();
+						try {
+							if (key.isWritable())
+								conn.write();
+							if (key.isValid() && key.isReadable())
+								conn.read();
+						} catch (IOException err) {
+							conn.close();
+						}
+					}
+				}
+				Connection conn;
+				while ((conn = pending.poll()) != null)
+					conn.update();
+				long now = System.currentTimeMillis();
+				if (now - lastSweep >= 1000) {
+					sweep(now);
+					lastSweep = now;
+				}
+			} catch (IOException err) {
+				Log.error("Selector loop failed", err);
+			}
+		}
+	}
+
+	void accept() throws IOException {
+		SocketChannel ch;
+		while ((ch = svr.accept()) != null) {
+			config.cnt++;
+			ch.configureBlocking(false);
+			if (connections >= config.maxConnections) {
+				ch.write(ByteBuffer.wrap(HttpServer.RESPONSE_503));
+				ch.close();
+				continue;
+			}
+			connections++;
+			HttpHandler.CONNECTIONS.increment();
+			// Responses are written whole, so there is nothing for Nagle's algorithm to coalesce
+			ch.socket().setTcpNoDelay(true);
+			Connection conn = new Connection(ch);
+			conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+		}
+	}
+
+	/*
+	Close connections that sat idle past the keep-alive timeout or are
+	trickling in a request head, and send a heartbeat on quiet live streams
+	 */
+	void sweep(long now) {
+		for (SelectionKey key : selector.keys()) {
+			Object o = key.attachment();
+			if (!(o instanceof Connection))
+				continue;
+			Connection conn = (Connection) o;
+			if (conn.stream != null && !conn.busy) {
+				if (now - conn.lastActive >= HttpHandler.STREAM_HEARTBEAT && !conn.offer(HttpHandler.STREAM_HEARTBEAT_EVENT))
+					conn.close();
+				continue;
+			}
+			if (conn.busy || conn.queued.get() > 0)
+				continue;
+			if (conn.headStart != 0 ? now - conn.headStart > HEAD_TIMEOUT : now - conn.lastActive > HttpHandler.IDLE_TIMEOUT)
+				conn.close();
+		}
+	}
+
+	/**
+	 * State of one client connection. Fields without a comment are only touched
+	 * on the selector thread
+	 */
+	class Connection implements FeedHub.Sink {
+		SocketChannel ch;
+		SelectionKey key;
+		byte[] in;			// partial request data, null when nothing is buffered
+		int inLength;
+		int scanFrom;		// where to resume looking for the end of the head
+		long headStart;		// when the current partial head started arriving, 0 if none
+		long lastActive = System.currentTimeMillis();
+		int requests;
+		boolean busy;		// a worker is serving a request
+		boolean closing;	// close once the queued response has been written
+		volatile boolean done;		// set by the worker when the response is complete
+		volatile boolean keepAlive;
+		volatile boolean aborted;	// set by a worker to drop the connection without finishing the response
+		final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+		final AtomicLong queued = new AtomicLong();
+		volatile FeedHub.Subscription stream;	// a live stream handed over by the worker that opened it
+		volatile boolean streamChunked;		// its events go out as chunks
+
+		Connection(SocketChannel ch) {
+			this.ch = ch;
+		}
+
+		void read() throws IOException {
+			readBuffer.clear();
+			int n = ch.read(readBuffer);
+			if (n < 0) {
+				if (busy)
+					closing = true;
+				else
+					close();
+				return;
+			}
+			if (n == 0 || stream != null)
+				return;		// a live stream takes no more requests
+			readBuffer.flip();
+			if (in == null) {
+				in = new byte[Math.max(1024, n)];
+				headStart = System.currentTimeMillis();
+			}
+			else if (inLength + n > in.length)
+				in = java.util.Arrays.copyOf(in, Math.max(in.length * 2, inLength + n));
+			readBuffer.get(in, inLength, n);
+			inLength += n;
+			if (!busy)
+				dispatch();
+		}
+
+		/*
+		Hand the next complete request head to a worker, if one is buffered
+		 */
+		void dispatch() {
+			int end = headEnd();
+			if (end < 0) {
+				if (inLength >= MAX_HEAD)
+					close();
+				return;
+			}
+			final byte[] head = java.util.Arrays.copyOf(in, end);
+			if (end == inLength) {
+				in = null;
+				inLength = 0;
+				headStart = 0;
+			}
+			else {
+				System.arraycopy(in, end, in, 0, inLength - end);
+				inLength -= end;
+				headStart = System.currentTimeMillis();
+			}
+			scanFrom = 0;
+			busy = true;
+			final int served = requests++;
+			try {
+				workers.execute(new Runnable() {
+					public void run() {
+						boolean keep = false;
+						try {
+							HttpHandler handler = new HttpHandler(new DBPortal(), new ChannelOutputStream(Connection.this), served);
+							keep = handler.serve(head);
+						} catch (IOException err) {
+							// The client went away, as it does at the end of every live stream
+							if (Log.enabled(Log.DEBUG))
+								Log.debug("Connection closed while serving a request: " + err.getMessage());
+						} catch (Exception err) {
+							Log.error("Failed to serve a request", err);
+						}
+						finished(keep);
+					}
+				});
+			} catch (RejectedExecutionException err) {
+				enqueue(ByteBuffer.wrap(HttpServer.RESPONSE_503));
+				finished(false);
+			}
+			update();
+		}
+
+		/*
+		Offset just past the blank line ending the request head, or -1
+		 */
+		int headEnd() {
+			for (int i = scanFrom; i < inLength; i++) {
+				if (in[i] != '\n')
+					continue;
+				if (i + 1 < inLength && in[i + 1] == '\n')
+					return i + 2;
+				if (i + 2 < inLength && in[i + 1] == '\r' && in[i + 2] == '\n')
+					return i + 3;
+			}
+			scanFrom = Math.max(0, inLength - 2);
+			return -1;
+		}
+
+		void write() throws IOException {
+			ByteBuffer buf;
+			while ((buf = out.peek()) != null) {
+				int n = ch.write(buf);
+				if (buf.hasRemaining())
+					break;
+				out.poll();
+				if (queued.addAndGet(-buf.limit()) < MAX_QUEUED) {
+					synchronized (this) {
+						notifyAll();
+					}
+				}
+				if (n == 0)
+					break;
+			}
+			lastActive = System.currentTimeMillis();
+			update();
+		}
+
+		/*
+		Called from any thread with response bytes for this connection
+		 */
+		void enqueue(ByteBuffer buf) {
+			// Have the selector start writing before waiting on it to drain the queue
+			if (queue(buf) > MAX_QUEUED) {
+				// Slow reader: hold the worker back rather than buffering without limit
+				synchronized (this) {
+					while (queued.get() > MAX_QUEUED && ch.isOpen() && !aborted) {
+						try {
+							wait(100);
+						} catch (InterruptedException err) {
+							Thread.currentThread().interrupt();
+							return;
+						}
+					}
+				}
+			}
+		}
+
+		/*
+		Queue bytes for the selector to write without waiting; returns the bytes now queued
+		 */
+		long queue(ByteBuffer buf) {
+			out.add(buf);
+			long total = queued.addAndGet(buf.limit());
+			pending.add(this);
+			selector.wakeup();
+			return total;
+		}
+
+		/*
+		Called on the publishing thread with an event for the live stream
+		 */
+		public boolean offer(byte[] event) {
+			if (queued.get() > MAX_STREAM_QUEUED)
+				return false;
+			if (!streamChunked) {
+				queue(ByteBuffer.wrap(event));
+				return true;
+			}
+			byte[] size = Integer.toHexString(event.length).getBytes();
+			ByteBuffer chunk = ByteBuffer.allocate(size.length + event.length + 2 * ChunkedOutputStream.CRLF.length);
+			chunk.put(size).put(ChunkedOutputStream.CRLF).put(event).put(ChunkedOutputStream.CRLF);
+			chunk.flip();
+			queue(chunk);
+			return true;
+		}
+
+		/*
+		Called from any thread to close the connection, such as an evicted live
+		stream's, even while a worker waits to write to it
+		 */
+		void abort() {
+			aborted = true;
+			synchronized (this) {
+				notifyAll();
+			}
+			pending.add(this);
+			selector.wakeup();
+		}
+
+		void finished(boolean keep) {
+			keepAlive = keep;
+			done = true;
+			pending.add(this);
+			selector.wakeup();
+		}
+
+		/*
+		Apply worker-side state changes and recompute interest ops
+		 */
+		void update() {
+			if (!key.isValid())
+				return;
+			if (aborted) {
+				close();
+				return;
+			}
+			if (done) {
+				done = false;
+				busy = false;
+				lastActive = System.currentTimeMillis();
+				if (!keepAlive && stream == null)
+					closing = true;
+				else if (in != null && !closing)
+					dispatch();		// pipelined request already buffered
+			}
+			boolean writing = !out.isEmpty();
+			if (closing && !busy && !writing) {
+				close();
+				return;
+			}
+			key.interestOps((writing ? SelectionKey.OP_WRITE : 0) | (busy || closing ? 0 : SelectionKey.OP_READ));
+		}
+
+		void close() {
+			if (key.isValid()) {
+				key.cancel();
+				connections--;
+				HttpHandler.CONNECTIONS.decrement();
+			}
+			try {
+				ch.close();
+			} catch (IOException err) {}
+			synchronized (this) {
+				notifyAll();
+			}
+			FeedHub.Subscription s = stream;
+			if (s != null)
+				s.close();
+		}
+	}
+
+	/**
+	 * Collects a worker's response and hands it to the selector in blocks
+	 */
+	static class ChannelOutputStream extends OutputStream {
+		Connection conn;
+		byte[] buf = new byte[8192];
+		int count;
+
+		ChannelOutputStream(Connection conn) {
+			this.conn = conn;
+		}
+
+		public void write(int b) throws IOException {
+			if (count == buf.length)
+				flush();
+			buf[count++] = (byte) b;
+		}
+
+		public void write(byte b[], int off, int len) throws IOException {
+			if (len >= buf.length) {
+				flush();
+				send(java.util.Arrays.copyOfRange(b, off, off + len));
+				return;
+			}
+			if (len > buf.length - count)
+				flush();
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+
+		public void flush() throws IOException {
+			if (count == 0)
+				return;
+			send(java.util.Arrays.copyOf(buf, count));
+			count = 0;
+		}
+
+		/*
+		Queue count bytes of a file, mapped rather than copied onto the heap
+		 */
+		void sendFile(FileChannel fc, long count) throws IOException {
+			flush();
+			for (long pos = 0; pos < count; pos += MAX_QUEUED) {
+				if (!conn.ch.isOpen() || conn.aborted)
+					throw new IOException("connection closed");
+				conn.enqueue(fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAX_QUEUED, count - pos)));
+			}
+		}
+
+		/*
+		Hand a live stream, whose head has been written, to the selector, which writes
+		its events as they are published. False if it ended meanwhile; the caller
+		then closes it
+		 */
+		boolean stream(FeedHub.Subscription sub, boolean chunked) throws IOException {
+			flush();
+			conn.streamChunked = chunked;
+			conn.stream = sub;
+			// Closed before it saw the stream, so it did not close it
+			if (!conn.ch.isOpen() || conn.aborted)
+				return false;
+			return sub.handOff(conn);
+		}
+
+		/*
+		Drop the connection; the response so far may not all be sent
+		 */
+		public void close() {
+			conn.abort();
+		}
+
+		void send(byte[] bytes) throws IOException {
+			if (!conn.ch.isOpen() || conn.aborted)
+				throw new IOException("connection closed");
+			conn.enqueue(ByteBuffer.wrap(bytes));
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads request heads straight from bytes. The request line and header names are
+ * scanned in a buffer that is reused for every request on the connection; only the
+ * target and the values of the few headers the server acts on become Strings.
+ * Whatever follows a head in the buffer (a pipelined request) is kept for the next call
+ */
+public class RequestParser {
+
+	// Matched ignoring case, so lower case
+	static final byte[] GET = bytes("get");
+	static final byte[] HTTP = bytes("http/");
+	static final byte[] HTTP_1_1 = bytes("http/1.1");
+	static final byte[] CONNECTION = bytes("connection");
+	static final byte[] COOKIE = bytes("cookie");
+	static final byte[] IF_NONE_MATCH = bytes("if-none-match");
+	static final byte[] ACCEPT_ENCODING = bytes("accept-encoding");
+	static final byte[] SESSION = bytes("session");
+
+	InputStream in;
+	byte[] buf;
+	int pos;		// start of unparsed data
+	int limit;		// end of data in buf
+	int maxHead;
+
+	// The last request parsed
+	boolean valid;			// a GET with an HTTP version
+	String target;
+	boolean http11;
+	String connection;		// Connection header, null if absent
+	String session;			// value of the session cookie, null if absent
+	String ifNoneMatch;
+	String acceptEncoding;
+
+	/**
+	 * @param in Connection to read from, or null if heads are passed to parse()
+	 * @param maxHead Largest request head accepted
+	 */
+	public RequestParser(InputStream in, int maxHead) {
+		this.in = in;
+		this.maxHead = maxHead;
+		this.buf = new byte[in == null ? 0 : Math.min(4096, maxHead)];
+	}
+
+	/**
+	 * Read and parse the next request head
+	 * @return false if the connection ended before a request started
+	 * @throws IOException The connection failed or the head is too large
+	 */
+	public boolean next() throws IOException {
+		int end;
+		int scanFrom = pos;
+		while ((end = headEnd(buf, scanFrom, limit)) < 0) {
+			scanFrom = Math.max(pos, limit - 3);
+			if (limit - pos >= maxHead)
+				throw new IOException("request head too large");
+			if (pos > 0 && limit == buf.length) {
+				System.arraycopy(buf, pos, buf, 0, limit - pos);
+				scanFrom -= pos;
+				limit -= pos;
+				pos = 0;
+			}
+			if (in == null) {
+				if (limit == pos)
+					return false;
+				throw new EOFException("incomplete request head");
+			}
+			if (limit == buf.length)
+				buf = java.util.Arrays.copyOf(buf, Math.min(buf.length * 2, maxHead));
+			int n = in.read(buf, limit, buf.length - limit);
+			if (n < 0) {
+				if (limit == pos)
+					return false;
+				throw new EOFException("connection closed part way through a request");
+			}
+			limit += n;
+		}
+		parse(buf, pos, end);
+		pos = end;
+		if (pos == limit)
+			pos = limit = 0;
+		return true;
+	}
+
+	/**
+	 * Use a head that has already been read, instead of reading from a stream
+	 * @param head The complete request head
+	 */
+	public void wrap(byte[] head) {
+		buf = head;
+		pos = 0;
+		limit = head.length;
+	}
+
+	/**
+	 * @return Whether another request has already arrived, at least in part
+	 */
+	public boolean hasBuffered() throws IOException {
+		return limit > pos || (in != null && in.available() > 0);
+	}
+
+	/**
+	 * Offset just past the blank line that ends a head in b[from, to), or -1
+	 */
+	static int headEnd(byte[] b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (b[i] != '\n')
+				continue;
+			if (i + 1 < to && b[i + 1] == '\n')
+				return i + 2;
+			if (i + 2 < to && b[i + 1] == '\r' && b[i + 2] == '\n')
+				return i + 3;
+		}
+		return -1;
+	}
+
+	/**
+	 * Parse one complete request head
+	 * @param b Buffer holding the head
+	 * @param off Start of the request line
+	 * @param end End of the head, including the blank line
+	 */
+	public void parse(byte[] b, int off, int end) {
+		valid = false;
+		target = connection = session = ifNoneMatch = acceptEncoding = null;
+		http11 = false;
+
+		// Request line: method SP target SP version
+		int eol = lineEnd(b, off, end);
+		int sp1 = indexOf(b, off, eol, ' ');
+		int sp2 = sp1 < 0 ? -1 : indexOf(b, sp1 + 1, eol, ' ');
+		int next = skipEol(b, eol, end);
+		if (sp2 >= 0 && indexOf(b, sp2 + 1, eol, ' ') < 0) {
+			target = string(b, sp1 + 1, sp2);
+			valid = equals(b, off, sp1, GET, true) && startsWith(b, sp2 + 1, eol, HTTP, true);
+			http11 = equals(b, sp2 + 1, eol, HTTP_1_1, true);
+		}
+
+		// Headers
+		for (int line = next; line < end; line = next) {
+			eol = lineEnd(b, line, end);
+			next = skipEol(b, eol, end);
+			int colon = indexOf(b, line, eol, ':');
+			if (colon < 0)
+				continue;
+			int v = colon + 1;
+			while (v < eol && (b[v] == ' ' || b[v] == '\t'))
+				v++;
+			int ve = eol;
+			while (ve > v && (b[ve - 1] == ' ' || b[ve - 1] == '\t'))
+				ve--;
+			if (equals(b, line, colon, CONNECTION, true))
+				connection = string(b, v, ve);
+			else if (equals(b, line, colon, COOKIE, true))
+				session = cookie(b, v, ve, SESSION);
+			else if (equals(b, line, colon, IF_NONE_MATCH, true))
+				ifNoneMatch = string(b, v, ve);
+			else if (equals(b, line, colon, ACCEPT_ENCODING, true))
+				acceptEncoding = string(b, v, ve);
+		}
+	}
+
+	/*
+	Value of one cookie in a Cookie header value b[from, to), or null
+	 */
+	static String cookie(byte[] b, int from, int to, byte[] name) {
+		int i = from;
+		while (i < to) {
+			while (i < to && (b[i] == ' ' || b[i] == ';'))
+				i++;
+			int eq = indexOf(b, i, to, '=');
+			int semi = indexOf(b, i, to, ';');
+			if (semi < 0)
+				semi = to;
+			if (eq >= 0 && eq < semi && equals(b, i, eq, name, false))
+				return string(b, eq + 1, semi).trim();
+			i = semi + 1;
+		}
+		return null;
+	}
+
+	static int lineEnd(byte[] b, int from, int to) {
+		int i = indexOf(b, from, to, '\n');
+		if (i < 0)
+			i = to;
+		return i > from && b[i - 1] == '\r' ? i - 1 : i;
+	}
+
+	static int skipEol(byte[] b, int eol, int to) {
+		if (eol < to && b[eol] == '\r')
+			eol++;
+		return eol < to ? eol + 1 : to;
+	}
+
+	static int indexOf(byte[] b, int from, int to, char c) {
+		for (int i = from; i < to; i++) {
+			if (b[i] == c)
+				return i;
+		}
+		return -1;
+	}
+
+	/*
+	Whether b[from, to) is s. With ignoreCase, s must be lower case
+	 */
+	static boolean equals(byte[] b, int from, int to, byte[] s, boolean ignoreCase) {
+		return to - from == s.length && startsWith(b, from, to, s, ignoreCase);
+	}
+
+	static boolean startsWith(byte[] b, int from, int to, byte[] s, boolean ignoreCase) {
+		if (to - from < s.length)
+			return false;
+		for (int i = 0; i < s.length; i++) {
+			int c = b[from + i];
+			if (ignoreCase && c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			if (c != s[i])
+				return false;
+		}
+		return true;
+	}
+
+	static String string(byte[] b, int from, int to) {
+		return new String(b, from, to - from, StandardCharsets.ISO_8859_1);
+	}
+
+	static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,164 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds response heads in a byte buffer that is reused for every response on
+ * a connection. Status lines and header names are encoded once, up front. A small
+ * body is copied in behind the head so the whole response goes out in one write
+ */
+public class ResponseWriter {
+
+	static final byte[] CRLF = {'\r', '\n'};
+	static final byte[] CONTENT_LENGTH = bytes("Content-Length: ");
+	static final byte[] CONTENT_TYPE = bytes("Content-Type: ");
+	static final byte[] CONTENT_ENCODING = bytes("Content-Encoding: ");
+	static final byte[] SET_COOKIE_SESSION = bytes("Set-Cookie: session=");
+	static final byte[] ETAG = bytes("ETag: ");
+	static final byte[] LAST_MODIFIED = bytes("Last-Modified: ");
+	static final byte[] CACHE_CONTROL = bytes("Cache-Control: ");
+	static final byte[] VARY = bytes("Vary: ");
+	static final byte[] KEEP_ALIVE = bytes("Keep-Alive: timeout=");
+	static final byte[] MAX = bytes(", max=");
+	static final byte[] CONNECTION_KEEP_ALIVE = bytes("Connection: keep-alive\r\n");
+	static final byte[] CONNECTION_CLOSE = bytes("Connection: close\r\n");
+	static final byte[] TRANSFER_ENCODING_CHUNKED = bytes("Transfer-Encoding: chunked\r\n");
+
+	// Bodies up to this size are sent in the same write as the head
+	static final int COPY_LIMIT = 8192;
+
+	// Dates in headers; SimpleDateFormat is not thread safe, so one per thread
+	static final ThreadLocal<SimpleDateFormat> HTTP_DATE = new ThreadLocal<SimpleDateFormat>() {
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format;
+		}
+	};
+
+	// Encoded status lines by code and reason; there is one per call site, so this stays small
+	static final ConcurrentHashMap<String, byte[]> STATUS_LINES = new ConcurrentHashMap<String, byte[]>();
+
+	OutputStream out;
+	byte[] buf = new byte[1024];
+	int count;
+	int code;		// status of the last response started
+
+	public ResponseWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Start a response, discarding any head that was not sent
+	 */
+	public ResponseWriter status(int code, String reason) {
+		String key = code + " " + reason;
+		byte[] line = STATUS_LINES.get(key);
+		if (line == null) {
+			line = bytes("HTTP/1.1 " + key + "\r\n");
+			STATUS_LINES.put(key, line);
+		}
+		count = 0;
+		this.code = code;
+		return append(line);
+	}
+
+	public ResponseWriter header(byte[] name, String value) {
+		append(name);
+		ensure(value.length());
+		for (int i = 0; i < value.length(); i++)
+			buf[count++] = (byte) value.charAt(i);
+		return append(CRLF);
+	}
+
+	public ResponseWriter header(byte[] name, long value) {
+		return append(name).number(value).append(CRLF);
+	}
+
+	/**
+	 * A header whose value is a date, given in milliseconds
+	 */
+	public ResponseWriter date(byte[] name, long millis) {
+		return header(name, HTTP_DATE.get().format(new Date(millis)));
+	}
+
+	/**
+	 * Connection and Keep-Alive headers
+	 * @param maxRequests Further requests allowed on the connection, if kept alive
+	 */
+	public ResponseWriter connection(boolean keepAlive, int timeoutSeconds, int maxRequests) {
+		if (!keepAlive)
+			return append(CONNECTION_CLOSE);
+		append(CONNECTION_KEEP_ALIVE);
+		return append(KEEP_ALIVE).number(timeoutSeconds).append(MAX).number(maxRequests).append(CRLF);
+	}
+
+	/**
+	 * A whole header line, CRLF included
+	 */
+	public ResponseWriter append(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, count, b.length);
+		count += b.length;
+		return this;
+	}
+
+	ResponseWriter number(long n) {
+		if (n < 0) {
+			ensure(1);
+			buf[count++] = '-';
+			n = -n;
+		}
+		int digits = 1;
+		for (long m = n; m >= 10; m /= 10)
+			digits++;
+		ensure(digits);
+		for (int i = count + digits - 1; i >= count; i--) {
+			buf[i] = (byte) ('0' + n % 10);
+			n /= 10;
+		}
+		count += digits;
+		return this;
+	}
+
+	/**
+	 * End the head and hand it back without writing it, e.g. for a ChunkedOutputStream
+	 */
+	public byte[] toHead() {
+		append(CRLF);
+		return java.util.Arrays.copyOf(buf, count);
+	}
+
+	/**
+	 * End the head and write it, followed by body
+	 * @param body Response body, may be null
+	 */
+	public void send(byte[] body) throws IOException {
+		append(CRLF);
+		if (body != null && body.length <= COPY_LIMIT) {
+			append(body);
+			body = null;
+		}
+		out.write(buf, 0, count);
+		if (body != null)
+			out.write(body);
+		count = 0;
+		if (buf.length > 4 * COPY_LIMIT)
+			buf = new byte[1024];	// do not hold on to a large buffer between responses
+	}
+
+	void ensure(int n) {
+		if (count + n > buf.length)
+			buf = java.util.Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+	}
+
+	static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,204 @@
+package server;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import backend.Metrics;
+import backend.StripedCounter;
+
+/**
+ * Files served as they are from a directory, e.g. the Bootstrap css, js and images.
+ * Small files are kept in memory, along with a gzipped copy of the text ones, up
+ * to a total size; larger files are sent straight from disk. Each file has an ETag
+ * built from its size and modification time, so clients can revalidate cheaply
+ */
+public class StaticFiles {
+
+	// Most bytes held in memory, counting both copies of compressed files
+	static final long CACHE_BYTES = Long.getLong("twotter.assetCache", 8L << 20);
+	// Files larger than this are never cached
+	static final int MAX_CACHED_FILE = Integer.getInteger("twotter.assetMaxCached", 256 << 10);
+	// How long clients may use a file without asking again, in seconds
+	static final int MAX_AGE = Integer.getInteger("twotter.assetMaxAge", 86400);
+	static final String CACHE_CONTROL = "public, max-age=" + MAX_AGE;
+	// How often, at most, a cached file is checked for changes
+	static final long CHECK_INTERVAL = 1000;
+
+	/**
+	 * One file, ready to send
+	 */
+	static class Asset {
+		final File file;
+		final String type;
+		final long length;
+		final long lastModified;
+		final String etag;
+		final byte[] data;		// whole file, null if it is not cached
+		final byte[] gzipped;	// gzipped data, null if not worth compressing
+		final String gzipEtag;
+		volatile long checkedAt = System.currentTimeMillis();
+
+		Asset(File file, String type, byte[] data, byte[] gzipped) {
+			this.file = file;
+			this.type = type;
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+			this.etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+			this.gzipEtag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "-gz\"";
+			this.data = data;
+			this.gzipped = gzipped;
+		}
+
+		int size() {
+			return (data == null ? 0 : data.length) + (gzipped == null ? 0 : gzipped.length);
+		}
+
+		boolean isStale() {
+			long now = System.currentTimeMillis();
+			if (now - checkedAt < CHECK_INTERVAL)
+				return false;
+			checkedAt = now;
+			return file.lastModified() != lastModified || file.length() != length;
+		}
+	}
+
+	File root;
+	String rootPath;
+	long cachedBytes;
+
+	static final StripedCounter HITS = Metrics.CACHE_REQUESTS.labels("assets", "hit");
+	static final StripedCounter MISSES = Metrics.CACHE_REQUESTS.labels("assets", "miss");
+	// Least recently used first
+	final LinkedHashMap<String, Asset> cache = new LinkedHashMap<String, Asset>(64, 0.75f, true);
+
+	public StaticFiles(File root) {
+		this.root = root;
+		try {
+			rootPath = root.getCanonicalPath() + File.separator;
+		} catch (IOException err) {
+			rootPath = root.getAbsolutePath() + File.separator;
+		}
+	}
+
+	/**
+	 * Look up a file
+	 * @param name Path relative to the root, with '/' separators
+	 * @return The file, or null if it does not exist or lies outside the root
+	 */
+	public Asset get(String name) throws IOException {
+		Asset a;
+		synchronized (cache) {
+			a = cache.get(name);
+		}
+		if (a != null && !a.isStale()) {
+			HITS.increment();
+			return a;
+		}
+		MISSES.increment();
+
+		File file = new File(root, name);
+		if (!file.getCanonicalPath().startsWith(rootPath) || !file.isFile())
+			return null;
+		String type = getContentType(name);
+		byte[] data = null, gzipped = null;
+		if (file.length() <= MAX_CACHED_FILE) {
+			data = readFully(file);
+			if (isCompressible(type)) {
+				gzipped = gzip(data);
+				if (gzipped.length >= data.length)
+					gzipped = null;
+			}
+		}
+		a = new Asset(file, type, data, gzipped);
+		if (data != null)
+			put(name, a);
+		return a;
+	}
+
+	void put(String name, Asset a) {
+		synchronized (cache) {
+			Asset old = cache.put(name, a);
+			if (old != null)
+				cachedBytes -= old.size();
+			cachedBytes += a.size();
+			Iterator<Asset> it = cache.values().iterator();
+			while (cachedBytes > CACHE_BYTES && it.hasNext()) {
+				cachedBytes -= it.next().size();
+				it.remove();
+			}
+		}
+	}
+
+	/*
+	Whether an If-None-Match header names the given ETag
+	 */
+	static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null)
+			return false;
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/"))
+				tag = tag.substring(2);
+			if (tag.equals("*") || tag.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	MIME type from a file's extension
+	 */
+	public static String getContentType(String name) {
+		String e = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+		if ("css".equals(e))
+			return "text/css; charset=utf-8";
+		else if ("js".equals(e))
+			return "application/javascript; charset=utf-8";
+		else if ("html".equals(e) || "htm".equals(e))
+			return "text/html; charset=utf-8";
+		else if ("txt".equals(e))
+			return "text/plain; charset=utf-8";
+		else if ("json".equals(e))
+			return "application/json";
+		else if ("svg".equals(e))
+			return "image/svg+xml";
+		else if ("png".equals(e))
+			return "image/png";
+		else if ("jpg".equals(e) || "jpeg".equals(e))
+			return "image/jpeg";
+		else if ("gif".equals(e))
+			return "image/gif";
+		else if ("ico".equals(e))
+			return "image/x-icon";
+		else if ("woff".equals(e))
+			return "font/woff";
+		else
+			return "application/octet-stream";
+	}
+
+	static boolean isCompressible(String type) {
+		return type.startsWith("text/") || type.startsWith("application/javascript")
+				|| type.startsWith("application/json") || type.startsWith("image/svg");
+	}
+
+	static byte[] readFully(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 3 + 64);
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		out.write(data);
+		out.close();
+		return bytes.toByteArray();
+	}
+}